@@ -0,0 +1,91 @@
+package qupath.ext.ductales;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.lib.analysis.DelaunayTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Comparison of the Delaunay and grid hash duct clusters on synthetic slides of increasing size.
+ * Run with {@code gradlew benchmarkDuctNeighbors}, the numbers of cells can be given as arguments.
+ */
+public class DuctNeighborsBenchmark {
+	private static final int[] DEFAULT_SIZES = {10000, 100000, 500000};
+	private static final double NUCLEUS_RADIUS = 4;
+	private static final double DUCT_MAX_DISTANCE = 4;
+	private static final int DUCT_MIN_CELL_SIZE = 10;
+	// Part of the cells in duct rings, the others are scattered stroma
+	private static final double DUCT_CELL_RATIO = 0.7;
+
+	public static void main(String[] args) throws Exception {
+		var sizes = DEFAULT_SIZES;
+		if(args.length > 0) {
+			sizes = new int[args.length];
+			for(var i = 0; i < args.length; ++i)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+		var parallelism = Runtime.getRuntime().availableProcessors();
+		for(var size : sizes) {
+			var cells = createCells(size, new Random(42));
+			var cancelled = new AtomicBoolean();
+			try(var taskExecutor = new TaskExecutor("Duct neighbors benchmark", parallelism)) {
+				var start = System.nanoTime();
+				var graph = new DuctGraph(cells);
+				graph.computeEdges(taskExecutor, DelaunayTools.createFromCentroids(cells, true).getAllNeighbors(), DUCT_MAX_DISTANCE, cancelled, null);
+				var delaunayClusters = DuctStructureComputer.getClusters(graph, DUCT_MAX_DISTANCE, DUCT_MIN_CELL_SIZE);
+				var delaunayTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				var gridGraph = new DuctGraph(cells);
+				var unionFind = GridHashClusters.compute(taskExecutor, gridGraph, DUCT_MAX_DISTANCE, cancelled, null);
+				var gridClusters = DuctStructureComputer.groupByLabel(unionFind.getLabels(DUCT_MIN_CELL_SIZE));
+				var gridTime = System.nanoTime() - start;
+
+				System.out.printf("%d cells: Delaunay %.2f s (%d ducts, %d cells), grid hash %.2f s (%d ducts, %d cells)%n",
+						size, delaunayTime / 1e9, delaunayClusters.size(), countCells(delaunayClusters),
+						gridTime / 1e9, gridClusters.size(), countCells(gridClusters));
+			}
+		}
+	}
+
+	// Rings of touching nuclei (ducts) in a square slide with scattered stroma nuclei
+	private static List<PathObject> createCells(int size, Random random) {
+		var cells = new ArrayList<PathObject>(size);
+		var side = Math.sqrt(size) * 6 * NUCLEUS_RADIUS;
+		var nDuctCells = (int)(size * DUCT_CELL_RATIO);
+		while(cells.size() < nDuctCells) {
+			var ringSize = Math.min(20 + random.nextInt(60), nDuctCells - cells.size());
+			var radius = ringSize * 2.2 * NUCLEUS_RADIUS / (2 * Math.PI);
+			var centerX = radius + random.nextDouble() * (side - 2 * radius);
+			var centerY = radius + random.nextDouble() * (side - 2 * radius);
+			for(var i = 0; i < ringSize; ++i) {
+				var angle = 2 * Math.PI * i / ringSize;
+				cells.add(createCell(centerX + radius * Math.cos(angle), centerY + radius * Math.sin(angle)));
+			}
+		}
+		while(cells.size() < size)
+			cells.add(createCell(random.nextDouble() * side, random.nextDouble() * side));
+		return cells;
+	}
+
+	private static PathObject createCell(double x, double y) {
+		var plane = ImagePlane.getDefaultPlane();
+		var nucleus = ROIs.createEllipseROI(x - NUCLEUS_RADIUS, y - NUCLEUS_RADIUS, 2 * NUCLEUS_RADIUS, 2 * NUCLEUS_RADIUS, plane);
+		var cell = ROIs.createEllipseROI(x - 2 * NUCLEUS_RADIUS, y - 2 * NUCLEUS_RADIUS, 4 * NUCLEUS_RADIUS, 4 * NUCLEUS_RADIUS, plane);
+		return PathObjects.createCellObject(cell, nucleus, null, null);
+	}
+
+	private static int countCells(List<int[]> clusters) {
+		var count = 0;
+		for(var cluster : clusters)
+			count += cluster.length;
+		return count;
+	}
+}
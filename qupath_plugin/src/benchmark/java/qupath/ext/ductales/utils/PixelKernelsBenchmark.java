@@ -0,0 +1,82 @@
+package qupath.ext.ductales.utils;
+
+import java.util.Random;
+
+/**
+ * Micro-benchmark of the scalar and vector pixel kernels.
+ * Run with {@code gradlew benchmarkPixelKernels}, the vector kernels are only measured with a Java 17 toolchain.
+ */
+public class PixelKernelsBenchmark {
+	private static final int WIDTH = 512;
+	private static final int HEIGHT = 512;
+	private static final int WARMUP_ITERATIONS = 200;
+	private static final int ITERATIONS = 500;
+
+	private static double[][] matrixInverse = {
+			{1.88, -0.07, -0.60},
+			{-1.02, 1.13, -0.48},
+			{-0.55, -0.13, 1.57}
+	};
+
+	public static void main(String[] args) {
+		var n = WIDTH * HEIGHT;
+		var random = new Random(42);
+		var rgb = new int[n];
+		var mask = new boolean[n];
+		for(var i = 0; i < n; ++i) {
+			rgb[i] = random.nextInt(0x1000000);
+			mask[i] = random.nextDouble() < 0.6;
+		}
+
+		var scalar = PixelKernels.scalar();
+		var best = PixelKernels.getInstance();
+		if(best == scalar)
+			System.out.println("Vector kernels not available, run with --add-modules jdk.incubator.vector on Java 17+");
+
+		var scalarOutput = run(scalar, rgb, mask);
+		if(best != scalar) {
+			var vectorOutput = run(best, rgb, mask);
+			var maxDifference = 0.0;
+			for(var i = 0; i < n; ++i)
+				maxDifference = Math.max(maxDifference, Math.abs(scalarOutput[i] - vectorOutput[i]));
+			System.out.printf("Max difference between scalar and vector stain values: %.3g%n", maxDifference);
+		}
+	}
+
+	private static float[] run(PixelKernels kernels, int[] rgb, boolean[] mask) {
+		var n = rgb.length;
+		var odRed = new float[n];
+		var odGreen = new float[n];
+		var odBlue = new float[n];
+		var stain = new float[n];
+		double[] statistics = null;
+
+		for(var i = 0; i < WARMUP_ITERATIONS; ++i) {
+			kernels.opticalDensity(rgb, n, 255, 255, 255, odRed, odGreen, odBlue);
+			kernels.deconvolve(odRed, odGreen, odBlue, n, matrixInverse, 0, stain);
+			statistics = kernels.maskedStatistics(stain, mask, n);
+		}
+
+		var odTime = 0L;
+		var deconvolutionTime = 0L;
+		var statisticsTime = 0L;
+		for(var i = 0; i < ITERATIONS; ++i) {
+			var start = System.nanoTime();
+			kernels.opticalDensity(rgb, n, 255, 255, 255, odRed, odGreen, odBlue);
+			var afterOD = System.nanoTime();
+			kernels.deconvolve(odRed, odGreen, odBlue, n, matrixInverse, 0, stain);
+			var afterDeconvolution = System.nanoTime();
+			statistics = kernels.maskedStatistics(stain, mask, n);
+			var afterStatistics = System.nanoTime();
+			odTime += afterOD - start;
+			deconvolutionTime += afterDeconvolution - afterOD;
+			statisticsTime += afterStatistics - afterDeconvolution;
+		}
+
+		var pixels = (double)n * ITERATIONS;
+		System.out.printf("%s kernels: OD %.2f ns/px, deconvolution %.2f ns/px, masked statistics %.2f ns/px (mean %.4f)%n",
+				kernels.getName(), odTime / pixels, deconvolutionTime / pixels, statisticsTime / pixels,
+				statistics[PixelKernels.STAT_SUM] / statistics[PixelKernels.STAT_COUNT]);
+		return stain;
+	}
+}
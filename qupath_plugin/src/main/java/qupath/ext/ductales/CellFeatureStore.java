@@ -0,0 +1,168 @@
+package qupath.ext.ductales;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import qupath.lib.measurements.MeasurementList;
+import qupath.lib.measurements.MeasurementListFactory;
+import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObjects;
+
+/**
+ * Columnar store of per-cell measurements: one float column per feature, indexed by cell row.
+ * <p>
+ * Feature names are interned once, so measuring millions of cells does not create per-object measurement maps.
+ * Values can be exported in bulk with {@link #writeTable(Writer, String)} or written back lazily to the cells
+ * measurement lists with {@link #writeBack()}. Missing values are stored as NaN.
+ */
+public class CellFeatureStore {
+	private final List<PathCellObject> cells;
+	private final Map<String, Integer> featureIndices = new ConcurrentHashMap<>();
+	private final List<String> featureNames = new CopyOnWriteArrayList<>();
+	private final List<float[]> columns = new CopyOnWriteArrayList<>();
+
+	public CellFeatureStore(Collection<PathCellObject> cells) {
+		this.cells = Collections.unmodifiableList(new ArrayList<>(cells));
+	}
+
+	public int nCells() {
+		return cells.size();
+	}
+
+	public int nFeatures() {
+		return columns.size();
+	}
+
+	public PathCellObject getCell(int row) {
+		return cells.get(row);
+	}
+
+	public List<PathCellObject> getCells() {
+		return cells;
+	}
+
+	public List<String> getFeatureNames() {
+		return Collections.unmodifiableList(featureNames);
+	}
+
+	// Get the column index of a feature, creating the column if needed
+	public int getFeatureIndex(String name) {
+		var index = featureIndices.get(name);
+		if(index != null)
+			return index;
+		synchronized(this) {
+			index = featureIndices.get(name);
+			if(index == null) {
+				var column = new float[cells.size()];
+				Arrays.fill(column, Float.NaN);
+				// Publish the column before its index
+				columns.add(column);
+				featureNames.add(name);
+				index = columns.size() - 1;
+				featureIndices.put(name, index);
+			}
+			return index;
+		}
+	}
+
+	// Get the column indexes of features in the order of their names, so rows can be filled without name lookups
+	public int[] getFeatureIndexes(String... names) {
+		var indexes = new int[names.length];
+		for(var i = 0; i < names.length; ++i)
+			indexes[i] = getFeatureIndex(names[i]);
+		return indexes;
+	}
+
+	public boolean containsFeature(String name) {
+		return featureIndices.containsKey(name);
+	}
+
+	public void set(int row, int feature, double value) {
+		columns.get(feature)[row] = (float)value;
+	}
+
+	public void set(int row, String name, double value) {
+		set(row, getFeatureIndex(name), value);
+	}
+
+	public float get(int row, int feature) {
+		return columns.get(feature)[row];
+	}
+
+	// Direct access to a column, returns null if the feature does not exist
+	public float[] getColumn(String name) {
+		var index = featureIndices.get(name);
+		if(index == null)
+			return null;
+		return columns.get(index);
+	}
+
+	// Copy all the values of a measurement list in a row, looking up each column by name
+	public void setAll(int row, MeasurementList measurements) {
+		for(var i = 0; i < measurements.size(); ++i) {
+			set(row, getFeatureIndex(measurements.getMeasurementName(i)), measurements.getMeasurementValue(i));
+		}
+	}
+
+	/**
+	 * Create a detached copy of the cell at row, with an empty measurement list.
+	 * QuPath measurement methods can be applied to it without touching the original cell measurements,
+	 * its values can then be copied with {@link #setAll(int, MeasurementList)}.
+	 * Features computed by this extension are written with {@link #set(int, int, double)} instead.
+	 */
+	public PathCellObject createScratchCell(int row) {
+		var cell = cells.get(row);
+		var measurements = MeasurementListFactory.createMeasurementList(16, MeasurementList.MeasurementListType.FLOAT);
+		return (PathCellObject)PathObjects.createCellObject(cell.getROI(), cell.getNucleusROI(), cell.getPathClass(), measurements);
+	}
+
+	// Write the stored values in the cells measurement lists
+	public void writeBack() {
+		var nFeatures = nFeatures();
+		for(var row = 0; row < cells.size(); ++row) {
+			var measurements = cells.get(row).getMeasurementList();
+			for(var f = 0; f < nFeatures; ++f) {
+				var value = columns.get(f)[row];
+				if(!Float.isNaN(value))
+					measurements.putMeasurement(featureNames.get(f), value);
+			}
+			measurements.close();
+		}
+	}
+
+	// Export all the values as a table, one line per cell
+	public void writeTable(Writer writer, String delimiter) throws IOException {
+		var nFeatures = nFeatures();
+		writer.write("Row" + delimiter + "Class" + delimiter + "Centroid X" + delimiter + "Centroid Y");
+		for(var f = 0; f < nFeatures; ++f)
+			writer.write(delimiter + featureNames.get(f));
+		writer.write(System.lineSeparator());
+
+		var line = new StringBuilder();
+		for(var row = 0; row < cells.size(); ++row) {
+			var cell = cells.get(row);
+			line.setLength(0);
+			line.append(row).append(delimiter);
+			line.append(cell.getPathClass() == null ? "" : cell.getPathClass().getName()).append(delimiter);
+			line.append(cell.getROI().getCentroidX()).append(delimiter);
+			line.append(cell.getROI().getCentroidY());
+			for(var f = 0; f < nFeatures; ++f) {
+				var value = columns.get(f)[row];
+				line.append(delimiter);
+				if(!Float.isNaN(value))
+					line.append(value);
+			}
+			line.append(System.lineSeparator());
+			writer.write(line.toString());
+		}
+		writer.flush();
+	}
+}
@@ -0,0 +1,83 @@
+package qupath.ext.ductales;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Fingerprints of the last measurement of each cell, used to skip unchanged cells when measuring again.
+ * <p>
+ * A fingerprint combines the cell and nucleus ROI geometries with the measurement settings.
+ * Cells are weakly referenced so deleted cells do not stay in memory.
+ */
+public class CellFingerprints {
+	private final Map<PathObject, Long> fingerprints = Collections.synchronizedMap(new WeakHashMap<>());
+	// Names of the measurements produced by each settings fingerprint
+	private final Map<Long, List<String>> measurementNames = new ConcurrentHashMap<>();
+
+	public void put(PathObject cell, long fingerprint) {
+		fingerprints.put(cell, fingerprint);
+	}
+
+	public void remove(PathObject cell) {
+		fingerprints.remove(cell);
+	}
+
+	public void clear() {
+		fingerprints.clear();
+		measurementNames.clear();
+	}
+
+	public int size() {
+		return fingerprints.size();
+	}
+
+	public List<String> getMeasurementNames(long settingsFingerprint) {
+		return measurementNames.get(settingsFingerprint);
+	}
+
+	public void setMeasurementNames(long settingsFingerprint, List<String> names) {
+		measurementNames.put(settingsFingerprint, List.copyOf(names));
+	}
+
+	/**
+	 * Check if a cell was measured with the same fingerprint and still has all the expected measurements.
+	 */
+	public boolean isUpToDate(PathObject cell, long fingerprint, List<String> expectedNames) {
+		var previous = fingerprints.get(cell);
+		if(previous == null || previous != fingerprint)
+			return false;
+		var measurements = cell.getMeasurementList();
+		for(var name : expectedNames) {
+			if(!measurements.containsNamedMeasurement(name))
+				return false;
+		}
+		return true;
+	}
+
+	public static long combine(long hash, long value) {
+		// 64-bit FNV-1a style mixing
+		hash ^= value;
+		hash *= 0x100000001b3L;
+		return hash ^ (hash >>> 29);
+	}
+
+	public static long combine(long hash, double value) {
+		return combine(hash, Double.doubleToLongBits(value));
+	}
+
+	public static long hashROI(long hash, ROI roi) {
+		if(roi == null)
+			return combine(hash, 0L);
+		for(var point : roi.getAllPoints()) {
+			hash = combine(hash, point.getX());
+			hash = combine(hash, point.getY());
+		}
+		return combine(hash, (long)roi.getNumPoints());
+	}
+}
@@ -1,43 +1,78 @@
 package qupath.ext.ductales;
 
 import java.awt.image.BufferedImage;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import qupath.ext.ductales.utils.DuctalesConstants;
+import qupath.ext.ductales.utils.PixelKernels;
+import qupath.ext.ductales.utils.TaskExecutor;
 import qupath.lib.analysis.features.HaralickFeatureComputer;
 import qupath.lib.analysis.features.ObjectMeasurements;
 import qupath.lib.analysis.features.ObjectMeasurements.Compartments;
 import qupath.lib.analysis.features.ObjectMeasurements.Measurements;
 import qupath.lib.analysis.images.SimpleImage;
+import qupath.lib.analysis.images.SimpleImages;
 import qupath.lib.awt.common.BufferedImageTools;
 import qupath.lib.color.ColorDeconvolutionStains;
 import qupath.lib.color.StainVector;
 import qupath.lib.color.StainVector.DefaultStains;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
-import qupath.lib.images.servers.TransformedServerBuilder;
 import qupath.lib.objects.PathCellObject;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.RoiTools;
-import qupath.opencv.tools.OpenCVTools;
 
 public class CellsInfoExtractor {
 	private final static Logger logger = LoggerFactory.getLogger(CellsInfoExtractor.class);
 	private boolean measureShape;
 	private boolean measureIntensity;
 	private boolean measureTexture;
+	private int parallelism;
+	private TaskExecutor executor;
+	private TaskExecutor.ProgressListener progressListener;
+	// Cancellation token of each running extraction
+	private final Set<AtomicBoolean> runningTokens = ConcurrentHashMap.newKeySet();
+	private boolean incremental;
+	private CellFingerprints fingerprints = new CellFingerprints();
+	private double downsample;
+	private double sampleFraction;
+	private SampleStrata sampleStrata;
+	private long sampleSeed;
 
+	// Increase when the measurements computed for a given setting change, to invalidate fingerprints
+	private static final int FEATURE_SET_VERSION = 3;
+
+	// Mode metadata of reduced resolution or sampled measurements
+	public static final String MEASUREMENT_DOWNSAMPLE = "Measurement downsample";
+	public static final String MEASUREMENT_SAMPLE_FRACTION = "Measurement sample fraction";
+	private static final Object NO_STRATUM = new Object();
 
 	public CellsInfoExtractor() {
 		// Set default values
 		measureShape(DuctalesConstants.DEFAULT_CELL_MEASURE_SHAPE);
 		measureIntensity(DuctalesConstants.DEFAULT_CELL_MEASURE_INTENSITY);
 		measureTexture(DuctalesConstants.DEFAULT_CELL_MEASURE_TEXTURE);
+		parallelism(DuctalesConstants.DEFAULT_PARALLELISM);
+		incremental(DuctalesConstants.DEFAULT_CELL_MEASURE_INCREMENTAL);
+		downsample(DuctalesConstants.DEFAULT_CELL_MEASURE_DOWNSAMPLE);
+		sampleFraction(DuctalesConstants.DEFAULT_CELL_SAMPLE_FRACTION);
+		sampleStrata(SampleStrata.values()[DuctalesConstants.DEFAULT_CELL_SAMPLE_STRATA_INDEX]);
+		sampleSeed(DuctalesConstants.DEFAULT_CELL_SAMPLE_SEED);
 	}
 
 	public CellsInfoExtractor measureShape(boolean measureShape) {
@@ -71,16 +106,389 @@ public class CellsInfoExtractor {
 	}
 
 
-	public void extract(ImageData<BufferedImage> image, Collection<PathCellObject> cells) {
+	public CellsInfoExtractor parallelism(int parallelism) {
+		try {
+			this.parallelism = parallelism;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	// Shared executor, parallelism is ignored if set
+	public CellsInfoExtractor executor(TaskExecutor executor) {
+		try {
+			this.executor = executor;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	public CellsInfoExtractor progressListener(TaskExecutor.ProgressListener progressListener) {
+		try {
+			this.progressListener = progressListener;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	// Stop the running extractions, a CancellationException is thrown by extract
+	public void cancel() {
+		for(var cancelled : runningTokens)
+			cancelled.set(true);
+	}
+
+	private static void checkCancelled(AtomicBoolean cancelled) {
+		if(cancelled.get())
+			throw new CancellationException("Measure cells infos cancelled");
+	}
+
+	public CellsInfoExtractor incremental(boolean incremental) {
+		try {
+			this.incremental = incremental;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	// Fingerprints of previous runs, to share between extractors for incremental measurements
+	public CellsInfoExtractor fingerprints(CellFingerprints fingerprints) {
+		try {
+			this.fingerprints = fingerprints;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	public enum SampleStrata {
+		// Cells are grouped by parent object (e.g. duct structure)
+		PARENT,
+		// Cells are grouped by classification
+		CLASS
+	}
+
+	// Downsample of the pixels read for intensity and texture measurements, 1 for full resolution
+	public CellsInfoExtractor downsample(double downsample) {
+		try {
+			if(!Double.isFinite(downsample) || downsample < 1)
+				throw new IllegalArgumentException("Downsample must be a finite number >= 1");
+			this.downsample = downsample;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	// Fraction of cells measured in each stratum, 1 to measure all the cells
+	public CellsInfoExtractor sampleFraction(double sampleFraction) {
+		try {
+			if(sampleFraction <= 0 || sampleFraction > 1)
+				throw new IllegalArgumentException("Sample fraction must be in ]0, 1]");
+			this.sampleFraction = sampleFraction;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	public CellsInfoExtractor sampleStrata(SampleStrata sampleStrata) {
+		try {
+			this.sampleStrata = sampleStrata;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	public CellsInfoExtractor sampleSeed(long sampleSeed) {
+		try {
+			this.sampleSeed = sampleSeed;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	private boolean isFullResolution() {
+		return downsample == 1 && sampleFraction == 1;
+	}
+
+	public static class Report {
+		private final int nCells;
+		private final int nSampled;
+		private final int nMeasured;
+		private final double downsample;
+		private final double sampleFraction;
+		private final Map<String, Long> stageTimes;
+
+		Report(int nCells, int nSampled, int nMeasured, double downsample, double sampleFraction, Map<String, Long> stageTimes) {
+			this.nCells = nCells;
+			this.nSampled = nSampled;
+			this.nMeasured = nMeasured;
+			this.downsample = downsample;
+			this.sampleFraction = sampleFraction;
+			this.stageTimes = Collections.unmodifiableMap(new LinkedHashMap<>(stageTimes));
+		}
+
+		public int getNumberOfCells() {
+			return nCells;
+		}
+
+		// Number of cells selected by sampling, equal to the number of cells if not sampled
+		public int getNumberOfSampledCells() {
+			return nSampled;
+		}
+
+		public int getNumberOfMeasuredCells() {
+			return nMeasured;
+		}
+
+		public int getNumberOfSkippedCells() {
+			return nSampled - nMeasured;
+		}
+
+		public double getDownsample() {
+			return downsample;
+		}
+
+		public double getSampleFraction() {
+			return sampleFraction;
+		}
+
+		// Duration of each stage in milliseconds
+		public Map<String, Long> getStageTimes() {
+			return stageTimes;
+		}
+
+		public long getTotalTime() {
+			return stageTimes.values().stream().mapToLong(Long::longValue).sum();
+		}
+
+		@Override
+		public String toString() {
+			var sb = new StringBuilder();
+			sb.append(String.format("%d/%d cells measured (%d unchanged cells skipped", nMeasured, nCells, getNumberOfSkippedCells()));
+			if(sampleFraction < 1)
+				sb.append(String.format(", %d cells sampled", nSampled));
+			sb.append(")");
+			if(downsample != 1)
+				sb.append(String.format(" at downsample %.1f", downsample));
+			sb.append(String.format(" in %.1f s", getTotalTime() / 1000.0));
+			for(var stageTime : stageTimes.entrySet())
+				sb.append(String.format("\n  %s: %.1f s", stageTime.getKey(), stageTime.getValue() / 1000.0));
+			return sb.toString();
+		}
+	}
+
+	public Report extract(ImageData<BufferedImage> image, Collection<PathCellObject> cells) {
+		return run(image, new ArrayList<>(cells), null);
+	}
+
+	/**
+	 * Measure the cells into a columnar store instead of their measurement lists.
+	 * The cells measurement lists are left untouched until {@link CellFeatureStore#writeBack()} is called.
+	 * All the cells are measured, incremental mode only applies to {@link #extract(ImageData, Collection)}.
+	 */
+	public CellFeatureStore extractToStore(ImageData<BufferedImage> image, Collection<PathCellObject> cells) {
+		var store = new CellFeatureStore(cells);
+		run(image, store.getCells(), store);
+		return store;
+	}
+
+	// Run an extraction with its own cancellation token, on the shared executor or on a new one
+	private Report run(ImageData<BufferedImage> image, List<PathCellObject> cells, CellFeatureStore store) {
+		var cancelled = new AtomicBoolean(false);
+		runningTokens.add(cancelled);
+		var ownExecutor = executor == null;
+		TaskExecutor taskExecutor = null;
+		var stageTimes = new LinkedHashMap<String, Long>();
+		try {
+			taskExecutor = ownExecutor ? new TaskExecutor("ductales-measure", parallelism) : executor;
+			var stages = createStages(image);
+
+			var rows = IntStream.range(0, cells.size()).toArray();
+			if(sampleFraction < 1) {
+				var startTime = System.currentTimeMillis();
+				rows = sampleRows(cells);
+				stageTimes.put("Sampling", System.currentTimeMillis() - startTime);
+			}
+			var nSampled = rows.length;
+
+			if(incremental && store == null) {
+				var startTime = System.currentTimeMillis();
+				rows = filterUpToDateRows(taskExecutor, image, stages, cells, rows, cancelled);
+				stageTimes.put("Fingerprints", System.currentTimeMillis() - startTime);
+			}
+
+			checkCancelled(cancelled);
+			extract(taskExecutor, stages, cells, rows, store, stageTimes, cancelled);
+			checkCancelled(cancelled);
+
+			if(incremental && store == null) {
+				var settingsFingerprint = getSettingsFingerprint(image);
+				for(var row : rows)
+					fingerprints.put(cells.get(row), getCellFingerprint(settingsFingerprint, cells.get(row)));
+			}
+
+			var report = new Report(cells.size(), nSampled, rows.length, downsample, sampleFraction, stageTimes);
+			logger.info("Measure cells infos: {}", report);
+			return report;
+		} finally {
+			runningTokens.remove(cancelled);
+			if(ownExecutor && taskExecutor != null)
+				taskExecutor.close();
+		}
+	}
+
+	// Draw a stratified random sample of the cells, sampleFraction of each stratum (at least one cell)
+	private int[] sampleRows(List<PathCellObject> cells) {
+		var strata = new LinkedHashMap<Object, List<Integer>>();
+		for(var i = 0; i < cells.size(); ++i) {
+			var cell = cells.get(i);
+			var key = sampleStrata == SampleStrata.CLASS ? cell.getPathClass() : cell.getParent();
+			strata.computeIfAbsent(key == null ? NO_STRATUM : key, k -> new ArrayList<>()).add(i);
+		}
+
+		var random = new Random(sampleSeed);
+		var sampledRows = new ArrayList<Integer>();
+		for(var stratum : strata.values()) {
+			var nSamples = Math.max(1, (int)Math.round(stratum.size() * sampleFraction));
+			// Partial Fisher-Yates shuffle
+			for(var i = 0; i < nSamples; ++i)
+				Collections.swap(stratum, i, i + random.nextInt(stratum.size() - i));
+			sampledRows.addAll(stratum.subList(0, nSamples));
+		}
+		return sampledRows.stream().mapToInt(Integer::intValue).sorted().toArray();
+	}
+
+	// Keep only the rows of cells whose fingerprint or measurements changed since the last run
+	private int[] filterUpToDateRows(TaskExecutor taskExecutor, ImageData<BufferedImage> image, List<Stage> stages, List<PathCellObject> cells, int[] rows, AtomicBoolean cancelled) {
+		var settingsFingerprint = getSettingsFingerprint(image);
+		var expectedNames = getMeasurementNames(stages, cells, settingsFingerprint);
+		var isUpToDate = new boolean[rows.length];
+		taskExecutor.forEach("Fingerprints", rows.length, i -> {
+			var c = cells.get(rows[i]);
+			isUpToDate[i] = fingerprints.isUpToDate(c, getCellFingerprint(settingsFingerprint, c), expectedNames);
+		}, cancelled, progressListener);
+
+		var toMeasure = IntStream.range(0, rows.length).filter(i -> !isUpToDate[i]).map(i -> rows[i]).toArray();
+		// Forget the previous state of cells being measured, in case the run does not complete
+		for(var row : toMeasure)
+			fingerprints.remove(cells.get(row));
+		return toMeasure;
+	}
+
+	private long getCellFingerprint(long settingsFingerprint, PathCellObject cell) {
+		var fingerprint = CellFingerprints.hashROI(settingsFingerprint, cell.getROI());
+		return CellFingerprints.hashROI(fingerprint, cell.getNucleusROI());
+	}
+
+	// Fingerprint of everything except the cell geometry that changes the measurements
+	private long getSettingsFingerprint(ImageData<BufferedImage> image) {
+		var hash = CellFingerprints.combine(0xcbf29ce484222325L, (long)FEATURE_SET_VERSION);
+		hash = CellFingerprints.combine(hash, (measureShape ? 1L : 0L) | (measureIntensity ? 2L : 0L) | (measureTexture ? 4L : 0L));
+		var calibration = image.getServer().getPixelCalibration();
+		hash = CellFingerprints.combine(hash, calibration.getPixelWidthMicrons());
+		hash = CellFingerprints.combine(hash, calibration.getPixelHeightMicrons());
+		hash = CellFingerprints.combine(hash, downsample);
+		// Sampled measurements are tagged differently
+		hash = CellFingerprints.combine(hash, sampleFraction);
+		var stains = createColorDeconvolutionStains();
+		for(var i = 1; i <= 2; ++i) {
+			var stain = stains.getStain(i);
+			hash = CellFingerprints.combine(hash, stain.getRed());
+			hash = CellFingerprints.combine(hash, stain.getGreen());
+			hash = CellFingerprints.combine(hash, stain.getBlue());
+		}
+		hash = CellFingerprints.combine(hash, stains.getMaxRed());
+		hash = CellFingerprints.combine(hash, stains.getMaxGreen());
+		hash = CellFingerprints.combine(hash, stains.getMaxBlue());
+		return hash;
+	}
+
+	// Names of the measurements produced by the stages, found by measuring a detached copy of one cell
+	private List<String> getMeasurementNames(List<Stage> stages, List<PathCellObject> cells, long settingsFingerprint) {
+		var names = fingerprints.getMeasurementNames(settingsFingerprint);
+		if(names != null || cells.isEmpty())
+			return names == null ? List.of() : names;
+
+		try {
+			var probeCell = new CellFeatureStore(cells.subList(0, 1)).createScratchCell(0);
+			for(var stage : stages)
+				stage.measurement.measure(probeCell);
+			names = probeCell.getMeasurementList().getMeasurementNames();
+			fingerprints.setMeasurementNames(settingsFingerprint, names);
+			return names;
+		} catch (Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Measure cells infos", e);
+		}
+	}
+
+	@FunctionalInterface
+	private interface CellMeasurement {
+		void measure(PathCellObject cell) throws Exception;
+	}
+
+	// Values of the features of a stage, in the order of its feature names
+	@FunctionalInterface
+	private interface FeatureMeasurement {
+		void measure(PathCellObject cell, double[] values) throws Exception;
+	}
+
+	private static class Stage {
+		private final String name;
+		private final CellMeasurement measurement;
+		// Stages computing their own features write them straight into the store columns, null for QuPath measurements
+		private final String[] featureNames;
+		private final FeatureMeasurement featureMeasurement;
+
+		Stage(String name, CellMeasurement measurement) {
+			this(name, measurement, null, null);
+		}
+
+		Stage(String name, String[] featureNames, FeatureMeasurement featureMeasurement) {
+			this(name, c -> {
+				var values = new double[featureNames.length];
+				featureMeasurement.measure(c, values);
+				var measurementList = c.getMeasurementList();
+				for(var i = 0; i < values.length; ++i)
+					measurementList.putMeasurement(featureNames[i], values[i]);
+			}, featureNames, featureMeasurement);
+		}
+
+		Stage(String name, CellMeasurement measurement, String[] featureNames, FeatureMeasurement featureMeasurement) {
+			this.name = name;
+			this.measurement = measurement;
+			this.featureNames = featureNames;
+			this.featureMeasurement = featureMeasurement;
+		}
+	}
+
+	private ColorDeconvolutionStains createColorDeconvolutionStains() {
+		var eosinStain = StainVector.makeDefaultStainVector(DefaultStains.EOSIN);
+		var hematoxylinStain = StainVector.makeDefaultStainVector(DefaultStains.HEMATOXYLIN);
+
+		return new ColorDeconvolutionStains("Color deconv", hematoxylinStain, eosinStain, 255, 255, 255);
+	}
+
+	private List<Stage> createStages(ImageData<BufferedImage> image) {
+		var stages = new ArrayList<Stage>();
 		if(measureShape) {
-			cells.parallelStream().forEach(c -> {
-				try {
-					ObjectMeasurements.addShapeMeasurements(c, image.getServer().getPixelCalibration());
-				} catch (Exception e) {
-					logger.error(e.getLocalizedMessage(), e);
-					throw new RuntimeException("Unable to run command: Measure cells infos", e);
-				}
-			});
+			stages.add(new Stage("Shape", c -> ObjectMeasurements.addShapeMeasurements(c, image.getServer().getPixelCalibration())));
 		}
 		if(measureIntensity) {
 			var measurements = Arrays.asList(
@@ -96,100 +504,240 @@ public class CellsInfoExtractor {
 					Compartments.CYTOPLASM
 					);
 
-			cells.parallelStream().forEach(c -> {
-				try {
-					ObjectMeasurements.addIntensityMeasurements(image.getServer(), c, 1, measurements, compartments);
-				} catch (IOException e) {
-					logger.error(e.getLocalizedMessage(), e);
-					throw new RuntimeException("Unable to run command: Measure cells infos", e);
-				}
-			});
-			
-			var eosinStain = StainVector.makeDefaultStainVector(DefaultStains.EOSIN);
-			var hematoxylinStain = StainVector.makeDefaultStainVector(DefaultStains.HEMATOXYLIN);
-			
-			var colorDeconvolutionStains = new ColorDeconvolutionStains("Color deconv", hematoxylinStain, eosinStain, 255, 255, 255);
-			var deconvolvedServer = new TransformedServerBuilder(image.getServer()).deconvolveStains(colorDeconvolutionStains, 1, 2).build();
-
-			cells.parallelStream().forEach(c -> {
+			stages.add(new Stage("Intensity", c -> ObjectMeasurements.addIntensityMeasurements(image.getServer(), c, downsample, measurements, compartments)));
+			stages.add(createStainIntensityStage(image.getServer()));
+		}
+		if(measureTexture) {
+			stages.add(createHaralickStage(image.getServer(), Compartments.NUCLEUS));
+			stages.add(createHaralickStage(image.getServer(), Compartments.CYTOPLASM));
+		}
+		// Tag exploratory results so they cannot be confused with full resolution ones
+		if(isFullResolution()) {
+			// Nothing to store, only tags left by a previous exploratory run on the cells are removed
+			stages.add(new Stage("Mode", c -> {
+				var measurementList = c.getMeasurementList();
+				if(measurementList.containsNamedMeasurement(MEASUREMENT_DOWNSAMPLE) || measurementList.containsNamedMeasurement(MEASUREMENT_SAMPLE_FRACTION))
+					measurementList.removeMeasurements(MEASUREMENT_DOWNSAMPLE, MEASUREMENT_SAMPLE_FRACTION);
+			}, new String[0], (c, values) -> {}));
+		} else {
+			stages.add(new Stage("Mode", new String[] {MEASUREMENT_DOWNSAMPLE, MEASUREMENT_SAMPLE_FRACTION}, (c, values) -> {
+				values[0] = downsample;
+				values[1] = sampleFraction;
+			}));
+		}
+		return stages;
+	}
+
+	/**
+	 * Measure the cell at row, either directly or in the store. Features computed by the stage are written in the
+	 * columns resolved once for the stage, QuPath measurements go through a scratch copy of the cell.
+	 */
+	private void measureCell(List<PathCellObject> cells, CellFeatureStore store, int row, Stage stage, int[] featureIndexes) throws Exception {
+		if(store == null) {
+			stage.measurement.measure(cells.get(row));
+			return;
+		}
+		if(stage.featureMeasurement != null) {
+			// The cell is only read, its measurement list is left untouched
+			var values = new double[featureIndexes.length];
+			stage.featureMeasurement.measure(cells.get(row), values);
+			for(var i = 0; i < values.length; ++i)
+				store.set(row, featureIndexes[i], values[i]);
+			return;
+		}
+		var scratchCell = store.createScratchCell(row);
+		stage.measurement.measure(scratchCell);
+		store.setAll(row, scratchCell.getMeasurementList());
+	}
+
+	private void extract(TaskExecutor taskExecutor, List<Stage> stages, List<PathCellObject> cells, int[] rows, CellFeatureStore store, Map<String, Long> stageTimes, AtomicBoolean cancelled) {
+		for(var stage : stages) {
+			var startTime = System.currentTimeMillis();
+			var featureIndexes = store != null && stage.featureNames != null ? store.getFeatureIndexes(stage.featureNames) : null;
+			taskExecutor.forEach(stage.name, rows.length, i -> {
 				try {
-					ObjectMeasurements.addIntensityMeasurements(deconvolvedServer, c, 1, measurements, compartments);
-				} catch (IOException e) {
+					measureCell(cells, store, rows[i], stage, featureIndexes);
+				} catch (Exception e) {
 					logger.error(e.getLocalizedMessage(), e);
 					throw new RuntimeException("Unable to run command: Measure cells infos", e);
 				}
-			});
-		}
-		if(measureTexture) {
-			computeHaralickFeatures(image.getServer(), cells, Compartments.NUCLEUS);
-			computeHaralickFeatures(image.getServer(), cells, Compartments.CYTOPLASM);
+			}, cancelled, progressListener);
+			stageTimes.put(stage.name, System.currentTimeMillis() - startTime);
 		}
 	}
 
-	private void computeHaralickFeatures(ImageServer<BufferedImage> server, Collection<PathCellObject> cells, Compartments compartment) {
-		assert(compartment == Compartments.NUCLEUS || compartment == Compartments.CYTOPLASM);
+	/**
+	 * Max, mean, median, min, standard deviation and variance of the hematoxylin and eosin in the nucleus and cytoplasm,
+	 * named as by ObjectMeasurements on a deconvolved server. The RGB region of the cell is deconvolved and
+	 * measured with the pixel kernels, instead of reading the region once per stain through a transformed server.
+	 */
+	private Stage createStainIntensityStage(ImageServer<BufferedImage> server) {
+		var colorDeconvolutionStains = createColorDeconvolutionStains();
+		var matrixInverse = colorDeconvolutionStains.getMatrixInverse();
+		var maxRed = colorDeconvolutionStains.getMaxRed();
+		var maxGreen = colorDeconvolutionStains.getMaxGreen();
+		var maxBlue = colorDeconvolutionStains.getMaxBlue();
+		var kernels = PixelKernels.getInstance();
 
-		var eosinStain = StainVector.makeDefaultStainVector(DefaultStains.EOSIN);
-		var hematoxylinStain = StainVector.makeDefaultStainVector(DefaultStains.HEMATOXYLIN);
-		
-		var colorDeconvolutionStains = new ColorDeconvolutionStains("Color deconv", hematoxylinStain, eosinStain, 255, 255, 255);
-
-		ImageServer<BufferedImage> deconvolvedServer;
-		if(compartment == Compartments.NUCLEUS)
-			// Use hematoxylin to compute haralick features for cytoplasm
-			deconvolvedServer = new TransformedServerBuilder(server).deconvolveStains(colorDeconvolutionStains, 1).build();
-		else
-			// Use eosin to compute haralick features for cytoplasm
-			deconvolvedServer = new TransformedServerBuilder(server).deconvolveStains(colorDeconvolutionStains, 2).build();
-
-		cells.parallelStream().forEach(c -> {
-			try {
-				RegionRequest regionRequest;
-				SimpleImage mask;
-				if(compartment == Compartments.NUCLEUS) {
-					regionRequest = RegionRequest.createInstance("nucleus roi", 1, c.getNucleusROI());
-					mask = getNucleusMask(c, regionRequest);
-				} else {
-					regionRequest = RegionRequest.createInstance("cell roi", 1, c.getROI());
-					mask = getCytoplasmMask(c, regionRequest);
-				}
+		// Measurement names by stain, compartment and statistic
+		var stainNames = new String[] {colorDeconvolutionStains.getStain(1).getName(), colorDeconvolutionStains.getStain(2).getName()};
+		var compartmentNames = new String[] {"Nucleus", "Cytoplasm"};
+		var statisticNames = new String[] {"Max", "Mean", "Median", "Min", "Std.Dev.", "Variance"};
+		var names = new String[stainNames.length * compartmentNames.length * statisticNames.length];
+		var k = 0;
+		for(var stain = 0; stain < stainNames.length; ++stain) {
+			for(var compartment = 0; compartment < compartmentNames.length; ++compartment) {
+				for(var statistic = 0; statistic < statisticNames.length; ++statistic)
+					names[k++] = stainNames[stain] + ": " + compartmentNames[compartment] + ": " + statisticNames[statistic];
+			}
+		}
+
+		return new Stage("Deconvolved intensity", names, (c, values) -> {
+			var regionRequest = RegionRequest.createInstance(server.getPath(), downsample, c.getROI());
+			var image = server.readBufferedImage(regionRequest);
+			var width = image.getWidth();
+			var height = image.getHeight();
+			var n = width * height;
+			var rgb = image.getRGB(0, 0, width, height, null, 0, width);
+			var odRed = new float[n];
+			var odGreen = new float[n];
+			var odBlue = new float[n];
+			kernels.opticalDensity(rgb, n, maxRed, maxGreen, maxBlue, odRed, odGreen, odBlue);
 
-				var image = deconvolvedServer.readBufferedImage(regionRequest);
-				var imageMat = OpenCVTools.imageToMat(image);
-				var simpleImage = OpenCVTools.matToSimpleImage(imageMat, 0);
-
-				var minVal = 0;//server.getPixelType().getLowerBound().doubleValue();
-				var maxVal = 1;//server.getPixelType().getUpperBound().doubleValue();
-
-				var features = HaralickFeatureComputer.measureHaralick(simpleImage, mask, 256, minVal, maxVal, 1);
-				for (var i = 0; i < features.nFeatures(); ++i) {
-					String measureName;
-					if(compartment == Compartments.NUCLEUS)
-						measureName = "Nucleus: " + features.getFeatureName(i);
-					else
-						measureName = "Cytoplasm: " + features.getFeatureName(i);
-					c.getMeasurementList().addMeasurement(measureName, features.getFeature(i));
+			// Cytoplasm pixels are the cell pixels out of the nucleus
+			var nucleusMask = toBooleanMask(BufferedImageTools.createROIMask(width, height, c.getNucleusROI(), regionRequest.getX(), regionRequest.getY(), downsample));
+			var cytoplasmMask = toBooleanMask(BufferedImageTools.createROIMask(width, height, c.getROI(), regionRequest.getX(), regionRequest.getY(), downsample));
+			for(var i = 0; i < n; ++i)
+				cytoplasmMask[i] &= !nucleusMask[i];
+			var masks = new boolean[][] {nucleusMask, cytoplasmMask};
+
+			var pixels = new float[n];
+			var feature = 0;
+			for(var stain = 0; stain < stainNames.length; ++stain) {
+				kernels.deconvolve(odRed, odGreen, odBlue, n, matrixInverse, stain, pixels);
+				for(var mask : masks) {
+					var statistics = getIntensityStatistics(kernels, pixels, mask, n);
+					System.arraycopy(statistics, 0, values, feature, statistics.length);
+					feature += statistics.length;
 				}
-			} catch (IOException e) {
-				logger.error(e.getLocalizedMessage(), e);
-				throw new RuntimeException("Unable to run command: Measure cells infos", e);
 			}
+		});
+	}
+
+	// Max, mean, median, min, standard deviation and variance of the masked pixels, NaN without pixels
+	private static double[] getIntensityStatistics(PixelKernels kernels, float[] pixels, boolean[] mask, int n) {
+		var statistics = kernels.maskedStatistics(pixels, mask, n);
+		var count = statistics[PixelKernels.STAT_COUNT];
+		var mean = statistics[PixelKernels.STAT_SUM] / count;
+		// Sample variance, as the standard deviation of the aggregated duct features
+		var variance = count > 1 ? Math.max(0, (statistics[PixelKernels.STAT_SUM_SQUARES] - count * mean * mean) / (count - 1)) : Double.NaN;
+
+		var median = Double.NaN;
+		if(count > 0) {
+			var values = new float[(int)count];
+			var k = 0;
+			for(var i = 0; i < n; ++i) {
+				if(mask[i])
+					values[k++] = pixels[i];
+			}
+			Arrays.sort(values);
+			var middle = values.length / 2;
+			median = values.length % 2 == 1 ? values[middle] : (values[middle - 1] + (double)values[middle]) / 2;
+		}
+		return new double[] {statistics[PixelKernels.STAT_MAX], mean, median, statistics[PixelKernels.STAT_MIN], Math.sqrt(variance), variance};
+	}
+
+	private static boolean[] toBooleanMask(BufferedImage mask) {
+		var pixels = mask.getRaster().getSamples(0, 0, mask.getWidth(), mask.getHeight(), 0, (int[])null);
+		var booleanMask = new boolean[pixels.length];
+		for(var i = 0; i < pixels.length; ++i)
+			booleanMask[i] = pixels[i] != 0;
+		return booleanMask;
+	}
+
+	private Stage createHaralickStage(ImageServer<BufferedImage> server, Compartments compartment) {
+		assert(compartment == Compartments.NUCLEUS || compartment == Compartments.CYTOPLASM);
+
+		var colorDeconvolutionStains = createColorDeconvolutionStains();
+		var matrixInverse = colorDeconvolutionStains.getMatrixInverse();
+		var maxRed = colorDeconvolutionStains.getMaxRed();
+		var maxGreen = colorDeconvolutionStains.getMaxGreen();
+		var maxBlue = colorDeconvolutionStains.getMaxBlue();
+		var kernels = PixelKernels.getInstance();
+
+		// Use hematoxylin to compute haralick features for nucleus and eosin for cytoplasm
+		var stain = compartment == Compartments.NUCLEUS ? 0 : 1;
+
+		// Feature names do not depend on the pixels, they are read once from the features of a small gradient
+		var probeSize = 4;
+		var probePixels = new float[probeSize * probeSize];
+		var probeMask = new float[probePixels.length];
+		for(var i = 0; i < probePixels.length; ++i) {
+			probePixels[i] = (float)i / probePixels.length;
+			probeMask[i] = 1;
+		}
+		var probeFeatures = HaralickFeatureComputer.measureHaralick(SimpleImages.createFloatImage(probePixels, probeSize, probeSize), SimpleImages.createFloatImage(probeMask, probeSize, probeSize), 256, 0, 1, 1);
+		var names = new String[probeFeatures.nFeatures()];
+		for (var i = 0; i < names.length; ++i) {
+			if(compartment == Compartments.NUCLEUS)
+				names[i] = "Nucleus: " + probeFeatures.getFeatureName(i);
+			else
+				names[i] = "Cytoplasm: " + probeFeatures.getFeatureName(i);
+		}
+
+		var stage = compartment == Compartments.NUCLEUS ? "Nucleus texture" : "Cytoplasm texture";
+		return new Stage(stage, names, (c, values) -> {
+			RegionRequest regionRequest;
+			if(compartment == Compartments.NUCLEUS)
+				regionRequest = RegionRequest.createInstance("nucleus roi", downsample, c.getNucleusROI());
+			else
+				regionRequest = RegionRequest.createInstance("cell roi", downsample, c.getROI());
 
+			// Deconvolve the RGB region directly instead of going through a transformed server
+			var image = server.readBufferedImage(regionRequest);
+			var width = image.getWidth();
+			var height = image.getHeight();
+			var n = width * height;
+			var rgb = image.getRGB(0, 0, width, height, null, 0, width);
+			var odRed = new float[n];
+			var odGreen = new float[n];
+			var odBlue = new float[n];
+			var pixels = new float[n];
+			kernels.opticalDensity(rgb, n, maxRed, maxGreen, maxBlue, odRed, odGreen, odBlue);
+			kernels.deconvolve(odRed, odGreen, odBlue, n, matrixInverse, stain, pixels);
+			var simpleImage = SimpleImages.createFloatImage(pixels, width, height);
+
+			SimpleImage mask;
+			if(compartment == Compartments.NUCLEUS)
+				mask = getNucleusMask(c, regionRequest, width, height);
+			else
+				mask = getCytoplasmMask(c, regionRequest, width, height);
+
+			var minVal = 0;//server.getPixelType().getLowerBound().doubleValue();
+			var maxVal = 1;//server.getPixelType().getUpperBound().doubleValue();
+
+			var features = HaralickFeatureComputer.measureHaralick(simpleImage, mask, 256, minVal, maxVal, 1);
+			for (var i = 0; i < values.length; ++i) {
+				values[i] = features.getFeature(i);
+			}
 		});
 	}
 
-	private SimpleImage getNucleusMask(PathCellObject cell, RegionRequest regionRequest) {
-		var mask = BufferedImageTools.createROIMask(regionRequest.getWidth(), regionRequest.getHeight(), cell.getNucleusROI(), regionRequest.getX(), regionRequest.getY(), 1);
-		var mat = OpenCVTools.imageToMat(mask);
+	private SimpleImage getNucleusMask(PathCellObject cell, RegionRequest regionRequest, int width, int height) {
+		var mask = BufferedImageTools.createROIMask(width, height, cell.getNucleusROI(), regionRequest.getX(), regionRequest.getY(), regionRequest.getDownsample());
 
-		return OpenCVTools.matToSimpleImage(mat, 0);
+		return toSimpleImage(mask);
 	}
 
-	private SimpleImage getCytoplasmMask(PathCellObject cell, RegionRequest regionRequest) {
+	private SimpleImage getCytoplasmMask(PathCellObject cell, RegionRequest regionRequest, int width, int height) {
 		var cytoplasmROI = RoiTools.combineROIs(cell.getROI(), cell.getNucleusROI(), RoiTools.CombineOp.SUBTRACT);
-		var mask = BufferedImageTools.createROIMask(regionRequest.getWidth(), regionRequest.getHeight(), cytoplasmROI, regionRequest.getX(), regionRequest.getY(), 1);
-		var mat = OpenCVTools.imageToMat(mask);
+		var mask = BufferedImageTools.createROIMask(width, height, cytoplasmROI, regionRequest.getX(), regionRequest.getY(), regionRequest.getDownsample());
+
+		return toSimpleImage(mask);
+	}
 
-		return OpenCVTools.matToSimpleImage(mat, 0);
+	private static SimpleImage toSimpleImage(BufferedImage mask) {
+		var pixels = mask.getRaster().getSamples(0, 0, mask.getWidth(), mask.getHeight(), 0, (float[])null);
+		return SimpleImages.createFloatImage(pixels, mask.getWidth(), mask.getHeight());
 	}
 }
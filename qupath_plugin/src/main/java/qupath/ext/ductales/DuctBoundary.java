@@ -0,0 +1,124 @@
+package qupath.ext.ductales;
+
+import java.util.stream.IntStream;
+
+import qupath.ext.ductales.utils.EllipseFit;
+import qupath.lib.analysis.features.ObjectMeasurements;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClassFactory;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Hole or perimeter of a duct, as the nucleus centroids of its boundary cells in walk order (pixels).
+ * <p>
+ * Area, solidity and elongation are computed on the coordinates, the annotation is only built by {@link #toPathObject(PixelCalibration)}.
+ */
+public class DuctBoundary {
+	private final double[] xs;
+	private final double[] ys;
+	private final boolean isHole;
+	private final int parentId;
+
+	DuctBoundary(double[] xs, double[] ys, boolean isHole, int parentId) {
+		this.xs = xs;
+		this.ys = ys;
+		this.isHole = isHole;
+		this.parentId = parentId;
+	}
+
+	public int size() {
+		return xs.length;
+	}
+
+	public double getX(int i) {
+		return xs[i];
+	}
+
+	public double getY(int i) {
+		return ys[i];
+	}
+
+	public boolean isHole() {
+		return isHole;
+	}
+
+	// Index of the duct of the boundary
+	public int getParentId() {
+		return parentId;
+	}
+
+	// Shoelace area in pixels^2
+	public double getArea() {
+		return Math.abs(getSignedArea(xs, ys, xs.length));
+	}
+
+	// Area over the area of the convex hull, as PolygonROI.getSolidity
+	public double getSolidity() {
+		return getArea() / getConvexHullArea();
+	}
+
+	// 1 - minor axis / major axis of the fitted ellipse, NaN if the boundary is not elliptic (less than 5 cells)
+	public double getElongation() {
+		return EllipseFit.fit(xs, ys, xs.length, null);
+	}
+
+	/**
+	 * Area of the convex hull (Andrew's monotone chain), in pixels^2.
+	 */
+	public double getConvexHullArea() {
+		var n = xs.length;
+		if(n < 3)
+			return 0;
+		var order = IntStream.range(0, n).boxed().sorted((i, j) -> {
+			var compare = Double.compare(xs[i], xs[j]);
+			return compare != 0 ? compare : Double.compare(ys[i], ys[j]);
+		}).mapToInt(i -> i).toArray();
+
+		var hullXs = new double[2 * n];
+		var hullYs = new double[2 * n];
+		var size = 0;
+		// Lower hull then upper hull, the last point of each is the first of the other
+		for(var pass = 0; pass < 2; ++pass) {
+			var start = size;
+			for(var k = 0; k < n; ++k) {
+				var i = pass == 0 ? order[k] : order[n-1-k];
+				while(size >= start + 2 && cross(hullXs[size-2], hullYs[size-2], hullXs[size-1], hullYs[size-1], xs[i], ys[i]) <= 0)
+					size--;
+				hullXs[size] = xs[i];
+				hullYs[size] = ys[i];
+				size++;
+			}
+			size--;
+		}
+		return Math.abs(getSignedArea(hullXs, hullYs, size));
+	}
+
+	public PathObject toPathObject(PixelCalibration calibration) {
+		var annotation = PathObjects.createAnnotationObject(ROIs.createPolygonROI(xs, ys, ImagePlane.getDefaultPlane()));
+		if(isHole)
+			annotation.setPathClass(PathClassFactory.getPathClass("Hole"));
+		else
+			annotation.setPathClass(PathClassFactory.getPathClass("Perimeter"));
+
+		annotation.getMeasurementList().putMeasurement("parent id", parentId);
+		annotation.getMeasurementList().putMeasurement("Elongation", getElongation());
+		ObjectMeasurements.addShapeMeasurements(annotation, calibration);
+		return annotation;
+	}
+
+	private static double cross(double ox, double oy, double ax, double ay, double bx, double by) {
+		return (ax - ox) * (by - oy) - (ay - oy) * (bx - ox);
+	}
+
+	private static double getSignedArea(double[] xs, double[] ys, int n) {
+		var area = 0.0;
+		for(var i = 0; i < n; ++i) {
+			var j = (i + 1) % n;
+			area += xs[i] * ys[j] - xs[j] * ys[i];
+		}
+		return area / 2;
+	}
+}
@@ -0,0 +1,175 @@
+package qupath.ext.ductales;
+
+import java.util.Arrays;
+
+import qupath.ext.ductales.utils.UnionFind;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Single-linkage dendrogram of the cells, built once from the Delaunay edges sorted by boundary distance.
+ * <p>
+ * Duct clusters for any max distance and min cell size are replayed from the merges, without
+ * a new triangulation. Used to choose the duct structure parameters and to preview the clusters.
+ */
+public class DuctClusterSweep {
+	private final DuctGraph graph;
+	// Merges in distance order, as the two merged cells and the edge distance
+	private final int[] mergeSources;
+	private final int[] mergeTargets;
+	private final double[] mergeDistances;
+
+	public DuctClusterSweep(DuctGraph graph) {
+		this.graph = graph;
+		var unionFind = new UnionFind(graph.size());
+		var sources = new int[Math.max(graph.size() - 1, 0)];
+		var targets = new int[sources.length];
+		var distances = new double[sources.length];
+		var nMerges = 0;
+		for(var e = 0; e < graph.nEdges() && nMerges < sources.length; ++e) {
+			if(unionFind.union(graph.getEdgeSource(e), graph.getEdgeTarget(e)) < 0)
+				continue;
+			sources[nMerges] = graph.getEdgeSource(e);
+			targets[nMerges] = graph.getEdgeTarget(e);
+			distances[nMerges] = graph.getEdgeDistance(e);
+			nMerges++;
+		}
+		mergeSources = Arrays.copyOf(sources, nMerges);
+		mergeTargets = Arrays.copyOf(targets, nMerges);
+		mergeDistances = Arrays.copyOf(distances, nMerges);
+	}
+
+	public int nCells() {
+		return graph.size();
+	}
+
+	public PathObject getCell(int id) {
+		return graph.getCell(id);
+	}
+
+	public int nMerges() {
+		return mergeDistances.length;
+	}
+
+	// Largest distance of the triangulation edges kept by the sweep
+	public double getMaxDistance() {
+		return mergeDistances.length == 0 ? 0 : mergeDistances[mergeDistances.length-1];
+	}
+
+	/**
+	 * Duct label of each cell for a max distance and min cell size, -1 for cells not in a duct.
+	 * Labels are numbered from 0 in cell order.
+	 */
+	public int[] labelsAt(double maxDistance, int minCellSize) {
+		return replay(maxDistance).getLabels(minCellSize);
+	}
+
+	public int countDucts(double maxDistance, int minCellSize) {
+		var unionFind = replay(maxDistance);
+		var count = 0;
+		for(var i = 0; i < graph.size(); ++i) {
+			if(unionFind.find(i) == i && unionFind.getSetSize(i) >= minCellSize)
+				count++;
+		}
+		return count;
+	}
+
+	private UnionFind replay(double maxDistance) {
+		var unionFind = new UnionFind(graph.size());
+		for(var k = 0; k < mergeDistances.length && mergeDistances[k] <= maxDistance; ++k)
+			unionFind.union(mergeSources[k], mergeTargets[k]);
+		return unionFind;
+	}
+
+	/**
+	 * Number of ducts and of cells in ducts for each pair of max distance and min cell size,
+	 * computed in a single pass over the merges.
+	 */
+	public SweepTable sweep(double[] maxDistances, int[] minCellSizes) {
+		var distances = maxDistances.clone();
+		Arrays.sort(distances);
+		var nDucts = new int[distances.length][minCellSizes.length];
+		var nCellsInDucts = new int[distances.length][minCellSizes.length];
+
+		// Current counts for each min cell size, all cells start alone
+		var currentDucts = new int[minCellSizes.length];
+		var currentCells = new int[minCellSizes.length];
+		for(var m = 0; m < minCellSizes.length; ++m) {
+			if(minCellSizes[m] <= 1) {
+				currentDucts[m] = graph.size();
+				currentCells[m] = graph.size();
+			}
+		}
+		var unionFind = new UnionFind(graph.size());
+		var k = 0;
+		for(var d = 0; d < distances.length; ++d) {
+			for(; k < mergeDistances.length && mergeDistances[k] <= distances[d]; ++k) {
+				var size1 = unionFind.getSetSize(mergeSources[k]);
+				var size2 = unionFind.getSetSize(mergeTargets[k]);
+				unionFind.union(mergeSources[k], mergeTargets[k]);
+				var size = size1 + size2;
+				for(var m = 0; m < minCellSizes.length; ++m) {
+					var minCellSize = minCellSizes[m];
+					if(size1 >= minCellSize) {
+						currentDucts[m]--;
+						currentCells[m] -= size1;
+					}
+					if(size2 >= minCellSize) {
+						currentDucts[m]--;
+						currentCells[m] -= size2;
+					}
+					if(size >= minCellSize) {
+						currentDucts[m]++;
+						currentCells[m] += size;
+					}
+				}
+			}
+			nDucts[d] = currentDucts.clone();
+			nCellsInDucts[d] = currentCells.clone();
+		}
+		return new SweepTable(distances, minCellSizes.clone(), nDucts, nCellsInDucts);
+	}
+
+	public static class SweepTable {
+		private final double[] maxDistances;
+		private final int[] minCellSizes;
+		private final int[][] nDucts;
+		private final int[][] nCellsInDucts;
+
+		private SweepTable(double[] maxDistances, int[] minCellSizes, int[][] nDucts, int[][] nCellsInDucts) {
+			this.maxDistances = maxDistances;
+			this.minCellSizes = minCellSizes;
+			this.nDucts = nDucts;
+			this.nCellsInDucts = nCellsInDucts;
+		}
+
+		public double[] getMaxDistances() {
+			return maxDistances.clone();
+		}
+
+		public int[] getMinCellSizes() {
+			return minCellSizes.clone();
+		}
+
+		public int getNumberOfDucts(int distanceIndex, int minCellSizeIndex) {
+			return nDucts[distanceIndex][minCellSizeIndex];
+		}
+
+		public int getNumberOfCellsInDucts(int distanceIndex, int minCellSizeIndex) {
+			return nCellsInDucts[distanceIndex][minCellSizeIndex];
+		}
+
+		// Tab separated table, one row per max distance and one column per min cell size (ducts / cells)
+		@Override
+		public String toString() {
+			var builder = new StringBuilder("Max distance");
+			for(var minCellSize : minCellSizes)
+				builder.append("\tMin size ").append(minCellSize);
+			for(var d = 0; d < maxDistances.length; ++d) {
+				builder.append("\n").append(maxDistances[d]);
+				for(var m = 0; m < minCellSizes.length; ++m)
+					builder.append("\t").append(nDucts[d][m]).append(" / ").append(nCellsInDucts[d][m]);
+			}
+			return builder.toString();
+		}
+	}
+}
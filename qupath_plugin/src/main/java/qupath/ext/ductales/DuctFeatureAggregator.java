@@ -0,0 +1,151 @@
+package qupath.ext.ductales;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.ductales.utils.DuctalesConstants;
+import qupath.ext.ductales.utils.TDigest;
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Duct-level statistics of child-cell measurements, written on the duct annotations.
+ * <p>
+ * Each duct is aggregated in a single pass over its cells, ducts in parallel: mean and SD with Welford's algorithm,
+ * quantiles with a {@link TDigest}. For a feature "F", a duct gets "Cells: F mean", "Cells: F SD" and "Cells: F P50"
+ * for the quantile 0.5. Cells without the measurement (NaN) are skipped.
+ */
+public class DuctFeatureAggregator {
+	private final static Logger logger = LoggerFactory.getLogger(DuctFeatureAggregator.class);
+	private String[] features;
+	private double[] quantiles;
+	private double compression;
+	private int parallelism;
+
+	public DuctFeatureAggregator() {
+		// Set default values
+		features(DuctalesConstants.DEFAULT_DUCT_AGGREGATED_FEATURES);
+		quantiles(DuctalesConstants.DEFAULT_DUCT_AGGREGATED_QUANTILES);
+		compression(DuctalesConstants.DEFAULT_DUCT_AGGREGATION_COMPRESSION);
+		parallelism(DuctalesConstants.DEFAULT_PARALLELISM);
+	}
+
+	// Names of the cell measurements to aggregate
+	public DuctFeatureAggregator features(String[] features) {
+		try {
+			this.features = features.clone();
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Aggregate duct features", e);
+		}
+	}
+
+	// Quantiles between 0 and 1
+	public DuctFeatureAggregator quantiles(double[] quantiles) {
+		try {
+			this.quantiles = quantiles.clone();
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Aggregate duct features", e);
+		}
+	}
+
+	// t-digest compression, quantiles are exact for ducts of up to about 10 * compression cells
+	public DuctFeatureAggregator compression(double compression) {
+		try {
+			this.compression = compression;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Aggregate duct features", e);
+		}
+	}
+
+	public DuctFeatureAggregator parallelism(int parallelism) {
+		try {
+			this.parallelism = parallelism;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Aggregate duct features", e);
+		}
+	}
+
+	public boolean isEmpty() {
+		return features.length == 0;
+	}
+
+	public void aggregate(Collection<? extends PathObject> ducts) {
+		try(var taskExecutor = new TaskExecutor("ductales-aggregate", parallelism)) {
+			var ductList = new ArrayList<PathObject>(ducts);
+			var ductChildren = new ArrayList<List<PathObject>>(ductList.size());
+			for(var duct : ductList)
+				ductChildren.add(new ArrayList<>(duct.getChildObjects()));
+			aggregate(taskExecutor, ductList, ductChildren, null, null);
+		}
+	}
+
+	// The cells of each duct are given separately, as a computed duct has no children until it is added to the hierarchy
+	void aggregate(TaskExecutor taskExecutor, List<? extends PathObject> ducts, List<? extends List<PathObject>> ductChildren, AtomicBoolean cancelled, TaskExecutor.ProgressListener progressListener) {
+		if(isEmpty())
+			return;
+		var names = new String[features.length][2 + quantiles.length];
+		for(var f = 0; f < features.length; ++f) {
+			names[f][0] = "Cells: " + features[f] + " mean";
+			names[f][1] = "Cells: " + features[f] + " SD";
+			for(var q = 0; q < quantiles.length; ++q)
+				names[f][2+q] = "Cells: " + features[f] + " P" + formatPercent(quantiles[q]);
+		}
+
+		taskExecutor.forEach("Aggregate duct features", ducts.size(), ductIndex -> {
+			var duct = ducts.get(ductIndex);
+			var counts = new long[features.length];
+			var means = new double[features.length];
+			var squaredDeviations = new double[features.length];
+			var digests = new TDigest[features.length];
+			for(var f = 0; f < features.length; ++f)
+				digests[f] = new TDigest(compression);
+
+			for(var child : ductChildren.get(ductIndex)) {
+				if(!child.isCell())
+					continue;
+				var measurements = child.getMeasurementList();
+				for(var f = 0; f < features.length; ++f) {
+					var value = measurements.getMeasurementValue(features[f]);
+					if(Double.isNaN(value))
+						continue;
+					// Welford update
+					counts[f]++;
+					var delta = value - means[f];
+					means[f] += delta / counts[f];
+					squaredDeviations[f] += delta * (value - means[f]);
+					digests[f].add(value);
+				}
+			}
+
+			var measurements = duct.getMeasurementList();
+			for(var f = 0; f < features.length; ++f) {
+				var n = counts[f];
+				measurements.putMeasurement(names[f][0], n > 0 ? means[f] : Double.NaN);
+				measurements.putMeasurement(names[f][1], n > 1 ? Math.sqrt(squaredDeviations[f] / (n - 1)) : Double.NaN);
+				for(var q = 0; q < quantiles.length; ++q)
+					measurements.putMeasurement(names[f][2+q], digests[f].quantile(quantiles[q]));
+			}
+		}, cancelled, progressListener);
+	}
+
+	// 0.5 -> "50", 0.025 -> "2.5"
+	private static String formatPercent(double quantile) {
+		var percent = Math.round(quantile * 1e6) / 1e4;
+		if(percent == Math.rint(percent))
+			return Long.toString((long)percent);
+		return Double.toString(percent);
+	}
+}
@@ -0,0 +1,438 @@
+package qupath.ext.ductales;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.locationtech.jts.geom.Geometry;
+
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+
+/**
+ * Cells of a duct structure computation mapped to dense int ids, with neighbor graphs stored as CSR arrays.
+ * <p>
+ * Ids are assigned once per computation, so boundary walks and traversals run over primitive arrays
+ * instead of object maps. Delaunay edges are measured once and sorted by boundary distance, so the
+ * neighbors at every distance threshold share the same arrays. Cells can also be assigned to ducts, giving each cell its duct and its index in the duct.
+ * Nucleus centroids are read once into primitive arrays, used by all the geometric predicates.
+ */
+public class DuctGraph {
+	private final PathObject[] cells;
+	private final Map<PathObject, Integer> ids;
+	private final double[] xs;
+	private final double[] ys;
+	private int[] ductOf;
+	private int[] indexInDuct;
+	private int[] edgeSources = new int[0];
+	private int[] edgeTargets = new int[0];
+	private double[] edgeDistances = new double[0];
+
+	public DuctGraph(Collection<? extends PathObject> cells) {
+		this.cells = cells.toArray(new PathObject[0]);
+		ids = new HashMap<>(this.cells.length * 2);
+		xs = new double[this.cells.length];
+		ys = new double[this.cells.length];
+		for(var i = 0; i < this.cells.length; ++i) {
+			ids.put(this.cells[i], i);
+			var nucleus = PathObjectTools.getROI(this.cells[i], true);
+			xs[i] = nucleus.getCentroidX();
+			ys[i] = nucleus.getCentroidY();
+		}
+		ductOf = new int[this.cells.length];
+		indexInDuct = new int[this.cells.length];
+		Arrays.fill(ductOf, -1);
+		Arrays.fill(indexInDuct, -1);
+	}
+
+	public int size() {
+		return cells.length;
+	}
+
+	public PathObject getCell(int id) {
+		return cells[id];
+	}
+
+	// Nucleus centroid
+	public double getX(int id) {
+		return xs[id];
+	}
+
+	public double getY(int id) {
+		return ys[id];
+	}
+
+	// Id of a cell, -1 if the cell is not in the graph
+	public int getId(PathObject cell) {
+		var id = ids.get(cell);
+		return id == null ? -1 : id;
+	}
+
+	public int[] getIds(Collection<? extends PathObject> cells) {
+		var result = new int[cells.size()];
+		var i = 0;
+		for(var cell : cells)
+			result[i++] = getId(cell);
+		return result;
+	}
+
+	/**
+	 * Assign cells to ducts, the duct index is the position in the list.
+	 * Cells not in any duct keep -1 as duct.
+	 */
+	public void setDucts(List<int[]> ducts) {
+		Arrays.fill(ductOf, -1);
+		Arrays.fill(indexInDuct, -1);
+		for(var d = 0; d < ducts.size(); ++d) {
+			var ductCells = ducts.get(d);
+			for(var i = 0; i < ductCells.length; ++i) {
+				ductOf[ductCells[i]] = d;
+				indexInDuct[ductCells[i]] = i;
+			}
+		}
+	}
+
+	public int getDuct(int id) {
+		return ductOf[id];
+	}
+
+	public int getIndexInDuct(int id) {
+		return indexInDuct[id];
+	}
+
+	public boolean isInDuct(int id, int duct) {
+		return ductOf[id] == duct;
+	}
+
+	/**
+	 * Compute the boundary distance of each Delaunay edge once and keep the edges up to maxDistance, sorted by distance.
+	 * The neighbors at any distance threshold are then a prefix of the sorted edges.
+	 * Distances are between nucleus geometries, as with DelaunayTools.boundaryDistancePredicate(distance, true).
+	 */
+	public void computeEdges(TaskExecutor taskExecutor, Map<PathObject, List<PathObject>> neighbors, double maxDistance, AtomicBoolean cancelled, TaskExecutor.ProgressListener progressListener) {
+		// Each edge is kept once from its smallest id
+		var nCandidates = 0;
+		for(var i = 0; i < cells.length; ++i) {
+			for(var neighbor : neighbors.getOrDefault(cells[i], Collections.emptyList())) {
+				if(getId(neighbor) > i)
+					nCandidates++;
+			}
+		}
+		var candidateEdges = new long[nCandidates];
+		var k = 0;
+		for(var i = 0; i < cells.length; ++i) {
+			for(var neighbor : neighbors.getOrDefault(cells[i], Collections.emptyList())) {
+				var id = getId(neighbor);
+				if(id > i)
+					candidateEdges[k++] = packEdge(i, id);
+			}
+		}
+		computeEdges(taskExecutor, candidateEdges, maxDistance, cancelled, progressListener);
+	}
+
+	/**
+	 * Same as {@link #computeEdges(TaskExecutor, Map, double, AtomicBoolean, TaskExecutor.ProgressListener)} from Delaunay edges
+	 * packed by {@link #packEdge(int, int)}, each edge once with its smallest id as source.
+	 */
+	void computeEdges(TaskExecutor taskExecutor, long[] candidateEdges, double maxDistance, AtomicBoolean cancelled, TaskExecutor.ProgressListener progressListener) {
+		// Candidate edges by source, in CSR layout keeping the order of the packed edges
+		var candidateOffsets = new int[cells.length + 1];
+		for(var edge : candidateEdges)
+			candidateOffsets[getPackedSource(edge)+1]++;
+		for(var i = 0; i < cells.length; ++i)
+			candidateOffsets[i+1] += candidateOffsets[i];
+		var candidateTargets = new int[candidateEdges.length];
+		var positions = Arrays.copyOf(candidateOffsets, cells.length);
+		for(var edge : candidateEdges)
+			candidateTargets[positions[getPackedSource(edge)]++] = getPackedTarget(edge);
+
+		var geometries = new Geometry[cells.length];
+		taskExecutor.forEach("Nucleus geometries", cells.length, i -> {
+			geometries[i] = PathObjectTools.getROI(cells[i], true).getGeometry();
+		}, cancelled, progressListener);
+		var distances = new double[candidateTargets.length];
+		taskExecutor.forEach("Delaunay edges", cells.length, i -> {
+			for(var e = candidateOffsets[i]; e < candidateOffsets[i+1]; ++e) {
+				var geometry = geometries[i];
+				var neighborGeometry = geometries[candidateTargets[e]];
+				// Skip the exact distance for edges that can not be kept
+				if(geometry.getEnvelopeInternal().distance(neighborGeometry.getEnvelopeInternal()) > maxDistance)
+					distances[e] = Double.POSITIVE_INFINITY;
+				else
+					distances[e] = geometry.distance(neighborGeometry);
+			}
+		}, cancelled, progressListener);
+
+		var nEdges = 0;
+		for(var distance : distances) {
+			if(distance <= maxDistance)
+				nEdges++;
+		}
+		var sources = new int[nEdges];
+		var targets = new int[nEdges];
+		var keptDistances = new double[nEdges];
+		var k = 0;
+		for(var i = 0; i < cells.length; ++i) {
+			for(var e = candidateOffsets[i]; e < candidateOffsets[i+1]; ++e) {
+				if(distances[e] <= maxDistance) {
+					sources[k] = i;
+					targets[k] = candidateTargets[e];
+					keptDistances[k] = distances[e];
+					k++;
+				}
+			}
+		}
+		var order = sortByDistance(keptDistances);
+		edgeSources = new int[nEdges];
+		edgeTargets = new int[nEdges];
+		edgeDistances = new double[nEdges];
+		for(var i = 0; i < nEdges; ++i) {
+			edgeSources[i] = sources[order[i]];
+			edgeTargets[i] = targets[order[i]];
+			edgeDistances[i] = keptDistances[order[i]];
+		}
+	}
+
+	// Edge between two ids packed in a long, source in the high bits
+	static long packEdge(int source, int target) {
+		return ((long)source << 32) | target;
+	}
+
+	static int getPackedSource(long edge) {
+		return (int)(edge >>> 32);
+	}
+
+	static int getPackedTarget(long edge) {
+		return (int)edge;
+	}
+
+	// Bottom-up merge sort of the edge indices by distance
+	private static int[] sortByDistance(double[] distances) {
+		var n = distances.length;
+		var order = new int[n];
+		for(var i = 0; i < n; ++i)
+			order[i] = i;
+		var buffer = new int[n];
+		for(var width = 1; width < n; width *= 2) {
+			for(var low = 0; low < n; low += 2 * width) {
+				var middle = Math.min(low + width, n);
+				var high = Math.min(low + 2 * width, n);
+				var i = low;
+				var j = middle;
+				var k = low;
+				while(i < middle && j < high)
+					buffer[k++] = distances[order[j]] < distances[order[i]] ? order[j++] : order[i++];
+				while(i < middle)
+					buffer[k++] = order[i++];
+				while(j < high)
+					buffer[k++] = order[j++];
+			}
+			var swap = order;
+			order = buffer;
+			buffer = swap;
+		}
+		return order;
+	}
+
+	// Edges sorted by boundary distance
+	public int nEdges() {
+		return edgeDistances.length;
+	}
+
+	public int getEdgeSource(int edge) {
+		return edgeSources[edge];
+	}
+
+	public int getEdgeTarget(int edge) {
+		return edgeTargets[edge];
+	}
+
+	public double getEdgeDistance(int edge) {
+		return edgeDistances[edge];
+	}
+
+	// Number of edges with a boundary distance up to maxDistance, the length of the sorted edges prefix
+	public int countEdges(double maxDistance) {
+		return countEdges(edgeDistances, maxDistance);
+	}
+
+	private static int countEdges(double[] sortedDistances, double maxDistance) {
+		var low = 0;
+		var high = sortedDistances.length;
+		while(low < high) {
+			var middle = (low + high) >>> 1;
+			if(sortedDistances[middle] <= maxDistance)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Adjacency of all the computed edges in CSR layout. Neighbors of each cell are sorted by ascending angle
+	 * around the cell nucleus, once, so the faces of the (planar) graph can be walked with constant time lookups.
+	 * Use {@link Adjacency#withMaxDistance(double)} to get the neighbors at a distance threshold.
+	 */
+	public Adjacency createAdjacency() {
+		var offsets = new int[cells.length + 1];
+		for(var k = 0; k < edgeSources.length; ++k) {
+			offsets[edgeSources[k]+1]++;
+			offsets[edgeTargets[k]+1]++;
+		}
+		for(var i = 0; i < cells.length; ++i)
+			offsets[i+1] += offsets[i];
+		var targets = new int[2 * edgeSources.length];
+		var ranks = new int[2 * edgeSources.length];
+		var positions = Arrays.copyOf(offsets, cells.length);
+		for(var k = 0; k < edgeSources.length; ++k) {
+			var e = positions[edgeSources[k]]++;
+			targets[e] = edgeTargets[k];
+			ranks[e] = k;
+			e = positions[edgeTargets[k]]++;
+			targets[e] = edgeSources[k];
+			ranks[e] = k;
+		}
+
+		var angles = new double[0];
+		for(var i = 0; i < cells.length; ++i) {
+			var start = offsets[i];
+			var degree = offsets[i+1] - start;
+			if(angles.length < degree)
+				angles = new double[2 * degree];
+			for(var k = 0; k < degree; ++k) {
+				var j = targets[start + k];
+				angles[k] = Math.atan2(ys[j] - ys[i], xs[j] - xs[i]);
+			}
+			// Insertion sort, degrees are small
+			for(var k = 1; k < degree; ++k) {
+				var angle = angles[k];
+				var target = targets[start + k];
+				var rank = ranks[start + k];
+				var l = k - 1;
+				while(l >= 0 && angles[l] > angle) {
+					angles[l+1] = angles[l];
+					targets[start + l + 1] = targets[start + l];
+					ranks[start + l + 1] = ranks[start + l];
+					l--;
+				}
+				angles[l+1] = angle;
+				targets[start + l + 1] = target;
+				ranks[start + l + 1] = rank;
+			}
+		}
+
+		// Both oriented edges of an edge share its rank
+		var sourceEdges = new int[edgeSources.length];
+		var targetEdges = new int[edgeSources.length];
+		for(var i = 0; i < cells.length; ++i) {
+			for(var e = offsets[i]; e < offsets[i+1]; ++e) {
+				if(edgeSources[ranks[e]] == i)
+					sourceEdges[ranks[e]] = e;
+				else
+					targetEdges[ranks[e]] = e;
+			}
+		}
+		var twins = new int[targets.length];
+		for(var k = 0; k < edgeSources.length; ++k) {
+			twins[sourceEdges[k]] = targetEdges[k];
+			twins[targetEdges[k]] = sourceEdges[k];
+		}
+		return new Adjacency(offsets, targets, twins, ranks, edgeDistances, edgeDistances.length);
+	}
+
+	// Neighbors at the adjacency threshold, in the format of Subdivision.getFilteredNeighbors
+	public Map<PathObject, List<PathObject>> getNeighbors(Adjacency adjacency) {
+		var neighbors = new HashMap<PathObject, List<PathObject>>(cells.length * 2);
+		for(var i = 0; i < cells.length; ++i) {
+			var cellNeighbors = new ArrayList<PathObject>(adjacency.degree(i));
+			for(var e = adjacency.start(i); e < adjacency.end(i); ++e) {
+				if(adjacency.isActive(e))
+					cellNeighbors.add(cells[adjacency.target(e)]);
+			}
+			neighbors.put(cells[i], cellNeighbors);
+		}
+		return neighbors;
+	}
+
+	/**
+	 * Neighbors of each cell in compressed sparse row layout: the neighbors of cell i are
+	 * targets[offsets[i]] to targets[offsets[i+1]-1], sorted by angle. Each position is an oriented (half) edge,
+	 * twins gives the position of the opposite edge and ranks the index of the edge in the distance sorted edges.
+	 * <p>
+	 * An adjacency is a view at a distance threshold: only the edges of the sorted prefix are active.
+	 * Start, end and degree include inactive edges.
+	 */
+	public static class Adjacency {
+		private final int[] offsets;
+		private final int[] targets;
+		private final int[] twins;
+		private final int[] ranks;
+		private final double[] sortedDistances;
+		private final int nActiveEdges;
+
+		private Adjacency(int[] offsets, int[] targets, int[] twins, int[] ranks, double[] sortedDistances, int nActiveEdges) {
+			this.offsets = offsets;
+			this.targets = targets;
+			this.twins = twins;
+			this.ranks = ranks;
+			this.sortedDistances = sortedDistances;
+			this.nActiveEdges = nActiveEdges;
+		}
+
+		// View sharing the same arrays with the edges up to maxDistance
+		public Adjacency withMaxDistance(double maxDistance) {
+			return new Adjacency(offsets, targets, twins, ranks, sortedDistances, countEdges(sortedDistances, maxDistance));
+		}
+
+		public int nEdges() {
+			return targets.length;
+		}
+
+		// First edge of a cell
+		public int start(int id) {
+			return offsets[id];
+		}
+
+		// End (exclusive) of the edges of a cell
+		public int end(int id) {
+			return offsets[id+1];
+		}
+
+		public int degree(int id) {
+			return offsets[id+1] - offsets[id];
+		}
+
+		public int target(int edge) {
+			return targets[edge];
+		}
+
+		public boolean isActive(int edge) {
+			return ranks[edge] < nActiveEdges;
+		}
+
+		// Opposite edge
+		public int twin(int edge) {
+			return twins[edge];
+		}
+
+		// Active edge following an edge of a cell in (cyclic) angle order
+		public int successor(int id, int edge) {
+			do {
+				edge = edge + 1 == offsets[id+1] ? offsets[id] : edge + 1;
+			} while(!isActive(edge));
+			return edge;
+		}
+
+		// Next edge of the face on the right of an active edge: the successor of the opposite edge around the edge target
+		public int next(int edge) {
+			return successor(targets[edge], twins[edge]);
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package qupath.ext.ductales;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Location;
+
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Spatial point pattern statistics of the cells of each duct, with the duct geometry as observation window.
+ * <p>
+ * Centroids of a duct are copied to primitive arrays and hashed in a uniform grid of about four cells per bucket,
+ * so the pairs up to the largest radius and the nearest neighbors are found in the buckets around each cell.
+ * Measurements, for each radius r:
+ * <ul>
+ * <li>Ripley's K(r) and L(r) = sqrt(K(r) / pi), with Ripley's isotropic edge correction: a pair is weighted by the inverse of the
+ * part of the circle around the first cell, through the second one, that is inside the duct. These parts are tabulated for each cell
+ * on a few radius steps by sampling the circles, and interpolated.</li>
+ * <li>Mixing index: fraction of the pairs of cells of two different duct classes, among the pairs of cells with a duct class,
+ * relative to its expectation under random labelling (1 for random mixing, 0 for fully separated classes).</li>
+ * </ul>
+ * Nearest neighbor distances are summarized by their mean, SD and median, and the Clark-Evans aggregation index.
+ * <p>
+ * The density of K and of the Clark-Evans index is the number of cells over the area of the duct geometry. This area includes
+ * the holes (lumen) of the duct, so a hollow duct reads as more aggregated than the same cells in a filled window.
+ */
+public class DuctSpatialStatistics {
+	// Steps of the edge correction table between 0 and the largest radius, and sampled points on each circle
+	private static final int EDGE_CORRECTION_STEPS = 16;
+	private static final int EDGE_CORRECTION_ANGLES = 32;
+	private static final int CELLS_PER_BUCKET = 4;
+
+	private DuctSpatialStatistics() {
+	}
+
+	/**
+	 * Measure the ducts in parallel. ductCells are the ids of the cells of each duct in the graph, radii are in microns.
+	 */
+	static void measure(TaskExecutor taskExecutor, List<PathObject> ducts, Geometry[] ductGeometries, DuctGraph graph, List<int[]> ductCells,
+			List<PathClass> classes, double[] radii, double pixelSize, AtomicBoolean cancelled, TaskExecutor.ProgressListener progressListener) {
+		var sortedRadii = radii.clone();
+		Arrays.sort(sortedRadii);
+		var names = new String[sortedRadii.length][3];
+		for(var k = 0; k < sortedRadii.length; ++k) {
+			var radius = formatRadius(sortedRadii[k]);
+			names[k][0] = "Spatial: Ripley K " + radius + " um";
+			names[k][1] = "Spatial: Ripley L " + radius + " um";
+			names[k][2] = "Spatial: Mixing index " + radius + " um";
+		}
+
+		// Label of the cells of each duct class, other classes are -1
+		var classIndexes = new HashMap<PathClass, Integer>();
+		for(var c = 0; c < classes.size(); ++c)
+			classIndexes.put(classes.get(c), c);
+
+		taskExecutor.forEach("Duct spatial statistics", ducts.size(), ductIndex -> {
+			var cells = ductCells.get(ductIndex);
+			var n = cells.length;
+			var xs = new double[n];
+			var ys = new double[n];
+			var labels = new int[n];
+			for(var i = 0; i < n; ++i) {
+				xs[i] = graph.getX(cells[i]);
+				ys[i] = graph.getY(cells[i]);
+				labels[i] = classIndexes.getOrDefault(graph.getCell(cells[i]).getPathClass(), -1);
+			}
+			var measurements = ducts.get(ductIndex).getMeasurementList();
+			var stats = new DuctPattern(xs, ys, n, ductGeometries[ductIndex]);
+
+			var k = new double[sortedRadii.length];
+			var mixing = new double[sortedRadii.length];
+			stats.computePairStatistics(sortedRadii, pixelSize, labels, classes.size(), k, mixing);
+			for(var r = 0; r < sortedRadii.length; ++r) {
+				measurements.putMeasurement(names[r][0], k[r]);
+				measurements.putMeasurement(names[r][1], Math.sqrt(k[r] / Math.PI));
+				measurements.putMeasurement(names[r][2], mixing[r]);
+			}
+
+			var distances = stats.computeNearestNeighborDistances(pixelSize);
+			var mean = Double.NaN;
+			var sd = Double.NaN;
+			var median = Double.NaN;
+			if(n > 1) {
+				mean = 0;
+				for(var d : distances)
+					mean += d;
+				mean /= n;
+				sd = 0;
+				for(var d : distances)
+					sd += (d - mean) * (d - mean);
+				sd = Math.sqrt(sd / (n - 1));
+				Arrays.sort(distances);
+				median = n % 2 == 1 ? distances[n/2] : (distances[n/2-1] + distances[n/2]) / 2;
+			}
+			measurements.putMeasurement("Spatial: NN distance mean um", mean);
+			measurements.putMeasurement("Spatial: NN distance SD um", sd);
+			measurements.putMeasurement("Spatial: NN distance median um", median);
+			measurements.putMeasurement("Spatial: Clark-Evans index", getClarkEvansIndex(mean, stats.getArea() * pixelSize * pixelSize, n));
+		}, cancelled, progressListener);
+	}
+
+	// Ratio of the mean nearest neighbor distance to its expectation for a Poisson process of the same density
+	static double getClarkEvansIndex(double meanDistance, double area, int n) {
+		return meanDistance / (0.5 * Math.sqrt(area / n));
+	}
+
+	// 10 -> "10", 12.5 -> "12.5"
+	private static String formatRadius(double radius) {
+		if(radius == Math.rint(radius))
+			return Long.toString((long)radius);
+		return Double.toString(radius);
+	}
+
+	/**
+	 * Centroids of one duct hashed in a grid, in pixels.
+	 */
+	static class DuctPattern {
+		private final double[] xs;
+		private final double[] ys;
+		private final int n;
+		private final Geometry window;
+		private final double minX;
+		private final double minY;
+		private final double bucketSize;
+		private final int nBucketsX;
+		private final int nBucketsY;
+		private final int[] buckets;
+		private final int[] bucketOffsets;
+		private final int[] bucketCells;
+
+		DuctPattern(double[] xs, double[] ys, int n, Geometry window) {
+			this.xs = xs;
+			this.ys = ys;
+			this.n = n;
+			this.window = window;
+
+			var minX = Double.POSITIVE_INFINITY;
+			var minY = Double.POSITIVE_INFINITY;
+			var maxX = Double.NEGATIVE_INFINITY;
+			var maxY = Double.NEGATIVE_INFINITY;
+			for(var i = 0; i < n; ++i) {
+				minX = Math.min(minX, xs[i]);
+				minY = Math.min(minY, ys[i]);
+				maxX = Math.max(maxX, xs[i]);
+				maxY = Math.max(maxY, ys[i]);
+			}
+			this.minX = n > 0 ? minX : 0;
+			this.minY = n > 0 ? minY : 0;
+			var width = n > 0 ? maxX - minX : 0;
+			var height = n > 0 ? maxY - minY : 0;
+			// About CELLS_PER_BUCKET cells per bucket if the cells were uniform in the bounding box
+			var bucketSize = Math.max(Math.sqrt(width * height * CELLS_PER_BUCKET / Math.max(n, 1)), Math.max(width, height) * CELLS_PER_BUCKET / Math.max(n, 1));
+			this.bucketSize = Math.max(bucketSize, 1e-6);
+			nBucketsX = (int)(width / this.bucketSize) + 1;
+			nBucketsY = (int)(height / this.bucketSize) + 1;
+
+			// Cells by bucket, in CSR layout
+			buckets = new int[n];
+			bucketOffsets = new int[nBucketsX * nBucketsY + 1];
+			for(var i = 0; i < n; ++i) {
+				buckets[i] = getBucketY(ys[i]) * nBucketsX + getBucketX(xs[i]);
+				bucketOffsets[buckets[i]+1]++;
+			}
+			for(var b = 0; b < nBucketsX * nBucketsY; ++b)
+				bucketOffsets[b+1] += bucketOffsets[b];
+			bucketCells = new int[n];
+			var positions = Arrays.copyOf(bucketOffsets, nBucketsX * nBucketsY);
+			for(var i = 0; i < n; ++i)
+				bucketCells[positions[buckets[i]]++] = i;
+		}
+
+		private int getBucketX(double x) {
+			return Math.min((int)((x - minX) / bucketSize), nBucketsX - 1);
+		}
+
+		private int getBucketY(double y) {
+			return Math.min((int)((y - minY) / bucketSize), nBucketsY - 1);
+		}
+
+		double getArea() {
+			return window.getArea();
+		}
+
+		/**
+		 * Ripley's K (in um^2) and the mixing index at sorted radii (in um). labels are the class indexes of the cells, or -1.
+		 */
+		void computePairStatistics(double[] radii, double pixelSize, int[] labels, int nClasses, double[] k, double[] mixing) {
+			var nRadii = radii.length;
+			var area = getArea();
+			if(n < 2 || nRadii == 0 || radii[nRadii-1] <= 0 || area <= 0) {
+				Arrays.fill(k, Double.NaN);
+				Arrays.fill(mixing, Double.NaN);
+				return;
+			}
+			var radiiSquared = new double[nRadii];
+			for(var r = 0; r < nRadii; ++r)
+				radiiSquared[r] = (radii[r] / pixelSize) * (radii[r] / pixelSize);
+			var maxRadius = radii[nRadii-1] / pixelSize;
+			var rings = (int)Math.ceil(maxRadius / bucketSize);
+
+			var locator = new IndexedPointInAreaLocator(window);
+			var insideFractions = new double[EDGE_CORRECTION_STEPS + 1];
+			var point = new Coordinate();
+			var weightedCounts = new double[nRadii];
+			var labelledPairs = new long[nRadii];
+			var mixedPairs = new long[nRadii];
+			for(var i = 0; i < n; ++i) {
+				var x = xs[i];
+				var y = ys[i];
+				var hasInsideFractions = false;
+				var bx = getBucketX(x);
+				var by = getBucketY(y);
+				for(var nby = Math.max(by - rings, 0); nby <= Math.min(by + rings, nBucketsY - 1); ++nby) {
+					for(var nbx = Math.max(bx - rings, 0); nbx <= Math.min(bx + rings, nBucketsX - 1); ++nbx) {
+						var bucket = nby * nBucketsX + nbx;
+						for(var b = bucketOffsets[bucket]; b < bucketOffsets[bucket+1]; ++b) {
+							var j = bucketCells[b];
+							if(j == i)
+								continue;
+							var dx = xs[j] - x;
+							var dy = ys[j] - y;
+							var distanceSquared = dx * dx + dy * dy;
+							if(distanceSquared > radiiSquared[nRadii-1])
+								continue;
+							// Parts of the circles around i inside the window, only computed for cells with close pairs
+							if(!hasInsideFractions) {
+								insideFractions[0] = 1;
+								for(var s = 1; s <= EDGE_CORRECTION_STEPS; ++s)
+									insideFractions[s] = getInsideFraction(locator, point, x, y, maxRadius * s / EDGE_CORRECTION_STEPS);
+								hasInsideFractions = true;
+							}
+							var step = Math.sqrt(distanceSquared) / maxRadius * EDGE_CORRECTION_STEPS;
+							var s = Math.min((int)step, EDGE_CORRECTION_STEPS - 1);
+							var insideFraction = insideFractions[s] + (insideFractions[s+1] - insideFractions[s]) * (step - s);
+							// The pair is on its circle, so at least one sample is inside
+							var weight = 1 / Math.max(insideFraction, 1.0 / EDGE_CORRECTION_ANGLES);
+							var labelled = labels[i] >= 0 && labels[j] >= 0;
+							var mixed = labelled && labels[i] != labels[j];
+							for(var r = nRadii - 1; r >= 0 && distanceSquared <= radiiSquared[r]; --r) {
+								weightedCounts[r] += weight;
+								if(labelled) {
+									labelledPairs[r]++;
+									if(mixed)
+										mixedPairs[r]++;
+								}
+							}
+						}
+					}
+				}
+			}
+
+			// Expected fraction of mixed pairs when labels are shuffled
+			var classCounts = new long[nClasses];
+			for(var i = 0; i < n; ++i) {
+				if(labels[i] >= 0)
+					classCounts[labels[i]]++;
+			}
+			var nLabelled = 0L;
+			var sameClassPairs = 0L;
+			for(var count : classCounts) {
+				nLabelled += count;
+				sameClassPairs += count * (count - 1);
+			}
+			var allPairs = nLabelled * (nLabelled - 1);
+			var expectedMixed = allPairs > 0 ? 1 - sameClassPairs / (double)allPairs : 0;
+
+			for(var r = 0; r < nRadii; ++r) {
+				k[r] = area * pixelSize * pixelSize * weightedCounts[r] / ((double)n * (n - 1));
+				mixing[r] = labelledPairs[r] > 0 && expectedMixed > 0 ? mixedPairs[r] / (double)labelledPairs[r] / expectedMixed : Double.NaN;
+			}
+		}
+
+		// Part of the circle inside the window, from evenly spaced points
+		private double getInsideFraction(IndexedPointInAreaLocator locator, Coordinate point, double x, double y, double radius) {
+			var inside = 0;
+			for(var a = 0; a < EDGE_CORRECTION_ANGLES; ++a) {
+				var angle = 2 * Math.PI * (a + 0.5) / EDGE_CORRECTION_ANGLES;
+				point.x = x + radius * Math.cos(angle);
+				point.y = y + radius * Math.sin(angle);
+				if(locator.locate(point) != Location.EXTERIOR)
+					inside++;
+			}
+			return inside / (double)EDGE_CORRECTION_ANGLES;
+		}
+
+		/**
+		 * Distance of each cell to its nearest neighbor (in um), searching rings of buckets until no closer cell can be found.
+		 */
+		double[] computeNearestNeighborDistances(double pixelSize) {
+			var distances = new double[n];
+			if(n < 2) {
+				Arrays.fill(distances, Double.NaN);
+				return distances;
+			}
+			var maxRings = Math.max(nBucketsX, nBucketsY);
+			for(var i = 0; i < n; ++i) {
+				var x = xs[i];
+				var y = ys[i];
+				var bx = getBucketX(x);
+				var by = getBucketY(y);
+				var best = Double.POSITIVE_INFINITY;
+				// Cells outside of the rings already searched are at least ring * bucketSize away
+				for(var ring = 0; ring <= maxRings && best > (ring - 1) * bucketSize * (ring - 1) * bucketSize; ++ring) {
+					for(var nby = by - ring; nby <= by + ring; ++nby) {
+						if(nby < 0 || nby >= nBucketsY)
+							continue;
+						// Only the border of the ring
+						var step = nby == by - ring || nby == by + ring ? 1 : 2 * ring;
+						for(var nbx = bx - ring; nbx <= bx + ring; nbx += step) {
+							if(nbx < 0 || nbx >= nBucketsX)
+								continue;
+							var bucket = nby * nBucketsX + nbx;
+							for(var b = bucketOffsets[bucket]; b < bucketOffsets[bucket+1]; ++b) {
+								var j = bucketCells[b];
+								if(j == i)
+									continue;
+								var dx = xs[j] - x;
+								var dy = ys[j] - y;
+								best = Math.min(best, dx * dx + dy * dy);
+							}
+						}
+					}
+				}
+				distances[i] = Math.sqrt(best) * pixelSize;
+			}
+			return distances;
+		}
+	}
+}
@@ -1,52 +1,53 @@
 package qupath.ext.ductales;
 
 import java.awt.image.BufferedImage;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
-import org.apache.commons.math3.linear.EigenDecomposition;
-import org.apache.commons.math3.linear.MatrixUtils;
-import org.apache.commons.math3.linear.RealVector;
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryCollection;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.TopologyException;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.locationtech.jts.operation.overlay.OverlayOp;
+import org.locationtech.jts.operation.overlayng.UnaryUnionNG;
+import org.locationtech.jts.operation.union.CascadedPolygonUnion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javafx.util.Pair;
 import qupath.ext.ductales.utils.DuctalesConstants;
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.ext.ductales.utils.UnionFind;
 import qupath.lib.analysis.DelaunayTools;
-import qupath.lib.analysis.DelaunayTools.Subdivision;
 import qupath.lib.analysis.features.ObjectMeasurements;
 import qupath.lib.color.ColorToolsAwt;
-import qupath.lib.geom.Point2;
 import qupath.lib.images.ImageData;
-import qupath.lib.objects.DefaultPathObjectConnectionGroup;
+import qupath.lib.objects.PathCellObject;
 import qupath.lib.objects.PathObject;
-import qupath.lib.objects.PathObjectConnectionGroup;
-import qupath.lib.objects.PathObjectConnections;
-import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.roi.GeometryTools;
-import qupath.lib.roi.PolygonROI;
-import qupath.lib.roi.ROIs;
 import qupath.lib.roi.RoiTools;
 
 public class DuctStructureComputer {
@@ -58,16 +59,27 @@ public class DuctStructureComputer {
 	private Set<PathClass> ductClasses;
 	private double[] holesMinDistances;
 	private int holesMinCellSize;
+	private double geometryPrecision;
+	private OutlineMode outlineMode;
+	private NeighborBackend neighborBackend;
 	private boolean refineBoundaries;
+	private boolean mergeAdjacentHoles;
+	private boolean measureNeighborhoods;
+	private String[] aggregatedFeatures;
+	private double[] aggregatedQuantiles;
+	private boolean measureSpatialStatistics;
+	private double[] spatialRadii;
 	private double triangleToRefineMinAngle;
+	private int parallelism;
+	private double partitionSize;
+	private TaskExecutor executor;
+	private TaskExecutor.ProgressListener progressListener;
+	private FaceWalk faceWalk = HALF_EDGE_WALK;
+	// Cancellation token of each running computation
+	private final Set<AtomicBoolean> runningTokens = ConcurrentHashMap.newKeySet();
 
-	private Collection<PathObject> currentHoles = new ArrayList<>();
-	private Collection<PathObject> currentPerimeters = new ArrayList<>();
-	private PathObjectConnectionGroup currentConnexions;
-	private Lock lock = new ReentrantLock();
-
-	private static final String DISTANCE_TO_BOUNDARIES = "Distance to boundaries";
-	private static final String IS_IN_MONOLAYER = "Is in monolayer";
+	static final String DISTANCE_TO_BOUNDARIES = "Distance to boundaries";
+	static final String IS_IN_MONOLAYER = "Is in monolayer";
 
 	public DuctStructureComputer() {
 		// Set default values
@@ -78,8 +90,19 @@ public class DuctStructureComputer {
 		ductClasses(DuctalesConstants.DEFAULT_DUCT_CLASSES);
 		holesMinDistances(DuctalesConstants.DEFAULT_DUCT_HOLES_MIN_DISTANCES);
 		holesMinCellSize(DuctalesConstants.DEFAULT_DUCT_HOLES_MIN_CELL_SIZE);
+		geometryPrecision(DuctalesConstants.DEFAULT_DUCT_GEOMETRY_PRECISION);
+		outlineMode(OutlineMode.values()[DuctalesConstants.DEFAULT_DUCT_OUTLINE_MODE_INDEX]);
+		neighborBackend(NeighborBackend.values()[DuctalesConstants.DEFAULT_DUCT_NEIGHBOR_BACKEND_INDEX]);
 		refineBoundaries(DuctalesConstants.DEFAULT_REFINE_BOUNDARIES);
+		mergeAdjacentHoles(DuctalesConstants.DEFAULT_MERGE_ADJACENT_HOLES);
+		measureNeighborhoods(DuctalesConstants.DEFAULT_MEASURE_CELL_NEIGHBORHOODS);
+		aggregatedFeatures(DuctalesConstants.DEFAULT_DUCT_AGGREGATED_FEATURES);
+		aggregatedQuantiles(DuctalesConstants.DEFAULT_DUCT_AGGREGATED_QUANTILES);
+		measureSpatialStatistics(DuctalesConstants.DEFAULT_MEASURE_DUCT_SPATIAL_STATISTICS);
+		spatialRadii(DuctalesConstants.DEFAULT_DUCT_SPATIAL_RADII);
 		triangleToRefineMinAngle(DuctalesConstants.DEFAULT_TRIANGLE_TO_REFINE_MIN_ANGLE);
+		parallelism(DuctalesConstants.DEFAULT_PARALLELISM);
+		partitionSize(DuctalesConstants.DEFAULT_DUCT_PARTITION_SIZE);
 	}
 
 	public DuctStructureComputer excludeClasses(String[] classes) {
@@ -159,6 +182,65 @@ public class DuctStructureComputer {
 		}
 	}
 
+	// Grid size (in pixels) of the duct geometries, 0 to keep full precision
+	public DuctStructureComputer geometryPrecision(double gridSize) {
+		try {
+			geometryPrecision = gridSize;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
+
+	public enum OutlineMode {
+		// Union of the convex hulls of the cells
+		CELL_HULLS,
+		// Union of the Delaunay triangles of the duct (alpha shape through the nuclei)
+		DELAUNAY_TRIANGLES,
+		// Union of the Delaunay triangles and of the cells
+		DELAUNAY_TRIANGLES_AND_CELLS
+	}
+
+	public DuctStructureComputer outlineMode(OutlineMode outlineMode) {
+		try {
+			this.outlineMode = outlineMode;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
+
+	public enum NeighborBackend {
+		// Clusters of the Delaunay neighbors within the duct max distance
+		DELAUNAY,
+		// Clusters of all the cells within the duct max distance, found with a grid hash.
+		// Delaunay is then only computed on the duct cells, for the outlines and the boundaries
+		GRID_HASH
+	}
+
+	/**
+	 * Backend of the duct clusters. With {@link NeighborBackend#GRID_HASH}, the Delaunay triangulation of the outlines
+	 * and measurements only has the duct cells: edges can cross the cells left out of the ducts, so holes with such cells
+	 * inside are found smaller or closed compared to {@link NeighborBackend#DELAUNAY}. Grid hash clusters are also split
+	 * into the connected components of this triangulation up to the duct max distance, so each duct has a single perimeter;
+	 * components smaller than the duct min cell size are dropped. The {@link DuctStructureUpdater} triangulates all the cells
+	 * around the edits, its ducts are the Delaunay clusters with both backends.
+	 * <p>
+	 * Neighborhood features are measured for all the cells, which needs their whole triangulation:
+	 * with {@link #measureNeighborhoods(boolean)}, the ducts are always computed with {@link NeighborBackend#DELAUNAY}.
+	 */
+	public DuctStructureComputer neighborBackend(NeighborBackend neighborBackend) {
+		try {
+			this.neighborBackend = neighborBackend;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
+
 	public DuctStructureComputer refineBoundaries(boolean refineHoles) {
 		try {
 			this.refineBoundaries = refineHoles;
@@ -169,10 +251,10 @@ public class DuctStructureComputer {
 		}
 	}
 
-	// Expect angle in degree
-	public DuctStructureComputer triangleToRefineMinAngle(double angle) {
+	// Merge the holes sharing an edge, so a lumen split by a Delaunay edge is a single hole
+	public DuctStructureComputer mergeAdjacentHoles(boolean mergeAdjacentHoles) {
 		try {
-			triangleToRefineMinAngle = Math.toRadians(angle);
+			this.mergeAdjacentHoles = mergeAdjacentHoles;
 			return this;
 		} catch(Exception e) {
 			logger.error(e.getLocalizedMessage(), e);
@@ -180,144 +262,569 @@ public class DuctStructureComputer {
 		}
 	}
 
-	class DelaunayConnectionGroup implements PathObjectConnectionGroup {
-		private Map<PathObject, List<PathObject>> neighbors;
+	// Delaunay neighborhood features of each cell, from the duct graph (no second triangulation). Ducts are then always Delaunay clusters
+	public DuctStructureComputer measureNeighborhoods(boolean measureNeighborhoods) {
+		try {
+			this.measureNeighborhoods = measureNeighborhoods;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
 
-		public DelaunayConnectionGroup(Map<PathObject, List<PathObject>> neighbors) {
-			this.neighbors = neighbors;
+	// Cell measurements summarized on each duct (mean, SD and quantiles), see DuctFeatureAggregator
+	public DuctStructureComputer aggregatedFeatures(String[] features) {
+		try {
+			aggregatedFeatures = features.clone();
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
 		}
+	}
 
-		@Override
-		public boolean containsObject(PathObject pathObject) {
-			return neighbors.containsKey(pathObject);
+	public DuctStructureComputer aggregatedQuantiles(double[] quantiles) {
+		try {
+			aggregatedQuantiles = quantiles.clone();
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
 		}
+	}
 
-		@Override
-		public List<PathObject> getConnectedObjects(PathObject pathObject) {
-			return neighbors.getOrDefault(pathObject, new ArrayList<PathObject>());
+	// Ripley's K and L, nearest neighbor distances and class mixing of the cells of each duct, see DuctSpatialStatistics
+	public DuctStructureComputer measureSpatialStatistics(boolean measureSpatialStatistics) {
+		try {
+			this.measureSpatialStatistics = measureSpatialStatistics;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
 		}
+	}
 
-		@Override
-		public Collection<PathObject> getPathObjects() {
-			return neighbors.keySet();
+	// Expect radii in um
+	public DuctStructureComputer spatialRadii(double[] radii) {
+		try {
+			spatialRadii = radii.clone();
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
 		}
 	}
 
-	public Collection<PathObject> compute(ImageData<BufferedImage> image, Collection<? extends PathObject> cells){
+	// Expect angle in degree
+	public DuctStructureComputer triangleToRefineMinAngle(double angle) {
 		try {
-			lock.lock();
-			try{
-				currentHoles.clear();
-				currentPerimeters.clear();
-				currentConnexions = null;
-			}finally{
-				lock.unlock();
-			}
-			// Filter by class
-			var filteredCells = (Collection<PathObject>)cells.stream().filter((cell) -> {
-				return !excludedClasses.contains(cell.getPathClass());
-			}).collect(Collectors.toList());
-			// Compute delaunay
-			var subdivision = DelaunayTools.createFromCentroids(filteredCells, true);
-			// Get the clusters by distance
-			var clusters = subdivision.getClusters(DelaunayTools.boundaryDistancePredicate(ductMaxDistance, true));
-
-			var ducts = clusters.stream().filter(clusterChildren->{
-				return clusterChildren.size() >= ductMinCellSize;
-			}).map(clusterChildren->{
-				var geos = clusterChildren.stream().map((child)->{
-					var geo = child.getROI().getGeometry();
-					geo = geo.convexHull(); // Required to avoid error when union (two shells found sometimes)
-					return geo;
-				}).collect(Collectors.toList());
-				var geo = GeometryTools.getDefaultFactory().buildGeometry(geos).buffer(0);
-				//var geo = GeometryTools.union(geos);
-				var roi = GeometryTools.geometryToROI(geo, ImagePlane.getDefaultPlane());
-				var annotation = PathObjects.createAnnotationObject(roi);
-				annotation.addPathObjects(clusterChildren);
-				return annotation;
-			}).collect(Collectors.toList());
+			triangleToRefineMinAngle = Math.toRadians(angle);
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
 
-			for(var i = 0; i < ducts.size(); ++i) {
-				var d = ducts.get(i);
-				d.getMeasurementList().putMeasurement("id", i);
-				d.setPathClass(PathClassFactory.getPathClass("Duct structure"));
-				var duct_id = i;
-				d.getChildObjects().stream().forEach(c->{
-					c.getMeasurementList().putMeasurement("parent id", duct_id);
-				});
-			}
+	public DuctStructureComputer parallelism(int parallelism) {
+		try {
+			this.parallelism = parallelism;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
 
-			if(measure) {
-				measureDuctInfos(image, ducts, subdivision);
-			}
+	// Tile size (in pixels) of the partitioned Delaunay triangulation, 0 to triangulate all the cells at once
+	public DuctStructureComputer partitionSize(double size) {
+		try {
+			partitionSize = size;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
 
-			lock.lock();
-			try{
-				currentConnexions = new DelaunayConnectionGroup(subdivision.getFilteredNeighbors(DelaunayTools.boundaryDistancePredicate(ductMaxDistance, true)));
-			}finally{
-				lock.unlock();
-			}
+	// Shared executor, parallelism is ignored if set
+	public DuctStructureComputer executor(TaskExecutor executor) {
+		try {
+			this.executor = executor;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
 
-			return ducts;
+	public DuctStructureComputer progressListener(TaskExecutor.ProgressListener progressListener) {
+		try {
+			this.progressListener = progressListener;
+			return this;
 		} catch(Exception e) {
 			logger.error(e.getLocalizedMessage(), e);
 			throw new RuntimeException("Unable to run command: Compute duct structure", e);
 		}
 	}
 
-	public Collection<PathObject> getHolesPathObjects(ImageData<BufferedImage> image) {
-		lock.lock();
+	// Stop the running computations, a CancellationException is thrown by compute
+	public void cancel() {
+		for(var cancelled : runningTokens)
+			cancelled.set(true);
+	}
+
+	private static void checkCancelled(AtomicBoolean cancelled) {
+		if(cancelled.get())
+			throw new CancellationException("Compute duct structure cancelled");
+	}
+
+	/**
+	 * Compute the ducts of the cells. The computer keeps no state of the computation,
+	 * so it can be called concurrently on several images once configured.
+	 */
+	public DuctStructureResult compute(ImageData<BufferedImage> image, Collection<? extends PathObject> cells){
+		return run((taskExecutor, cancelled) -> {
+			var filteredCells = filterCells(cells);
+			DuctGraph graph;
+			List<int[]> ductCells;
+			// Neighborhood features of all the cells need the triangulation of all the cells, its components are the ducts
+			var useGridHash = neighborBackend == NeighborBackend.GRID_HASH && !measureNeighborhoods;
+			if(neighborBackend == NeighborBackend.GRID_HASH && measureNeighborhoods)
+				logger.info("Cell neighborhoods are measured on the Delaunay triangulation of all the cells, the grid hash backend is not used");
+			if(useGridHash) {
+				var cellsGraph = new DuctGraph(filteredCells);
+				var clusters = getClusters(taskExecutor, cellsGraph, cancelled);
+				checkCancelled(cancelled);
+				// The graph only has the duct cells, in cluster order
+				var clusteredCells = new ArrayList<PathObject>();
+				ductCells = new ArrayList<>(clusters.size());
+				for(var cluster : clusters) {
+					var ids = new int[cluster.length];
+					for(var i = 0; i < cluster.length; ++i) {
+						ids[i] = clusteredCells.size();
+						clusteredCells.add(cellsGraph.getCell(cluster[i]));
+					}
+					ductCells.add(ids);
+				}
+				if(measure || outlineMode != OutlineMode.CELL_HULLS) {
+					graph = createGraph(taskExecutor, clusteredCells, getGraphMaxDistance(), cancelled);
+					// Close nuclei may not be Delaunay neighbors: split the clusters into the components of the triangulation
+					ductCells = getClusters(graph, ductMaxDistance, ductMinCellSize);
+				} else
+					graph = new DuctGraph(clusteredCells);
+			} else {
+				graph = createGraph(taskExecutor, filteredCells, getGraphMaxDistance(), cancelled);
+				// Get the clusters by distance, only clusters large enough are materialized
+				ductCells = getClusters(graph, ductMaxDistance, ductMinCellSize);
+			}
+			checkCancelled(cancelled);
+			var ductIds = new int[ductCells.size()];
+			for(var i = 0; i < ductIds.length; ++i)
+				ductIds[i] = i;
+			var result = computeDucts(taskExecutor, image, graph, ductCells, ductIds, cancelled);
+			// Duct cells are measured with their duct, the other cells of the graph here
+			if(measureNeighborhoods) {
+				var otherCells = new int[graph.size()];
+				var nOtherCells = 0;
+				for(var id = 0; id < graph.size(); ++id) {
+					if(graph.getDuct(id) < 0)
+						otherCells[nOtherCells++] = id;
+				}
+				measureCellNeighborhoods(taskExecutor, image, graph, result.getDuctAdjacency(), Arrays.copyOf(otherCells, nOtherCells), cancelled);
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Triangulate the cells once and build the single-linkage dendrogram of the duct clusters up to maxDistance,
+	 * to sweep the max distance and min cell size without computing the duct structure again.
+	 */
+	public DuctClusterSweep computeSweep(Collection<? extends PathObject> cells, double maxDistance) {
+		return run((taskExecutor, cancelled) -> {
+			var filteredCells = filterCells(cells);
+			var graph = createGraph(taskExecutor, filteredCells, maxDistance, cancelled);
+			return new DuctClusterSweep(graph);
+		});
+	}
+
+	interface Computation<T> {
+		T run(TaskExecutor taskExecutor, AtomicBoolean cancelled) throws Exception;
+	}
+
+	// Run a computation with its own cancellation token, on the shared executor or on a new one
+	<T> T run(Computation<T> computation) {
+		var cancelled = new AtomicBoolean(false);
+		runningTokens.add(cancelled);
+		var ownExecutor = executor == null;
+		var taskExecutor = ownExecutor ? new TaskExecutor("ductales-ducts", parallelism) : executor;
 		try {
-			return currentHoles;
+			return computation.run(taskExecutor, cancelled);
+		} catch(CancellationException e) {
+			throw e;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
 		} finally {
-			lock.unlock();
+			runningTokens.remove(cancelled);
+			if(ownExecutor)
+				taskExecutor.close();
+		}
+	}
+
+	// Boundary distances of the Delaunay edges are computed once, up to the largest threshold
+	double getGraphMaxDistance() {
+		if(measure)
+			return Math.max(ductMaxDistance, holesMinDistances[holesMinDistances.length-1]);
+		return ductMaxDistance;
+	}
+
+	double getDuctMaxDistance() {
+		return ductMaxDistance;
+	}
+
+	int getDuctMinCellSize() {
+		return ductMinCellSize;
+	}
+
+	/**
+	 * Duct annotations of the clusters of a graph, with their ids and measurements.
+	 * Cells are not moved to their duct annotation: {@link DuctStructureResult#addCellsToDucts()} does it
+	 * on the thread adding the ducts to the hierarchy, so a cancelled or failed computation leaves them untouched.
+	 */
+	DuctStructureResult computeDucts(TaskExecutor taskExecutor, ImageData<BufferedImage> image, DuctGraph graph, List<int[]> ductCells, int[] ductIds, AtomicBoolean cancelled) {
+		var adjacency = graph.createAdjacency();
+		var ductAdjacency = adjacency.withMaxDistance(ductMaxDistance);
+		graph.setDucts(ductCells);
+
+		// Duct geometries are built in parallel
+		var ductGeometries = new Geometry[ductCells.size()];
+		taskExecutor.forEach("Duct geometries", ductCells.size(), i -> {
+			ductGeometries[i] = createDuctGeometry(graph, ductAdjacency, ductCells.get(i));
+		}, cancelled, progressListener);
+
+		// Cells stay in their current parent until the result is added to the hierarchy
+		var ducts = new ArrayList<PathObject>(ductCells.size());
+		var ductChildren = new ArrayList<List<PathObject>>(ductCells.size());
+		for(var i = 0; i < ductCells.size(); ++i) {
+			var clusterChildren = new ArrayList<PathObject>(ductCells.get(i).length);
+			for(var cell : ductCells.get(i))
+				clusterChildren.add(graph.getCell(cell));
+			var roi = GeometryTools.geometryToROI(ductGeometries[i], ImagePlane.getDefaultPlane());
+			ducts.add(PathObjects.createAnnotationObject(roi));
+			ductChildren.add(clusterChildren);
+		}
+
+		for(var i = 0; i < ducts.size(); ++i) {
+			var d = ducts.get(i);
+			d.getMeasurementList().putMeasurement("id", ductIds[i]);
+			d.setPathClass(PathClassFactory.getPathClass("Duct structure"));
+			var duct_id = ductIds[i];
+			ductChildren.get(i).forEach(c->{
+				c.getMeasurementList().putMeasurement("parent id", duct_id);
+			});
+		}
+
+		if(measureNeighborhoods) {
+			var nDuctCells = 0;
+			for(var cells : ductCells)
+				nDuctCells += cells.length;
+			var ids = new int[nDuctCells];
+			var k = 0;
+			for(var cells : ductCells) {
+				System.arraycopy(cells, 0, ids, k, cells.length);
+				k += cells.length;
+			}
+			measureCellNeighborhoods(taskExecutor, image, graph, ductAdjacency, ids, cancelled);
+		}
+
+		// Holes and perimeter of each duct, filled by the measurements
+		var holes = new ArrayList<List<DuctBoundary>>(Collections.nCopies(ducts.size(), List.<DuctBoundary>of()));
+		var perimeters = new ArrayList<DuctBoundary>(Collections.nCopies(ducts.size(), (DuctBoundary)null));
+		if(measure) {
+			measureDuctInfos(taskExecutor, image, ducts, graph, ductCells, ductIds, adjacency, holes, perimeters, cancelled);
+		}
+		if(measureSpatialStatistics) {
+			DuctSpatialStatistics.measure(taskExecutor, ducts, ductGeometries, graph, ductCells, new ArrayList<>(ductClasses), spatialRadii,
+					image.getServer().getPixelCalibration().getAveragedPixelSizeMicrons(), cancelled, progressListener);
+		}
+		if(aggregatedFeatures.length > 0) {
+			new DuctFeatureAggregator()
+					.features(aggregatedFeatures)
+					.quantiles(aggregatedQuantiles)
+					.aggregate(taskExecutor, ducts, ductChildren, cancelled, progressListener);
 		}
+
+		return new DuctStructureResult(ducts, ductChildren, holes, perimeters, graph, ductAdjacency, image.getServer().getPixelCalibration());
 	}
 
-	public Collection<PathObject> getPerimetersPathObjects(ImageData<BufferedImage> image) {
-		lock.lock();
+	/**
+	 * Delaunay neighborhood features of some cells of the graph, from the neighbors of the adjacency (up to the duct max distance):
+	 * number of neighbors, mean and max centroid distance, fraction of neighbors of each duct class, and local density.
+	 * A triangulation has about two triangles per cell, so the density is one cell per two mean areas of the triangles around the cell.
+	 * Features are computed in parallel in the columns of a {@link CellFeatureStore}, then written to the cells at once.
+	 */
+	void measureCellNeighborhoods(TaskExecutor taskExecutor, ImageData<BufferedImage> image, DuctGraph graph, DuctGraph.Adjacency adjacency, int[] ids, AtomicBoolean cancelled) {
+		var cells = new ArrayList<PathCellObject>(ids.length);
+		for(var id : ids)
+			cells.add((PathCellObject)graph.getCell(id));
+		var store = new CellFeatureStore(cells);
+		var pixelSize = image.getServer().getPixelCalibration().getAveragedPixelSizeMicrons();
+		var nNeighborsFeature = store.getFeatureIndex("Delaunay: Num neighbors");
+		var meanDistanceFeature = store.getFeatureIndex("Delaunay: Mean distance um");
+		var maxDistanceFeature = store.getFeatureIndex("Delaunay: Max distance um");
+		var densityFeature = store.getFeatureIndex("Delaunay: Local density per mm^2");
+		var classes = new ArrayList<>(ductClasses);
+		var classFeatures = new int[classes.size()];
+		for(var c = 0; c < classes.size(); ++c)
+			classFeatures[c] = store.getFeatureIndex("Delaunay: Neighbor fraction - " + classes.get(c).getName());
+
+		taskExecutor.forEach("Cell neighborhoods", ids.length, row -> {
+			var id = ids[row];
+			var x = graph.getX(id);
+			var y = graph.getY(id);
+			var nNeighbors = 0;
+			var sumDistance = 0.0;
+			var maxDistance = 0.0;
+			var classCounts = new int[classFeatures.length];
+			var starArea = 0.0;
+			var nTriangles = 0;
+			var firstEdge = -1;
+			var previousEdge = -1;
+			for(var e = adjacency.start(id); e < adjacency.end(id); ++e) {
+				if(!adjacency.isActive(e))
+					continue;
+				var neighbor = adjacency.target(e);
+				var distance = Math.hypot(graph.getX(neighbor) - x, graph.getY(neighbor) - y);
+				nNeighbors++;
+				sumDistance += distance;
+				maxDistance = Math.max(maxDistance, distance);
+				var pathClass = graph.getCell(neighbor).getPathClass();
+				for(var c = 0; c < classFeatures.length; ++c) {
+					if(classes.get(c) == pathClass)
+						classCounts[c]++;
+				}
+				if(previousEdge >= 0) {
+					var area = getTriangleArea(graph, adjacency, id, adjacency.target(previousEdge), neighbor);
+					starArea += area;
+					nTriangles += area > 0 ? 1 : 0;
+				} else
+					firstEdge = e;
+				previousEdge = e;
+			}
+			// Neighbors are sorted by angle, the last and first ones close the star
+			if(nNeighbors > 1) {
+				var area = getTriangleArea(graph, adjacency, id, adjacency.target(previousEdge), adjacency.target(firstEdge));
+				starArea += area;
+				nTriangles += area > 0 ? 1 : 0;
+			}
+
+			store.set(row, nNeighborsFeature, nNeighbors);
+			if(nNeighbors == 0)
+				return;
+			store.set(row, meanDistanceFeature, sumDistance / nNeighbors * pixelSize);
+			store.set(row, maxDistanceFeature, maxDistance * pixelSize);
+			for(var c = 0; c < classFeatures.length; ++c)
+				store.set(row, classFeatures[c], classCounts[c] / (double)nNeighbors);
+			if(nTriangles > 0)
+				store.set(row, densityFeature, 1e6 * nTriangles / (2 * starArea * pixelSize * pixelSize));
+		}, cancelled, progressListener);
+		store.writeBack();
+	}
+
+	// Area of the Delaunay triangle of a cell and two consecutive neighbors (counter-clockwise), 0 if they are not connected
+	private static double getTriangleArea(DuctGraph graph, DuctGraph.Adjacency adjacency, int id, int neighbor1, int neighbor2) {
+		var cross = (graph.getX(neighbor1) - graph.getX(id)) * (graph.getY(neighbor2) - graph.getY(id))
+				- (graph.getY(neighbor1) - graph.getY(id)) * (graph.getX(neighbor2) - graph.getX(id));
+		if(cross <= 0)
+			return 0;
+		for(var e = adjacency.start(neighbor1); e < adjacency.end(neighbor1); ++e) {
+			if(adjacency.target(e) == neighbor2 && adjacency.isActive(e))
+				return cross / 2;
+		}
+		return 0;
+	}
+
+	/**
+	 * Union of the convex hulls of the duct cells and/or of the duct Delaunay triangles, depending on the outline mode.
+	 * The union is cascaded (STRtree partitioned), with snap-rounding when a geometry precision is set.
+	 */
+	private Geometry createDuctGeometry(DuctGraph graph, DuctGraph.Adjacency ductAdjacency, int[] clusterCells) {
+		var geos = new ArrayList<Geometry>(clusterCells.length);
+		if(outlineMode != OutlineMode.CELL_HULLS)
+			geos.addAll(getDuctTriangles(graph, ductAdjacency, clusterCells));
+		if(outlineMode != OutlineMode.DELAUNAY_TRIANGLES) {
+			for(var cell : clusterCells) {
+				var geo = graph.getCell(cell).getROI().getGeometry();
+				geo = geo.convexHull(); // Required to avoid error when union (two shells found sometimes)
+				if(geo instanceof Polygonal)
+					geos.add(geo);
+			}
+		}
+		if(geos.isEmpty())
+			return GeometryTools.getDefaultFactory().createPolygon();
+		if(geometryPrecision > 0)
+			return UnaryUnionNG.union(geos, new PrecisionModel(1 / geometryPrecision));
 		try {
-			return currentPerimeters;
-		} finally {
-			lock.unlock();
+			return CascadedPolygonUnion.union(geos);
+		} catch(TopologyException e) {
+			logger.debug("Cascaded union failed, using buffer: {}", e.getLocalizedMessage());
+			return GeometryTools.getDefaultFactory().buildGeometry(geos).buffer(0);
 		}
 	}
 
-	public void showDelaunay(ImageData<BufferedImage> image) {
-		lock.lock();
-		try{
-			if (currentConnexions != null) {
-				image.removeProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS);
-				var connections = new PathObjectConnections();
-				image.setProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS, connections);
-				connections.addGroup(currentConnexions);
+	/**
+	 * Triangles of the duct graph: inner faces with three cells, all in the duct and with edges up to the duct max distance.
+	 * Vertices are the nuclei centroids.
+	 */
+	private static List<Polygon> getDuctTriangles(DuctGraph graph, DuctGraph.Adjacency ductAdjacency, int[] clusterCells) {
+		var factory = GeometryTools.getDefaultFactory();
+		var triangles = new ArrayList<Polygon>();
+		var duct = graph.getDuct(clusterCells[0]);
+		var triangle = new int[3];
+		for(var cell : clusterCells) {
+			for(var e1 = ductAdjacency.start(cell); e1 < ductAdjacency.end(cell); ++e1) {
+				if(!ductAdjacency.isActive(e1))
+					continue;
+				var e2 = ductAdjacency.next(e1);
+				var e3 = ductAdjacency.next(e2);
+				if(ductAdjacency.next(e3) != e1)
+					continue;
+				triangle[0] = ductAdjacency.target(e1);
+				triangle[1] = ductAdjacency.target(e2);
+				triangle[2] = cell;
+				// Each triangle is kept once, from its first cell
+				if(cell > triangle[0] || cell > triangle[1])
+					continue;
+				if(!graph.isInDuct(triangle[0], duct) || !graph.isInDuct(triangle[1], duct))
+					continue;
+				// Inner faces are clockwise, as holes
+				if(!isPolygonClockwise(graph, triangle))
+					continue;
+				var coords = new Coordinate[4];
+				for(var i = 0; i < 3; ++i)
+					coords[i] = new Coordinate(graph.getX(triangle[i]), graph.getY(triangle[i]));
+				coords[3] = coords[0];
+				triangles.add(factory.createPolygon(coords));
 			}
-		}finally{
-			lock.unlock();
-		}	
+		}
+		return triangles;
+	}
+
+	/**
+	 * Single-linkage clusters of the edges up to maxDistance (a prefix of the sorted edges) with a union-find,
+	 * as cell ids grouped by cluster. Clusters smaller than minCellSize are dropped.
+	 */
+	static List<int[]> getClusters(DuctGraph graph, double maxDistance, int minCellSize) {
+		var unionFind = new UnionFind(graph.size());
+		var nEdges = graph.countEdges(maxDistance);
+		for(var e = 0; e < nEdges; ++e)
+			unionFind.union(graph.getEdgeSource(e), graph.getEdgeTarget(e));
+		return groupByLabel(unionFind.getLabels(minCellSize));
 	}
 
-	private void measureDuctInfos(ImageData<BufferedImage> image, Collection<PathObject> ducts, Subdivision subdivision) {
-		var boundariesNeighbors = new ArrayList<Map<PathObject, List<PathObject>>>();
+	// Clusters of all the cells of a graph with the selected backend
+	List<int[]> getClusters(TaskExecutor taskExecutor, DuctGraph graph, AtomicBoolean cancelled) {
+		if(neighborBackend == NeighborBackend.GRID_HASH) {
+			var unionFind = GridHashClusters.compute(taskExecutor, graph, ductMaxDistance, cancelled, progressListener);
+			return groupByLabel(unionFind.getLabels(ductMinCellSize));
+		}
+		return getClusters(graph, ductMaxDistance, ductMinCellSize);
+	}
+
+	// Ids grouped by label, labels from 0 and -1 for ids out of any group
+	static List<int[]> groupByLabel(int[] labels) {
+		var nClusters = 0;
+		for(var label : labels)
+			nClusters = Math.max(nClusters, label + 1);
+		var sizes = new int[nClusters];
+		for(var label : labels) {
+			if(label >= 0)
+				sizes[label]++;
+		}
+		var clusters = new ArrayList<int[]>(nClusters);
+		for(var size : sizes)
+			clusters.add(new int[size]);
+		var positions = new int[nClusters];
+		for(var i = 0; i < labels.length; ++i) {
+			if(labels[i] >= 0)
+				clusters.get(labels[i])[positions[labels[i]]++] = i;
+		}
+		return clusters;
+	}
+
+	// Filter by class
+	List<PathObject> filterCells(Collection<? extends PathObject> cells) {
+		return cells.stream().filter((cell) -> {
+			return !isExcluded(cell);
+		}).collect(Collectors.toList());
+	}
+
+	boolean isExcluded(PathObject cell) {
+		return excludedClasses.contains(cell.getPathClass());
+	}
+
+	/**
+	 * Delaunay graph of the cells with the edges up to maxDistance. The triangulation is partitioned in tiles
+	 * triangulated in parallel if a partition size is set.
+	 */
+	private DuctGraph createGraph(TaskExecutor taskExecutor, List<PathObject> cells, double maxDistance, AtomicBoolean cancelled) {
+		var graph = new DuctGraph(cells);
+		if(partitionSize > 0) {
+			// Packed edges go straight to the graph, without a map of all the neighbors
+			var edges = new PartitionedDelaunay(graph, partitionSize, maxDistance).computeEdges(taskExecutor, cancelled, progressListener);
+			checkCancelled(cancelled);
+			graph.computeEdges(taskExecutor, edges, maxDistance, cancelled, progressListener);
+		} else {
+			var neighbors = DelaunayTools.createFromCentroids(cells, true).getAllNeighbors();
+			checkCancelled(cancelled);
+			graph.computeEdges(taskExecutor, neighbors, maxDistance, cancelled, progressListener);
+		}
+		checkCancelled(cancelled);
+		return graph;
+	}
+
+	// Graph of the cells from already computed Delaunay neighbors, with the edges up to the graph max distance
+	DuctGraph createGraph(TaskExecutor taskExecutor, List<PathObject> cells, Map<PathObject, List<PathObject>> neighbors, AtomicBoolean cancelled) {
+		var graph = new DuctGraph(cells);
+		graph.computeEdges(taskExecutor, neighbors, getGraphMaxDistance(), cancelled, progressListener);
+		checkCancelled(cancelled);
+		return graph;
+	}
+
+	// Adjacencies at each holes threshold, then at the duct max distance for the perimeter. Each threshold is a prefix of the distance sorted edges
+	List<DuctGraph.Adjacency> getBoundariesAdjacencies(DuctGraph.Adjacency adjacency) {
+		var boundariesAdjacencies = new ArrayList<DuctGraph.Adjacency>();
 		for(Double holesMinDistance : holesMinDistances)
-			boundariesNeighbors.add(subdivision.getFilteredNeighbors(DelaunayTools.boundaryDistancePredicate(holesMinDistance, true)));
-		var ductNeighbors = subdivision.getFilteredNeighbors(DelaunayTools.boundaryDistancePredicate(ductMaxDistance, true));
+			boundariesAdjacencies.add(adjacency.withMaxDistance(holesMinDistance));
 		// Make sure we compute boundaries at maxDistance to have correct perimeter.
 		if(holesMinDistances[holesMinDistances.length-1] != ductMaxDistance)
-			boundariesNeighbors.add(ductNeighbors);
+			boundariesAdjacencies.add(adjacency.withMaxDistance(ductMaxDistance));
+		return boundariesAdjacencies;
+	}
+
+	private void measureDuctInfos(TaskExecutor taskExecutor, ImageData<BufferedImage> image, List<PathObject> ducts, DuctGraph graph, List<int[]> ductCells, int[] ductIds, DuctGraph.Adjacency adjacency,
+			List<List<DuctBoundary>> ductHoles, List<DuctBoundary> ductPerimeters, AtomicBoolean cancelled) {
+		var boundariesAdjacencies = getBoundariesAdjacencies(adjacency);
+		var ductAdjacency = adjacency.withMaxDistance(ductMaxDistance);
+
+		checkCancelled(cancelled);
 
-		ducts.parallelStream().forEach(d -> {
+		taskExecutor.forEach("Measure ducts", ducts.size(), ductIndex -> {
+			var d = ducts.get(ductIndex);
+			var cells = ductCells.get(ductIndex);
 			try {
 				ObjectMeasurements.addShapeMeasurements(d, image.getServer().getPixelCalibration());
 
 				var area = d.getMeasurementList().getMeasurementValue("Area um^2");
-				var areaPerCell = area / d.getChildObjects().size();
+				var areaPerCell = area / cells.length;
 				d.getMeasurementList().putMeasurement("Area per cell um^2", areaPerCell);
 
 				for (PathClass pathClass : ductClasses) {
-					var nbCells = d.getChildObjects().stream().filter(c->{
-						return c.getPathClass() == pathClass;
+					var nbCells = Arrays.stream(cells).filter(c->{
+						return graph.getCell(c).getPathClass() == pathClass;
 					}).count();
 
 					var areaPerCellPerClass = area / nbCells;
@@ -325,19 +832,24 @@ public class DuctStructureComputer {
 				}
 
 				// Holes and perimeter
-				var boundaries = findBoundaries(d.getChildObjects(), boundariesNeighbors);
+				var isOnBoundary = new boolean[cells.length];
+				var boundaries = findBoundaries(graph, cells, boundariesAdjacencies, isOnBoundary);
+				// Kept as polygons, annotations are only built if requested from the result
 				var holes = boundaries.stream().filter(b-> {
 					return b.isHole;
-				}).collect(Collectors.toList());
+				}).map(b -> b.toDuctBoundary(ductIds[ductIndex])).collect(Collectors.toList());
+				// No perimeter if the outer face is too small to be kept (e.g. a chain of cells), its measurements are NaN
 				var perimeter = boundaries.stream().filter(b-> {
 					return !b.isHole;
-				}).findFirst().get();
+				}).findFirst().map(b -> b.toDuctBoundary(ductIds[ductIndex])).orElse(null);
 
 				d.getMeasurementList().putMeasurement("Number of holes", holes.size());
 
-				var holesArea = holes.stream().map(h -> h.getROI().getArea()).reduce(0., (a,b) -> a+b);
-				var perimeterArea = perimeter.getROI().getArea();
-				var perimeterSolidity = perimeter.getROI().getSolidity();
+				var holesArea = 0.0;
+				for(var h : holes)
+					holesArea += h.getArea();
+				var perimeterArea = perimeter == null ? Double.NaN : perimeter.getArea();
+				var perimeterSolidity = perimeter == null ? Double.NaN : perimeter.getSolidity();
 
 				d.getMeasurementList().putMeasurement("Porosity", holesArea / perimeterArea);
 				d.getMeasurementList().putMeasurement("Perimeter area um^2", perimeterArea 
@@ -345,16 +857,20 @@ public class DuctStructureComputer {
 						* image.getServer().getPixelCalibration().getPixelHeightMicrons());
 				d.getMeasurementList().putMeasurement("Perimeter solidity", perimeterSolidity);
 
-				// var perimeterEllipse = fitEllipse(perimeter);
-				// d.getMeasurementList().putMeasurement("Perimeter elongation", 1 - perimeterEllipse.minAxis / perimeterEllipse.maxAxis);
+				d.getMeasurementList().putMeasurement("Perimeter elongation", perimeter == null ? Double.NaN : perimeter.getElongation());
+				var holesElongation = 0.0;
+				for(var h : holes)
+					holesElongation += h.getElongation();
+				d.getMeasurementList().putMeasurement("Mean hole elongation", holes.isEmpty() ? Double.NaN : holesElongation / holes.size());
 
-				computeCellDistanceToBoundaries(d.getChildObjects(), boundaries, ductNeighbors);
+				computeCellDistanceToBoundaries(graph, cells, boundaries, ductAdjacency, isOnBoundary);
 
 				var numberInMonolayer = 0;
 				var meanDistanceToBorders = 0.0;
 				var numberInLayer0 = 0;
 				var numberInOtherLayers = 0;
-				for(PathObject cell : d.getChildObjects()) {
+				for(var c : cells) {
+					var cell = graph.getCell(c);
 					numberInMonolayer += cell.getMeasurementList().getMeasurementValue(IS_IN_MONOLAYER);
 					var distToBoundaries = cell.getMeasurementList().getMeasurementValue(DISTANCE_TO_BOUNDARIES);
 					meanDistanceToBorders += distToBoundaries;
@@ -363,356 +879,242 @@ public class DuctStructureComputer {
 					else
 						numberInOtherLayers += 1;
 				}
-				meanDistanceToBorders /= d.getChildObjects().size();
+				meanDistanceToBorders /= cells.length;
 				d.getMeasurementList().putMeasurement("Number of monolayered cells", numberInMonolayer);
 				d.getMeasurementList().putMeasurement("Mean cell distance to borders", meanDistanceToBorders);
 				d.getMeasurementList().putMeasurement("Number of cells (layer=0)", numberInLayer0);
 				d.getMeasurementList().putMeasurement("Number of cells (layer>0)", numberInOtherLayers);
 
-
-				var duct_id = (int)d.getMeasurementList().getMeasurementValue("id");
-				holes.forEach(h->{
-					h.parent_id = duct_id;
-				});
-				perimeter.parent_id = duct_id;
-
-				var holesAnnot = holes.stream().map(h->h.toPathObject(image)).collect(Collectors.toList());
-				var perimAnnot = perimeter.toPathObject(image);
-
-				lock.lock();
-				try{
-					currentHoles.addAll(holesAnnot);
-					currentPerimeters.add(perimAnnot);
-				}finally{
-					lock.unlock();
-				}
+				// Each task sets its own duct index only
+				ductHoles.set(ductIndex, holes);
+				ductPerimeters.set(ductIndex, perimeter);
 			} catch (Exception e) {
 				logger.error(e.getLocalizedMessage(), e);
 				throw new RuntimeException("Unable to run command: Compute duct structure", e);
 			}
-		});
-	}
-	
-	public void addParentRelations(Collection<PathObject> ducts) {
-		ducts.forEach(d->{
-			var duct_id = (int)d.getMeasurementList().getMeasurementValue("id");
-			var holes = currentHoles.stream().filter(h->{
-				var parent_id = (int)h.getMeasurementList().getMeasurementValue("parent id");
-				return parent_id == duct_id;
-			}).collect(Collectors.toList());
-			var perimeters = currentPerimeters.stream().filter(p->{
-				var parent_id = (int)p.getMeasurementList().getMeasurementValue("parent id");
-				return parent_id == duct_id;
-			}).collect(Collectors.toList());
-	
-			d.addPathObjects(holes);
-			d.addPathObjects(perimeters);
-		});
+		}, cancelled, progressListener);
 	}
 	
-	/*
-	class EllipseSize{
-		public double minAxis, maxAxis;
-
-		public EllipseSize(double minAxis, double maxAxis) {
-			this.minAxis = minAxis;
-			this.maxAxis = maxAxis;
-		}
-	}
-
-	private EllipseSize fitEllipse(Boundary polygon) {
-		// Based on Halir R., Flusser J.: Numerically Stable Direct Least Squares Fitting of Ellipses
-		var points = polygon.getNucleusPoints();
-
-		var D1Arr = new double[points.size()][3];
-		var D2Arr = new double[points.size()][3];
-
-		for(var i = 0; i < points.size(); ++i) {
-			var x = points.get(i).getX();
-			var y = points.get(i).getY();
-			D1Arr[i][0] = x*x;
-			D1Arr[i][1] = x*y;
-			D1Arr[i][2] = y*y;
-			D2Arr[i][0] = x;
-			D2Arr[i][1] = y;
-			D2Arr[i][2] = 1;
-		}
-
-		var D1 = MatrixUtils.createRealMatrix(D1Arr);
-		var D2 = MatrixUtils.createRealMatrix(D2Arr);
-
-		var S1 = D1.transpose().multiply(D1);
-		var S2 = D1.transpose().multiply(D2);
-		var S3 = D2.transpose().multiply(D2);
-
-		var T = MatrixUtils.inverse(S3).scalarMultiply(-1).multiply(S2.transpose());
-
-		double[][] C1arr = {{0, 0, 2}, {0, -1, 0}, {2, 0, 0}};
-		var C1 = MatrixUtils.createRealMatrix(C1arr);
-
-		var M = MatrixUtils.inverse(C1).multiply(S1.add(S2.multiply(T)));
-		var decomp = new EigenDecomposition(M);
-
-		RealVector a1 = null;
-		for(var i = 0; i < M.getRowDimension(); ++i) {
-			var vec = decomp.getEigenvector(i);
-			var imVal = decomp.getImagEigenvalue(i);
-			var reVal = decomp.getRealEigenvalue(i);
-			//var cond = 4 * vec.getEntry(0) * vec.getEntry(2) - vec.getEntry(1) * vec.getEntry(1);
-			if(reVal >= 0 && imVal == 0){
-				a1 = vec;
-				break;
-			}
-		}
-		if(a1 == null)
-			throw new RuntimeException("No valid eigenvector found.");
-
-		var a2 = T.operate(a1);
-
-		// Coefficient
-		var a = a1.getEntry(0);
-		var b = a1.getEntry(1) / 2;
-		var c = a1.getEntry(2);
-		var d = a2.getEntry(0) / 2;
-		var e = a2.getEntry(1) / 2;
-		var f = a2.getEntry(2);
-
-		var numerator = 2 * (a*e*e + c*d*d + f*b*b - 2*b*d*e - a*c*f);
-		var denominator1 = (b*b - a*c) * ( Math.sqrt((a-c)*(a-c) + 4*b*b) - (c+a));
-		var denominator2 = (b*b - a*c) * (-Math.sqrt((a-c)*(a-c) + 4*b*b) - (c+a));
-
-		var height = Math.sqrt(numerator / denominator1);
-		var width  = Math.sqrt(numerator / denominator2);
-
-		var minAxis = Math.min(width, height);
-		var maxAxis = Math.max(width, height);
-
-		return new EllipseSize(minAxis, maxAxis);
-	}
-	 */
-
-	class OrientedEdge{
-		public PathObject start;
-		public PathObject end;
-
-		public OrientedEdge(PathObject start, PathObject end) {
-			this.start = start;
-			this.end = end;
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if(obj == null || !(obj instanceof OrientedEdge))
-				return false;
-			var e = (OrientedEdge)obj;
-			return start.equals(e.start) && end.equals(e.end);
-		}
-
-		@Override
-		public int hashCode() {
-			return start.hashCode() * end.hashCode();
-		}
-
-		public boolean isRight(PathObject cell) {
-			var a = getNucleusCentroid(start);
-			var b = getNucleusCentroid(end);
-			var c = getNucleusCentroid(cell);
-
-			return ((b.getX() - a.getX())*(c.getY() - a.getY()) 
-					- (b.getY() - a.getY())*(c.getX() - a.getX())) < 0;
-		}
-
-		public OrientedEdge getOpposite() {
-			return new OrientedEdge(end, start);
-		}
-	}
-
 	class Boundary{
-		public List<PathObject> cells;
+		public DuctGraph graph;
+		public int[] cells;
 		public boolean isHole;
 		public Polygon polygon;
-		public int parent_id;
+		private PreparedGeometry preparedPolygon;
 
-		public Boundary(List<PathObject> cells, boolean isHole) {
+		public Boundary(DuctGraph graph, int[] cells, boolean isHole) {
+			this.graph = graph;
 			this.cells = cells;
 			this.isHole = isHole;
-			var coords = new Coordinate[cells.size()+1];
-			for(var i = 0; i < cells.size(); ++i) {
-				var p = getNucleusCentroid(cells.get(i));
-				coords[i] = new Coordinate(p.getX(), p.getY());
-			}
-			coords[cells.size()] = coords[0];
+			var coords = new Coordinate[cells.length+1];
+			for(var i = 0; i < cells.length; ++i)
+				coords[i] = new Coordinate(graph.getX(cells[i]), graph.getY(cells[i]));
+			coords[cells.length] = coords[0];
 			polygon = new GeometryFactory().createPolygon(coords);
 		}
 
-		public PolygonROI getROI() {
-			var points = cells.stream().map(cell -> {
-				return getNucleusCentroid(cell);
-			}).collect(Collectors.toList());
-			return ROIs.createPolygonROI(points, ImagePlane.getDefaultPlane());
+		// Prepared once, for repeated covers tests
+		public PreparedGeometry getPreparedPolygon() {
+			if(preparedPolygon == null)
+				preparedPolygon = PreparedGeometryFactory.prepare(polygon);
+			return preparedPolygon;
 		}
 
-		public List<Point2> getNucleusPoints(){
-			return cells.stream().map(cell -> {
-				return getNucleusCentroid(cell);
-			}).collect(Collectors.toList());
+		public DuctBoundary toDuctBoundary(int parentId) {
+			var xs = new double[cells.length];
+			var ys = new double[cells.length];
+			for(var i = 0; i < cells.length; ++i) {
+				xs[i] = graph.getX(cells[i]);
+				ys[i] = graph.getY(cells[i]);
+			}
+			return new DuctBoundary(xs, ys, isHole, parentId);
 		}
+	}
 
-		public PathObject toPathObject(ImageData<BufferedImage> image) {
-			var annotation = PathObjects.createAnnotationObject(this.getROI());
-			if(isHole) 
-				annotation.setPathClass(PathClassFactory.getPathClass("Hole"));
-			else 
-				annotation.setPathClass(PathClassFactory.getPathClass("Perimeter"));
-			
-			annotation.getMeasurementList().putMeasurement("parent id", parent_id);
-			ObjectMeasurements.addShapeMeasurements(annotation, image.getServer().getPixelCalibration());
-			return annotation;
-		}
+	/**
+	 * Step of the boundary walks: the edge following an oriented edge on the face at its right,
+	 * from the edge target to its right most neighbor in the duct.
+	 */
+	interface FaceWalk {
+		int next(DuctGraph graph, DuctGraph.Adjacency adjacency, int duct, int edge);
+	}
+
+	// Right most neighbor: next neighbor of the cell in angle order, after the previous cell.
+	// If there is no other neighbor, this turns in other direction.
+	static final FaceWalk HALF_EDGE_WALK = (graph, adjacency, duct, edge) -> {
+		var next = adjacency.next(edge);
+		while(!graph.isInDuct(adjacency.target(next), duct))
+			next = adjacency.successor(adjacency.target(edge), next);
+		return next;
+	};
+
+	// Replace the boundary walk, to compare its boundaries with other walks in tests
+	DuctStructureComputer faceWalk(FaceWalk faceWalk) {
+		this.faceWalk = faceWalk;
+		return this;
 	}
 
-	private Collection<Boundary> findBoundaries(Collection<PathObject> ductCells, List<Map<PathObject, List<PathObject>>> boundariesNeighbors){
+	/**
+	 * Walk the faces of the duct graph at each distance threshold. Oriented edges are the CSR positions of
+	 * the adjacency, visited flags are indexed by a local numbering of the duct edges.
+	 * As neighbors are sorted by angle, each face edge is found in constant time and each edge is walked once.
+	 * Cells found on a kept boundary are flagged in isOnBoundary (indexed by position in the duct).
+	 */
+	Collection<Boundary> findBoundaries(DuctGraph graph, int[] ductCells, List<DuctGraph.Adjacency> boundariesAdjacencies, boolean[] isOnBoundary){
 		List<Boundary> boundaries = new ArrayList<>();
-		var cellSet = new HashSet<PathObject>(ductCells);
-		for(var bni = 0; bni < boundariesNeighbors.size(); ++bni) {
-			var keepPerimeters = bni == boundariesNeighbors.size()-1;
-			var boundNeighbors = boundariesNeighbors.get(bni);
-			// Compute graph edges
-			Set<OrientedEdge> edges = new HashSet<>();
-			Map<OrientedEdge, Boolean> isVisited = new HashMap<>();
-			for (PathObject cell : ductCells) {
-				var neighbors = boundNeighbors.get(cell);
-				for (PathObject neighbor : neighbors) {
-					if(!cellSet.contains(neighbor))
-						continue;
-					var edge1 = new OrientedEdge(cell, neighbor);
-					var edge2 = new OrientedEdge(neighbor, cell);
-					edges.add(edge1);
-					edges.add(edge2);
-					isVisited.put(edge1, false);
-					isVisited.put(edge2, false);
-				}
+		var boundariesIndex = new STRtree();
+		var duct = graph.getDuct(ductCells[0]);
+		for(var bni = 0; bni < boundariesAdjacencies.size(); ++bni) {
+			var keepPerimeters = bni == boundariesAdjacencies.size()-1;
+			var adjacency = boundariesAdjacencies.get(bni);
+			// Local index of the first edge of each duct cell
+			var edgeOffsets = new int[ductCells.length+1];
+			for(var i = 0; i < ductCells.length; ++i)
+				edgeOffsets[i+1] = edgeOffsets[i] + adjacency.degree(ductCells[i]);
+			var isVisited = new BitSet(edgeOffsets[ductCells.length]);
+			var curBoundary = new int[Math.max(edgeOffsets[ductCells.length], 1)];
+			var curEdges = new int[curBoundary.length];
+			// Index in curBoundaries of the boundary walking each local edge, -1 for dropped faces
+			int[] edgeBoundaries = null;
+			if(mergeAdjacentHoles) {
+				edgeBoundaries = new int[edgeOffsets[ductCells.length]];
+				Arrays.fill(edgeBoundaries, -1);
 			}
+
 			List<Boundary> curBoundaries = new ArrayList<>();
-			Map<OrientedEdge, PathObject> edgesToRefine = new HashMap<>();
-			for (OrientedEdge edge : edges) {
-				if(isVisited.get(edge))
-					continue;
-				List<PathObject> curBoundary = new ArrayList<>();
-				var startEdge = edge;
-				var rightMostEdge = edge;
-				do {
-					edge = rightMostEdge;
-					isVisited.put(edge, true);
-					curBoundary.add(edge.end);
-					rightMostEdge = null;
-
-					var neighbors = boundNeighbors.get(edge.end);
-					var isCurrentBestOnRightSide = false;
-					for (PathObject neighbor : neighbors) {
-						if(!cellSet.contains(neighbor))
-							continue;
-						if(neighbor.equals(edge.start))
-							continue;
-						var isRightMost = false;
-						if(rightMostEdge == null)
-							isRightMost = true;
-						var isRightToEdge = edge.isRight(neighbor);
-						if(rightMostEdge != null){
-							var isRightToCurrentBest = rightMostEdge.isRight(neighbor);
-
-							if(isCurrentBestOnRightSide) {
-								// If neighbor is on right side to both current edge and right most neighboring edge, then it is the right most one.
-								if(isRightToEdge && isRightToCurrentBest)
-									isRightMost = true;
-							}else {
-								// If neighbor is on right side to both current edge or right most neighboring edge, then it is the right most one.
-								if(isRightToEdge || isRightToCurrentBest)
-									isRightMost = true;
-							}
+			// Cell to insert in each local edge, -1 if the edge is not refined
+			int[] edgesToRefine = null;
+			if(refineBoundaries) {
+				edgesToRefine = new int[edgeOffsets[ductCells.length]];
+				Arrays.fill(edgesToRefine, -1);
+			}
+			for (var cell : ductCells) {
+				for(var startEdge = adjacency.start(cell); startEdge < adjacency.end(cell); ++startEdge) {
+					if(!adjacency.isActive(startEdge) || !graph.isInDuct(adjacency.target(startEdge), duct))
+						continue;
+					if(isVisited.get(getLocalEdge(graph, adjacency, edgeOffsets, cell, startEdge)))
+						continue;
+					var boundarySize = 0;
+					var edgeStart = cell;
+					var edge = startEdge;
+					do {
+						var localEdge = getLocalEdge(graph, adjacency, edgeOffsets, edgeStart, edge);
+						isVisited.set(localEdge);
+						var edgeEnd = adjacency.target(edge);
+						if(boundarySize == curBoundary.length) {
+							curBoundary = Arrays.copyOf(curBoundary, 2 * boundarySize);
+							curEdges = Arrays.copyOf(curEdges, 2 * boundarySize);
 						}
-						if(isRightMost) {
-							rightMostEdge =  new OrientedEdge(edge.end, neighbor);
-							isCurrentBestOnRightSide = isRightToEdge;	
+						curEdges[boundarySize] = localEdge;
+						curBoundary[boundarySize++] = edgeEnd;
+
+						edgeStart = edgeEnd;
+						edge = faceWalk.next(graph, adjacency, duct, edge);
+					}while(edge != startEdge);
+
+					var boundary = Arrays.copyOf(curBoundary, boundarySize);
+					var isHole = isPolygonClockwise(graph, boundary);
+
+					if(refineBoundaries) {
+						if(boundary.length == 3 && isHole)
+						{
+							var angles = getTriangleAngles(graph, boundary);
+							for(var i = 0; i < 3; ++i) {
+								if(angles[i] >= triangleToRefineMinAngle) {
+									var p1 = boundary[(i+1) % 3];
+									var p2 = boundary[(i+2) % 3];
+									edgesToRefine[findLocalEdge(graph, adjacency, edgeOffsets, p2, p1)] = boundary[i];
+									break;
+								}
+							}
 						}
 					}
-					if(rightMostEdge == null)
-						//If no right most edge, turn in other direction
-						rightMostEdge = edge.getOpposite();
-				}while(!startEdge.equals(rightMostEdge));
-
-				var isHole = isPolygonClockwise(curBoundary);
-
-				if(refineBoundaries) {
-					if(curBoundary.size() == 3 && isHole)
-					{
-						var angles = getTriangleAngles(curBoundary);
-						for(var i = 0; i < 3; ++i) {
-							if(angles[i] >= triangleToRefineMinAngle) {
-								var p1 = curBoundary.get((i+1) % 3);
-								var p2 = curBoundary.get((i+2) % 3);
-								edgesToRefine.put(new OrientedEdge(p2, p1), curBoundary.get(i));
-								break;
-							}
+
+					if(boundary.length > 3) {
+						if(edgeBoundaries != null) {
+							for(var i = 0; i < boundarySize; ++i)
+								edgeBoundaries[curEdges[i]] = curBoundaries.size();
 						}
+						curBoundaries.add(new Boundary(graph, boundary, isHole));
 					}
 				}
-
-				if(curBoundary.size() > 3)
-					curBoundaries.add(new Boundary(curBoundary, isHole));
 			}
 
-			//curBoundaries = mergeAdjacentHoles(curBoundaries);
+			if(mergeAdjacentHoles)
+				curBoundaries = mergeAdjacentHoles(graph, ductCells, adjacency, edgeOffsets, edgeBoundaries, curBoundaries);
 
-			if(refineBoundaries)
+			if(refineBoundaries) {
+				var refinedEdges = edgesToRefine;
 				curBoundaries = curBoundaries.stream().map(boundary -> {
-					return refineBoundary(boundary, edgesToRefine);
+					return refineBoundary(boundary, adjacency, edgeOffsets, refinedEdges);
 				}).collect(Collectors.toList());
+			}
 
 			curBoundaries = curBoundaries.stream().filter(boundary -> {
-				return boundary.cells.size() >= holesMinCellSize;
+				return boundary.cells.length >= holesMinCellSize;
 			}).collect(Collectors.toList());
 
-			curBoundaries.stream().forEach(boundary -> {
-				boundary.cells.stream().forEach(cell -> {
-					// Consider the cells detected at boundaries to be at distance 0
-					cell.getMeasurementList().putMeasurement(DISTANCE_TO_BOUNDARIES, 0);					
-				});
-			});
+			for(var boundary : curBoundaries) {
+				// Consider the cells detected at boundaries to be at distance 0
+				for(var cell : boundary.cells)
+					isOnBoundary[graph.getIndexInDuct(cell)] = true;
+			}
 
 			if(!keepPerimeters)
 				curBoundaries = curBoundaries.stream().filter(boundary -> {
 					return boundary.isHole;
 				}).collect(Collectors.toList());
 
-			curBoundaries = curBoundaries.stream().filter(boundary -> {
-				if(!boundary.isHole)
-					return true;
-				// Existing hole are expected to cover other holes prediction for same points.
-				return boundaries.stream().allMatch(boundary2 -> {
-					return !boundary2.polygon.covers(boundary.polygon);
-				});
-			}).collect(Collectors.toList());
+			var acceptedBoundaries = new ArrayList<Boundary>(curBoundaries.size());
+			for(var boundary : curBoundaries) {
+				if(boundary.isHole && isCovered(boundariesIndex, boundary))
+					continue;
+				acceptedBoundaries.add(boundary);
+			}
+			curBoundaries = acceptedBoundaries;
 
 
 			boundaries.addAll(curBoundaries);
+			// Rebuilt for the next threshold, an STRtree can not be modified once queried
+			boundariesIndex = new STRtree();
+			for(var boundary : boundaries)
+				boundariesIndex.insert(boundary.polygon.getEnvelopeInternal(), boundary.getPreparedPolygon());
 		}
 
 		return boundaries;
 	}
 
-	private double[] getTriangleAngles(List<PathObject> triangle) {
-		var p1 = getNucleusCentroid(triangle.get(0));
-		var p2 = getNucleusCentroid(triangle.get(1));
-		var p3 = getNucleusCentroid(triangle.get(2));
+	// Existing hole are expected to cover other holes prediction for same points.
+	// Only the accepted boundaries whose envelope covers the hole envelope are tested.
+	private static boolean isCovered(STRtree boundariesIndex, Boundary boundary) {
+		var envelope = boundary.polygon.getEnvelopeInternal();
+		for(var candidate : (List<PreparedGeometry>)boundariesIndex.query(envelope)) {
+			if(candidate.getGeometry().getEnvelopeInternal().covers(envelope) && candidate.covers(boundary.polygon))
+				return true;
+		}
+		return false;
+	}
+
+	// Local index of an edge starting at a duct cell
+	private static int getLocalEdge(DuctGraph graph, DuctGraph.Adjacency adjacency, int[] edgeOffsets, int start, int edge) {
+		return edgeOffsets[graph.getIndexInDuct(start)] + edge - adjacency.start(start);
+	}
+
+	private double[] getTriangleAngles(DuctGraph graph, int[] triangle) {
+		var x1 = graph.getX(triangle[0]);
+		var y1 = graph.getY(triangle[0]);
+		var x2 = graph.getX(triangle[1]);
+		var y2 = graph.getY(triangle[1]);
+		var x3 = graph.getX(triangle[2]);
+		var y3 = graph.getY(triangle[2]);
 
 		var angles = new double[3];
 		angles[0] = Math.abs(
-				Math.atan2(p3.getY() - p1.getY(), p3.getX() - p1.getX()) -
-				Math.atan2(p2.getY() - p1.getY(), p2.getX() - p1.getX()));
+				Math.atan2(y3 - y1, x3 - x1) -
+				Math.atan2(y2 - y1, x2 - x1));
 		angles[1] = Math.abs(
-				Math.atan2(p1.getY() - p2.getY(), p1.getX() - p2.getX()) -
-				Math.atan2(p3.getY() - p2.getY(), p3.getX() - p2.getX()));
+				Math.atan2(y1 - y2, x1 - x2) -
+				Math.atan2(y3 - y2, x3 - x2));
 		if(angles[0] > Math.PI)
 			angles[0] = 2*Math.PI - angles[0];
 		if(angles[1] > Math.PI)
@@ -722,195 +1124,191 @@ public class DuctStructureComputer {
 		return angles;
 	}
 
-	private boolean isPolygonClockwise(List<PathObject> polygon) {
-		var area = 0;
-		for (var i = 0; i < polygon.size(); i++) {
-			var j = (i + 1) % polygon.size();
-			var pI = getNucleusCentroid(polygon.get(i));
-			var pJ = getNucleusCentroid(polygon.get(j));
-			area += pI.getX() * pJ.getY();
-			area -= pJ.getX() * pI.getY();
+	private static boolean isPolygonClockwise(DuctGraph graph, int[] polygon) {
+		var area = 0.0;
+		for (var i = 0; i < polygon.length; i++) {
+			var j = (i + 1) % polygon.length;
+			area += graph.getX(polygon[i]) * graph.getY(polygon[j]);
+			area -= graph.getX(polygon[j]) * graph.getY(polygon[i]);
 		}
 		return area < 0;
 	}
 
-	/*
-	private List<Boundary> mergeAdjacentHoles(List<Boundary> boundaries){
-		Map<OrientedEdge, Integer> edgeToBoundary = new HashMap<>();
-		var isMerging = new boolean[boundaries.size()];
-		List<Pair<Integer, Integer>> toMerge = new ArrayList<>();
-		List<OrientedEdge> mergingEdge = new ArrayList<>();
-		for(var i = 0; i < boundaries.size(); ++i) {
-			if(!boundaries.get(i).isHole)
-				continue;
-			var polygonEdges = polygonPointsToEdge(boundaries.get(i).cells);
-			for(var j = 0; j < polygonEdges.size(); ++j) {
-				var edge = polygonEdges.get(j);
-				edgeToBoundary.put(edge, i);
-				var oppositeEdge = edge.getOpposite();
-				if(edgeToBoundary.containsKey(oppositeEdge)) {
-					var k = edgeToBoundary.get(oppositeEdge);
-					toMerge.add(new Pair<Integer, Integer>(i, k));
-					mergingEdge.add(edge);
-					isMerging[i] = true;
-					isMerging[k] = true;
-				}
+	/**
+	 * Merge the holes walking the two oriented edges of an edge with a union-find over the holes.
+	 * Each merged hole is then walked once on the duct graph without the edges inside it:
+	 * at each cell, the edges with the same merged hole on both sides are skipped.
+	 * Walks around islands inside a merged hole (counter-clockwise) are dropped.
+	 */
+	private List<Boundary> mergeAdjacentHoles(DuctGraph graph, int[] ductCells, DuctGraph.Adjacency adjacency, int[] edgeOffsets, int[] edgeBoundaries, List<Boundary> boundaries){
+		var unionFind = new UnionFind(boundaries.size());
+		var hasMerged = false;
+		for(var cell : ductCells) {
+			for(var e = adjacency.start(cell); e < adjacency.end(cell); ++e) {
+				var hole = edgeBoundaries[getLocalEdge(graph, adjacency, edgeOffsets, cell, e)];
+				if(hole < 0 || !boundaries.get(hole).isHole)
+					continue;
+				var twinHole = edgeBoundaries[getLocalEdge(graph, adjacency, edgeOffsets, adjacency.target(e), adjacency.twin(e))];
+				if(twinHole >= 0 && boundaries.get(twinHole).isHole && unionFind.union(hole, twinHole) >= 0)
+					hasMerged = true;
 			}
 		}
+		if(!hasMerged)
+			return boundaries;
+
+		// Merged holes by root
+		var mergedHoles = new HashMap<Integer, List<Boundary>>();
+		var isWalked = new BitSet(edgeBoundaries.length);
+		var curBoundary = new int[Math.max(edgeBoundaries.length, 1)];
+		var duct = graph.getDuct(ductCells[0]);
+		for(var cell : ductCells) {
+			for(var startEdge = adjacency.start(cell); startEdge < adjacency.end(cell); ++startEdge) {
+				var localEdge = getLocalEdge(graph, adjacency, edgeOffsets, cell, startEdge);
+				var hole = edgeBoundaries[localEdge];
+				if(hole < 0 || unionFind.getSetSize(hole) == 1 || isWalked.get(localEdge)
+						|| isInsideMergedHole(graph, adjacency, edgeOffsets, edgeBoundaries, unionFind, cell, startEdge))
+					continue;
+				var boundarySize = 0;
+				var edgeStart = cell;
+				var edge = startEdge;
+				do {
+					isWalked.set(getLocalEdge(graph, adjacency, edgeOffsets, edgeStart, edge));
+					var edgeEnd = adjacency.target(edge);
+					curBoundary[boundarySize++] = edgeEnd;
+					var rightMostEdge = adjacency.next(edge);
+					while(!graph.isInDuct(adjacency.target(rightMostEdge), duct)
+							|| isInsideMergedHole(graph, adjacency, edgeOffsets, edgeBoundaries, unionFind, edgeEnd, rightMostEdge))
+						rightMostEdge = adjacency.successor(edgeEnd, rightMostEdge);
+					edgeStart = edgeEnd;
+					edge = rightMostEdge;
+				}while(edge != startEdge);
 
-		var result = new ArrayList<Boundary>();
-		Map<Integer, Integer> boundaryToMergedResult = new HashMap<Integer, Integer>();
-		Map<Integer, Integer> replacedResult = new HashMap<Integer, Integer>();
-		for(var i = 0; i < toMerge.size(); ++i) {
-			var bInd1 = toMerge.get(i).getKey();
-			var bInd2 = toMerge.get(i).getValue();
-			var b1 = boundaries.get(bInd1);
-			var b2 = boundaries.get(bInd2);
-			int resInd1 = -1;
-			int resInd2 = -1;
-
-			if(boundaryToMergedResult.containsKey(bInd1)){
-				resInd1 = boundaryToMergedResult.get(bInd1);
-				while(replacedResult.containsKey(resInd1))
-					resInd1 = replacedResult.get(resInd1);
-				b1 = result.get(resInd1);
+				var boundary = Arrays.copyOf(curBoundary, boundarySize);
+				if(isPolygonClockwise(graph, boundary))
+					mergedHoles.computeIfAbsent(unionFind.find(hole), k -> new ArrayList<>()).add(new Boundary(graph, boundary, true));
 			}
-			if(boundaryToMergedResult.containsKey(bInd2)) {
-				resInd2 = boundaryToMergedResult.get(bInd2);
-				while(replacedResult.containsKey(resInd2))
-					resInd2 = replacedResult.get(resInd2);
-				b2 = result.get(resInd2);
+		}
+
+		// Merged holes take the place of their first hole
+		var result = new ArrayList<Boundary>(boundaries.size());
+		for(var i = 0; i < boundaries.size(); ++i) {
+			if(!boundaries.get(i).isHole || unionFind.getSetSize(i) == 1)
+				result.add(boundaries.get(i));
+			else {
+				var merged = mergedHoles.remove(unionFind.find(i));
+				if(merged != null)
+					result.addAll(merged);
 			}
+		}
+		return result;
+	}
 
-			var edgeToMerge = mergingEdge.get(i);
-
-			var mergedBoundary = new ArrayList<PathObject>();
-
-			for(var j = 0; j < b1.cells.size(); ++j) {
-				var cell = b1.cells.get(j);
-				if(cell.equals(edgeToMerge.start)) {
-					boolean startAdding = false;
-					boolean metEndCell = false;
-					for(var k = 0; k < b2.cells.size(); ++k) {
-						var cell2 = b2.cells.get(k);
-						if(cell2.equals(edgeToMerge.start))
-							startAdding = true;
-						else if(cell2.equals(edgeToMerge.end)) {
-							metEndCell = true;
-							break;
-						}
-						if(startAdding)
-							mergedBoundary.add(cell2);
-					}
-					if(!metEndCell)
-						for(var k = 0; k < b2.cells.size(); ++k) {
-							var cell2 = b2.cells.get(k);
-							if(cell2.equals(edgeToMerge.end))
-								break;
+	// Whether an edge has the same merged hole on both sides
+	private static boolean isInsideMergedHole(DuctGraph graph, DuctGraph.Adjacency adjacency, int[] edgeOffsets, int[] edgeBoundaries, UnionFind unionFind, int start, int edge) {
+		var hole = edgeBoundaries[getLocalEdge(graph, adjacency, edgeOffsets, start, edge)];
+		var twinHole = edgeBoundaries[getLocalEdge(graph, adjacency, edgeOffsets, adjacency.target(edge), adjacency.twin(edge))];
+		return hole >= 0 && twinHole >= 0 && unionFind.getSetSize(hole) > 1 && unionFind.find(hole) == unionFind.find(twinHole);
+	}
 
-							mergedBoundary.add(cell2);
-						}
-				} else {
-					mergedBoundary.add(cell);
-				}
+	/**
+	 * Insert the refined cell of each boundary edge found in edgesToRefine (indexed by local edge), until no edge is refined.
+	 * Cells are linked in boundary order, inserted cells queue their two new edges, so each edge is looked up once.
+	 * The boundary is only rebuilt at the end if a cell was inserted.
+	 */
+	private Boundary refineBoundary(Boundary boundary, DuctGraph.Adjacency adjacency, int[] edgeOffsets, int[] edgesToRefine){
+		var graph = boundary.graph;
+		var n = boundary.cells.length;
+		var cells = Arrays.copyOf(boundary.cells, 2 * n);
+		var nexts = new int[cells.length];
+		var queue = new int[cells.length];
+		var queueSize = 0;
+		for(var i = 0; i < n; ++i) {
+			nexts[i] = (i + 1) % n;
+			queue[queueSize++] = i;
+		}
+		var size = n;
+		// A refined edge is the edge of a triangle, so there are at most as many insertions as local edges
+		while(queueSize > 0 && size - n < edgesToRefine.length) {
+			var i = queue[--queueSize];
+			var localEdge = findLocalEdge(graph, adjacency, edgeOffsets, cells[i], cells[nexts[i]]);
+			if(localEdge < 0 || edgesToRefine[localEdge] < 0)
+				continue;
+			if(size == cells.length) {
+				cells = Arrays.copyOf(cells, 2 * size);
+				nexts = Arrays.copyOf(nexts, 2 * size);
 			}
-			result.add(new Boundary(mergedBoundary, true));
-			boundaryToMergedResult.put(bInd1, i);
-			boundaryToMergedResult.put(bInd2, i);
-			if(resInd1 != -1)
-				replacedResult.put(resInd1, i);
-			if(resInd2 != -1)
-				replacedResult.put(resInd2, i);
+			if(queueSize + 2 > queue.length)
+				queue = Arrays.copyOf(queue, 2 * queue.length + 2);
+			cells[size] = edgesToRefine[localEdge];
+			nexts[size] = nexts[i];
+			nexts[i] = size;
+			queue[queueSize++] = i;
+			queue[queueSize++] = size;
+			size++;
 		}
-
-		var finalResult = new ArrayList<Boundary>();
-		for(var i = 0; i < result.size(); ++i) {
-			if(!replacedResult.containsKey(i))
-				finalResult.add(result.get(i));
+		if(size == n)
+			return boundary;
+
+		var refinedCells = new int[size];
+		var node = 0;
+		for(var k = 0; k < size; ++k) {
+			refinedCells[k] = cells[node];
+			node = nexts[node];
 		}
+		return new Boundary(graph, refinedCells, boundary.isHole);
+	}
 
-		for(var i = 0; i < boundaries.size(); ++i) {
-			if(!isMerging[i])
-				finalResult.add(boundaries.get(i));
+	// Local index of the active edge from a duct cell to another, -1 if there is none
+	private static int findLocalEdge(DuctGraph graph, DuctGraph.Adjacency adjacency, int[] edgeOffsets, int start, int end) {
+		for(var e = adjacency.start(start); e < adjacency.end(start); ++e) {
+			if(adjacency.target(e) == end && adjacency.isActive(e))
+				return getLocalEdge(graph, adjacency, edgeOffsets, start, e);
 		}
-
-		return finalResult;
+		return -1;
 	}
-	 */
 
-	private Boundary refineBoundary(Boundary boundary, Map<OrientedEdge, PathObject> edgesToRefine){
-		var polygonEdges = polygonPointsToEdge(boundary.cells);
-		var curBoundary = new ArrayList<PathObject>();
-		var hasRefined = false;
-		for(var i = 0; i < polygonEdges.size(); ++i) {
-			var edge = polygonEdges.get(i);
-			if(edgesToRefine.containsKey(edge)) {
-				curBoundary.add(edgesToRefine.get(edge));
-				hasRefined = true;
-			}
-			curBoundary.add(edge.end);
-		}
-		boundary = new Boundary(curBoundary, boundary.isHole);
-		if(hasRefined)
-			return refineBoundary(boundary, edgesToRefine);
-		return boundary;
-	}
-
-	private List<OrientedEdge> polygonPointsToEdge(List<PathObject> points){
-		var edges = new ArrayList<OrientedEdge>();
-		for (var i = 0; i < points.size(); i++) {
-			var j = (i + 1) % points.size();
-			var pI = points.get(i);
-			var pJ = points.get(j);
-			var edge = new OrientedEdge(pI, pJ);
-			edges.add(edge);
-		}
-		return edges;
-	}
-
-	private void computeCellDistanceToBoundaries(Collection<PathObject> ductCells, Collection<Boundary> boundaries, Map<PathObject, List<PathObject>> ductNeighbors) {
-		Map<PathObject, Integer> distanceToBoundaries = new HashMap<>();
-		Map<PathObject, Integer> numberConnectedBoundaries = new HashMap<>(); // None (-1), Hole (0), Perimeter (1), Both (2)
-		Queue<PathObject> cellQueue = new ArrayDeque<>();
-		for (PathObject cell : ductCells) {
-			if(cell.getMeasurementList().containsNamedMeasurement(DISTANCE_TO_BOUNDARIES)){
-				distanceToBoundaries.put(cell, 0);
-				cellQueue.add(cell);
+	/**
+	 * Multi-source BFS from the boundary cells over the duct graph, arrays are indexed by position in the duct.
+	 */
+	private void computeCellDistanceToBoundaries(DuctGraph graph, int[] ductCells, Collection<Boundary> boundaries, DuctGraph.Adjacency ductAdjacency, boolean[] isOnBoundary) {
+		var distanceToBoundaries = new int[ductCells.length];
+		var numberConnectedBoundaries = new int[ductCells.length]; // None (-1), Hole (0), Perimeter (1), Both (2)
+		// Each cell is queued once, distances only grow along the queue
+		var cellQueue = new int[ductCells.length];
+		var queueStart = 0;
+		var queueEnd = 0;
+		for (var i = 0; i < ductCells.length; ++i) {
+			if(isOnBoundary[i]){
+				distanceToBoundaries[i] = 0;
+				cellQueue[queueEnd++] = i;
 			}else
-				distanceToBoundaries.put(cell, -1);
-			numberConnectedBoundaries.put(cell, 0);
+				distanceToBoundaries[i] = -1;
+		}
+		for(var b : boundaries) {
+			for(var c : b.cells)
+				numberConnectedBoundaries[graph.getIndexInDuct(c)]++;
 		}
-		boundaries.stream().forEach(b ->{
-			b.cells.forEach(c->{
-				var nbConnectedBoundaries = numberConnectedBoundaries.get(c);
-				numberConnectedBoundaries.put(c, nbConnectedBoundaries + 1);
-			});
-		});
 
-		while(!cellQueue.isEmpty()) {
-			var curCell = cellQueue.poll();
-			var neighbors = ductNeighbors.get(curCell);
-			var newNeighborDist = distanceToBoundaries.get(curCell) + 1;
-			for (PathObject neighbor : neighbors) {
-				var curDist = distanceToBoundaries.get(neighbor);
-				if(curDist == -1 || curDist > newNeighborDist){
-					distanceToBoundaries.put(neighbor, newNeighborDist);
-					cellQueue.add(neighbor);
+		while(queueStart < queueEnd) {
+			var curCell = cellQueue[queueStart++];
+			var cell = ductCells[curCell];
+			var newNeighborDist = distanceToBoundaries[curCell] + 1;
+			for (var e = ductAdjacency.start(cell); e < ductAdjacency.end(cell); ++e) {
+				if(!ductAdjacency.isActive(e))
+					continue;
+				var neighbor = graph.getIndexInDuct(ductAdjacency.target(e));
+				if(distanceToBoundaries[neighbor] == -1){
+					distanceToBoundaries[neighbor] = newNeighborDist;
+					cellQueue[queueEnd++] = neighbor;
 				}
 			}
 		}
 
-		for (PathObject cell : ductCells) {
-			var dist = distanceToBoundaries.get(cell);
-			cell.getMeasurementList().putMeasurement(DISTANCE_TO_BOUNDARIES, dist);
-			var nbConnectedBoundaries = numberConnectedBoundaries.get(cell);
-			cell.getMeasurementList().putMeasurement(IS_IN_MONOLAYER, nbConnectedBoundaries >= 2 ? 1 : 0);
+		for (var i = 0; i < ductCells.length; ++i) {
+			var measurements = graph.getCell(ductCells[i]).getMeasurementList();
+			measurements.putMeasurement(DISTANCE_TO_BOUNDARIES, distanceToBoundaries[i]);
+			measurements.putMeasurement(IS_IN_MONOLAYER, numberConnectedBoundaries[i] >= 2 ? 1 : 0);
 		}
 	}
 
-	private static Point2 getNucleusCentroid(PathObject cell) {
-		var nucleus = PathObjectTools.getROI(cell, true);
-		return new Point2(nucleus.getCentroidX(), nucleus.getCentroidY());
-	}
-
 }
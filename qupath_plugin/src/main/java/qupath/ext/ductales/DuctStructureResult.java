@@ -0,0 +1,213 @@
+package qupath.ext.ductales;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.objects.DefaultPathObjectConnectionGroup;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectConnectionGroup;
+import qupath.lib.objects.PathObjectConnections;
+
+/**
+ * Output of a {@link DuctStructureComputer#compute} call: the duct annotations, and their holes, perimeter
+ * and Delaunay connections grouped by duct index. The index is the "id" measurement of the duct for a full computation.
+ * <p>
+ * Holes and perimeters are kept as {@link DuctBoundary} polygons, their annotations are built (once) when requested.
+ * The result is not modified otherwise once returned, so a computer can be shared by several threads.
+ * <p>
+ * The cells are not moved to their duct by the computation: {@link #addCellsToDucts()} does it, on the thread
+ * adding the ducts to the hierarchy (the JavaFX thread in the GUI).
+ */
+public class DuctStructureResult {
+	private final List<PathObject> ducts;
+	private final List<List<PathObject>> ductChildren;
+	private final List<List<DuctBoundary>> holes;
+	private final List<DuctBoundary> perimeters;
+	private final DuctGraph graph;
+	private final DuctGraph.Adjacency ductAdjacency;
+	private final PixelCalibration calibration;
+	// Annotations built so far, by duct index
+	private final PathObject[][] holesPathObjects;
+	private final PathObject[] perimetersPathObjects;
+
+	private boolean cellsAdded = false;
+
+	DuctStructureResult(List<PathObject> ducts, List<List<PathObject>> ductChildren, List<List<DuctBoundary>> holes, List<DuctBoundary> perimeters, DuctGraph graph, DuctGraph.Adjacency ductAdjacency, PixelCalibration calibration) {
+		this.ducts = Collections.unmodifiableList(ducts);
+		this.ductChildren = ductChildren;
+		var ductHoles = new ArrayList<List<DuctBoundary>>(holes.size());
+		for(var h : holes)
+			ductHoles.add(Collections.unmodifiableList(h));
+		this.holes = Collections.unmodifiableList(ductHoles);
+		this.perimeters = Collections.unmodifiableList(perimeters);
+		this.graph = graph;
+		this.ductAdjacency = ductAdjacency;
+		this.calibration = calibration;
+		holesPathObjects = new PathObject[ducts.size()][];
+		perimetersPathObjects = new PathObject[ducts.size()];
+	}
+
+	public int nDucts() {
+		return ducts.size();
+	}
+
+	public List<PathObject> getDucts() {
+		return ducts;
+	}
+
+	public PathObject getDuct(int ductIndex) {
+		return ducts.get(ductIndex);
+	}
+
+	// Empty if the ducts were not measured
+	public List<DuctBoundary> getHoleBoundaries(int ductIndex) {
+		return holes.get(ductIndex);
+	}
+
+	// Null if the ducts were not measured
+	public DuctBoundary getPerimeterBoundary(int ductIndex) {
+		return perimeters.get(ductIndex);
+	}
+
+	// Hole annotations of a duct, built on the first call
+	public synchronized List<PathObject> getHoles(int ductIndex) {
+		if(holesPathObjects[ductIndex] == null) {
+			var ductHoles = holes.get(ductIndex);
+			holesPathObjects[ductIndex] = new PathObject[ductHoles.size()];
+			for(var i = 0; i < ductHoles.size(); ++i)
+				holesPathObjects[ductIndex][i] = ductHoles.get(i).toPathObject(calibration);
+		}
+		return List.of(holesPathObjects[ductIndex]);
+	}
+
+	// Perimeter annotation of a duct, built on the first call. Null if the ducts were not measured
+	public synchronized PathObject getPerimeter(int ductIndex) {
+		if(perimetersPathObjects[ductIndex] == null && perimeters.get(ductIndex) != null)
+			perimetersPathObjects[ductIndex] = perimeters.get(ductIndex).toPathObject(calibration);
+		return perimetersPathObjects[ductIndex];
+	}
+
+	public List<PathObject> getAllHoles() {
+		var allHoles = new ArrayList<PathObject>();
+		for(var i = 0; i < ducts.size(); ++i)
+			allHoles.addAll(getHoles(i));
+		return allHoles;
+	}
+
+	public List<PathObject> getAllPerimeters() {
+		var allPerimeters = new ArrayList<PathObject>(ducts.size());
+		for(var i = 0; i < ducts.size(); ++i) {
+			var perimeter = getPerimeter(i);
+			if(perimeter != null)
+				allPerimeters.add(perimeter);
+		}
+		return allPerimeters;
+	}
+
+	// Adjacency of the graph up to the duct max distance
+	DuctGraph.Adjacency getDuctAdjacency() {
+		return ductAdjacency;
+	}
+
+	// Delaunay connections of all the filtered cells (only the duct cells with the grid hash backend), up to the duct max distance
+	public PathObjectConnectionGroup getConnections() {
+		return new DuctConnectionGroup(graph, ductAdjacency, -1);
+	}
+
+	// Delaunay connections between the cells of a duct
+	public PathObjectConnectionGroup getConnections(int ductIndex) {
+		return new DuctConnectionGroup(graph, ductAdjacency, ductIndex);
+	}
+
+	// Cells of a duct, whether or not they were moved to it yet
+	public List<PathObject> getDuctCells(int ductIndex) {
+		return Collections.unmodifiableList(ductChildren.get(ductIndex));
+	}
+
+	// Move the cells to their duct annotation (once), removing them from their previous parent
+	public void addCellsToDucts() {
+		addCellsToDucts(cell -> true);
+	}
+
+	// Only the cells accepted by the filter are moved, the others are left in their parent
+	synchronized void addCellsToDucts(Predicate<PathObject> filter) {
+		if(cellsAdded)
+			return;
+		for(var i = 0; i < ducts.size(); ++i)
+			ducts.get(i).addPathObjects(ductChildren.get(i).stream().filter(filter).collect(Collectors.toList()));
+		cellsAdded = true;
+	}
+
+	// Add the hole and perimeter annotations built so far as children of their duct, in a single pass
+	public synchronized void addParentRelations() {
+		for(var i = 0; i < ducts.size(); ++i) {
+			var d = ducts.get(i);
+			if(holesPathObjects[i] != null)
+				d.addPathObjects(List.of(holesPathObjects[i]));
+			if(perimetersPathObjects[i] != null)
+				d.addPathObject(perimetersPathObjects[i]);
+		}
+	}
+
+	public void showDelaunay(ImageData<BufferedImage> image) {
+		image.removeProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS);
+		var connections = new PathObjectConnections();
+		image.setProperty(DefaultPathObjectConnectionGroup.KEY_OBJECT_CONNECTIONS, connections);
+		connections.addGroup(getConnections());
+	}
+
+	/**
+	 * Connections read from the duct graph adjacency when requested, instead of a map of all the neighbors.
+	 * If a duct is set, only the cells of the duct and their neighbors in the duct are included.
+	 */
+	private static class DuctConnectionGroup implements PathObjectConnectionGroup {
+		private final DuctGraph graph;
+		private final DuctGraph.Adjacency adjacency;
+		private final int duct;
+
+		public DuctConnectionGroup(DuctGraph graph, DuctGraph.Adjacency adjacency, int duct) {
+			this.graph = graph;
+			this.adjacency = adjacency;
+			this.duct = duct;
+		}
+
+		private boolean isIncluded(int id) {
+			return id >= 0 && (duct < 0 || graph.isInDuct(id, duct));
+		}
+
+		@Override
+		public boolean containsObject(PathObject pathObject) {
+			return isIncluded(graph.getId(pathObject));
+		}
+
+		@Override
+		public List<PathObject> getConnectedObjects(PathObject pathObject) {
+			var id = graph.getId(pathObject);
+			if(!isIncluded(id))
+				return new ArrayList<PathObject>();
+			var neighbors = new ArrayList<PathObject>(adjacency.degree(id));
+			for(var e = adjacency.start(id); e < adjacency.end(id); ++e) {
+				if(adjacency.isActive(e) && isIncluded(adjacency.target(e)))
+					neighbors.add(graph.getCell(adjacency.target(e)));
+			}
+			return neighbors;
+		}
+
+		@Override
+		public Collection<PathObject> getPathObjects() {
+			var pathObjects = new ArrayList<PathObject>();
+			for(var id = 0; id < graph.size(); ++id) {
+				if(isIncluded(id))
+					pathObjects.add(graph.getCell(id));
+			}
+			return pathObjects;
+		}
+	}
+}
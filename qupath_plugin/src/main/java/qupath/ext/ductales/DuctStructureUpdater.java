@@ -0,0 +1,525 @@
+package qupath.ext.ductales;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+
+/**
+ * Keep the ducts of an image up to date when cells are removed, added or reclassified, without computing all the ducts again.
+ * <p>
+ * The ducts near the edited cells are found with a spatial index of the cells. Only the cells of these ducts and the cells
+ * out of any duct nearby are triangulated (in a neighborhood of the duct max distance, as tiles of the partitioned Delaunay),
+ * clustered and measured again. Other ducts are not modified, and each new duct keeps the id of the previous duct it shares most cells with.
+ * <p>
+ * The hierarchy events only record the edited objects. Once a burst of events is over, the edits are applied on a background thread,
+ * so the GUI is not blocked by the triangulation and measurements. Only the swap of the previous ducts with the new ones edits
+ * the hierarchy, on the JavaFX thread as the user edits.
+ */
+public class DuctStructureUpdater implements PathObjectHierarchyListener {
+	private final static Logger logger = LoggerFactory.getLogger(DuctStructureUpdater.class);
+	// Delay without events before the edits are applied
+	private static final long UPDATE_DELAY_MS = 300;
+	private final DuctStructureComputer computer;
+	private final ImageData<BufferedImage> image;
+	private boolean showHoles;
+	private boolean showPerimeters;
+
+	// Nucleus centroids of the cells that are not excluded, indexed by position
+	private final Quadtree cellsIndex = new Quadtree();
+	private final Map<PathObject, Coordinate> cellCentroids = new HashMap<>();
+	// Duct id of the cells in a duct, and duct annotation of each id
+	private final Map<PathObject, Integer> cellDucts = new HashMap<>();
+	private final Map<Integer, PathObject> ducts = new HashMap<>();
+	private int nextDuctId = 0;
+	// Largest nucleus radius and bounds of all the indexed cells (min x, min y, max x, max y), only grow
+	private double maxRadius = 0;
+	private final double[] bounds = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+	// Edits not applied yet, recorded by the events: added or removed objects, reclassified objects,
+	// parents of the other structure changes, and full hierarchy changes
+	private final Object pendingLock = new Object();
+	private final Set<PathObject> pendingObjects = new LinkedHashSet<>();
+	private final Set<PathObject> pendingClassifications = new LinkedHashSet<>();
+	private final Set<PathObject> pendingParents = new LinkedHashSet<>();
+	private boolean pendingReset = false;
+	private ScheduledFuture<?> scheduledUpdate;
+	// Updates run one at a time on this thread, the events it fires are the updates own edits
+	private final ScheduledExecutorService updateScheduler;
+	private volatile Thread updateThread;
+	// Thread swapping the ducts in the hierarchy, the events it fires meanwhile are the swap own edits
+	private volatile Thread replacingThread;
+	private volatile boolean isStopped = false;
+
+	/**
+	 * Updater of the ducts of a result of the computer on the image. The computer parameters must not change once started.
+	 */
+	public DuctStructureUpdater(DuctStructureComputer computer, ImageData<BufferedImage> image, DuctStructureResult result) {
+		this.computer = computer;
+		this.image = image;
+		for(var cell : computer.filterCells(image.getHierarchy().getCellObjects()))
+			addCell(cell);
+		for(var i = 0; i < result.nDucts(); ++i) {
+			var duct = result.getDuct(i);
+			var id = (int)duct.getMeasurementList().getMeasurementValue("id");
+			ducts.put(id, duct);
+			for(var cell : result.getDuctCells(i)) {
+				if(cellCentroids.containsKey(cell))
+					cellDucts.put(cell, id);
+			}
+			nextDuctId = Math.max(nextDuctId, id + 1);
+		}
+		updateScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "ductales-updater");
+			thread.setDaemon(true);
+			updateThread = thread;
+			return thread;
+		});
+	}
+
+	public DuctStructureUpdater showHoles(boolean showHoles) {
+		try {
+			this.showHoles = showHoles;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
+
+	public DuctStructureUpdater showPerimeters(boolean showPerimeters) {
+		try {
+			this.showPerimeters = showPerimeters;
+			return this;
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+			throw new RuntimeException("Unable to run command: Compute duct structure", e);
+		}
+	}
+
+	public void start() {
+		image.getHierarchy().addPathObjectListener(this);
+	}
+
+	public void stop() {
+		image.getHierarchy().removePathObjectListener(this);
+		synchronized(pendingLock) {
+			isStopped = true;
+			updateScheduler.shutdownNow();
+		}
+		// Stop a running update, the computer is only used by the updater once started
+		computer.cancel();
+	}
+
+	@Override
+	public void hierarchyChanged(PathObjectHierarchyEvent event) {
+		if(event.isChanging() || Thread.currentThread() == updateThread || Thread.currentThread() == replacingThread)
+			return;
+		synchronized(pendingLock) {
+			if(isStopped)
+				return;
+			if(event.isObjectClassificationEvent())
+				pendingClassifications.addAll(event.getChangedObjects());
+			else if(event.isAddedOrRemovedEvent())
+				pendingObjects.addAll(event.getChangedObjects());
+			else if(event.isStructureChangeEvent()) {
+				// Other structure changes do not list their objects, only the parent of the changed objects
+				var parent = event.getParentObject();
+				if(parent == null || parent == image.getHierarchy().getRootObject())
+					pendingReset = true;
+				else
+					pendingParents.add(parent);
+			} else
+				return;
+			// Restarted by each event of a burst
+			if(scheduledUpdate != null)
+				scheduledUpdate.cancel(false);
+			scheduledUpdate = updateScheduler.schedule(this::applyPendingEdits, UPDATE_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sort the recorded edits into removed, added and reclassified cells, by comparing the edited cells to the index, and update the ducts.
+	 * Only a full hierarchy change compares all the cells.
+	 */
+	private void applyPendingEdits() {
+		var objects = new ArrayList<PathObject>();
+		var classifications = new ArrayList<PathObject>();
+		var parents = new ArrayList<PathObject>();
+		boolean reset;
+		synchronized(pendingLock) {
+			objects.addAll(pendingObjects);
+			classifications.addAll(pendingClassifications);
+			parents.addAll(pendingParents);
+			reset = pendingReset;
+			pendingObjects.clear();
+			pendingClassifications.clear();
+			pendingParents.clear();
+			pendingReset = false;
+		}
+		if(isStopped)
+			return;
+
+		var editedCells = new LinkedHashSet<PathObject>();
+		if(reset) {
+			editedCells.addAll(cellCentroids.keySet());
+			editedCells.addAll(image.getHierarchy().getCellObjects());
+		} else {
+			// Cells removed with their parent are still its descendants
+			for(var pathObject : objects)
+				addCells(pathObject, editedCells);
+			for(var parent : parents) {
+				addCells(parent, editedCells);
+				// Cells removed from a parent are found by the index in its bounds
+				var roi = parent.getROI();
+				if(roi != null)
+					editedCells.addAll(query(new Envelope(roi.getBoundsX(), roi.getBoundsX() + roi.getBoundsWidth(), roi.getBoundsY(), roi.getBoundsY() + roi.getBoundsHeight())));
+			}
+		}
+		var removed = new ArrayList<PathObject>();
+		var added = new ArrayList<PathObject>();
+		var changed = new ArrayList<PathObject>();
+		for(var cell : editedCells)
+			sortEdit(cell, false, removed, added, changed);
+		for(var pathObject : classifications) {
+			if(pathObject.isCell() && !editedCells.contains(pathObject))
+				sortEdit(pathObject, true, removed, added, changed);
+		}
+		if(removed.isEmpty() && added.isEmpty() && changed.isEmpty())
+			return;
+		try {
+			update(removed, added, changed);
+		} catch(CancellationException e) {
+			logger.info("Duct update cancelled");
+		} catch(Exception e) {
+			logger.error(e.getLocalizedMessage(), e);
+		}
+	}
+
+	private void sortEdit(PathObject cell, boolean isReclassified, List<PathObject> removed, List<PathObject> added, List<PathObject> changed) {
+		var isIndexed = cellCentroids.containsKey(cell);
+		var isKept = !computer.isExcluded(cell) && isInHierarchy(cell);
+		if(isIndexed && !isKept)
+			removed.add(cell);
+		else if(!isIndexed && isKept)
+			added.add(cell);
+		else if(isIndexed && isReclassified && cellDucts.containsKey(cell))
+			// Per class measurements of the duct
+			changed.add(cell);
+	}
+
+	// Removed objects are detached from the root, with their descendants unless these are kept
+	private boolean isInHierarchy(PathObject pathObject) {
+		var root = image.getHierarchy().getRootObject();
+		while(pathObject != null && pathObject != root)
+			pathObject = pathObject.getParent();
+		return pathObject == root;
+	}
+
+	private static void addCells(PathObject pathObject, Collection<PathObject> cells) {
+		if(pathObject.isCell())
+			cells.add(pathObject);
+		if(pathObject.hasChildren()) {
+			for(var child : pathObject.getChildObjects())
+				addCells(child, cells);
+		}
+	}
+
+	/**
+	 * Update the ducts near the edited cells. Only called on the update thread, which owns the index and the ducts:
+	 * the hierarchy is then edited on the JavaFX thread while the update thread waits.
+	 */
+	void update(Collection<PathObject> removed, Collection<PathObject> added, Collection<PathObject> changed) {
+		var editPoints = new ArrayList<Coordinate>();
+		var affectedDucts = new HashSet<Integer>();
+		for(var cell : removed) {
+			var centroid = cellCentroids.remove(cell);
+			if(centroid == null)
+				continue;
+			cellsIndex.remove(new Envelope(centroid), cell);
+			editPoints.add(centroid);
+			var duct = cellDucts.remove(cell);
+			if(duct != null)
+				affectedDucts.add(duct);
+		}
+		for(var cell : added)
+			editPoints.add(addCell(cell));
+		for(var cell : changed) {
+			editPoints.add(cellCentroids.get(cell));
+			affectedDucts.add(cellDucts.get(cell));
+		}
+		if(editPoints.isEmpty())
+			return;
+
+		// Longest Delaunay edge that can be kept, as for the partitioned Delaunay margin
+		var maxLength = computer.getGraphMaxDistance() + 2 * maxRadius;
+		var regionCells = new LinkedHashSet<PathObject>();
+		var freeCells = new ArrayDeque<PathObject>();
+		for(var point : editPoints) {
+			for(var cell : query(point, maxLength)) {
+				var duct = cellDucts.get(cell);
+				if(duct != null)
+					affectedDucts.add(duct);
+				else if(regionCells.add(cell))
+					freeCells.add(cell);
+			}
+		}
+		// Cells out of ducts are in clusters smaller than the duct min size, that can join the edited ducts.
+		// Their cells are searched by neighborhood, up to the size of such a cluster.
+		var reach = new Envelope();
+		for(var point : editPoints)
+			reach.expandToInclude(point);
+		reach.expandBy(maxLength * Math.max(computer.getDuctMinCellSize() - 1, 1));
+		while(!freeCells.isEmpty()) {
+			var centroid = cellCentroids.get(freeCells.poll());
+			for(var cell : query(centroid, maxLength)) {
+				if(!cellDucts.containsKey(cell) && reach.contains(cellCentroids.get(cell)) && regionCells.add(cell))
+					freeCells.add(cell);
+			}
+		}
+		var previousDucts = new HashMap<PathObject, Integer>();
+		for(var duct : affectedDucts) {
+			for(var cell : ducts.get(duct).getChildObjects()) {
+				if(cellCentroids.containsKey(cell)) {
+					regionCells.add(cell);
+					previousDucts.put(cell, duct);
+				}
+			}
+		}
+
+		var cells = new ArrayList<>(regionCells);
+		computer.run((taskExecutor, cancelled) -> {
+			var graph = computer.createGraph(taskExecutor, cells, triangulate(cells, maxLength), cancelled);
+			// The region is triangulated, grid hash clusters would be split into the components of its edges: these are the ducts with both backends
+			var ductCells = DuctStructureComputer.getClusters(graph, computer.getDuctMaxDistance(), computer.getDuctMinCellSize());
+			var ductIds = getDuctIds(graph, ductCells, previousDucts);
+			var result = computer.computeDucts(taskExecutor, image, graph, ductCells, ductIds, cancelled);
+			runOnApplicationThread(() -> {
+				// The update can be stopped while the swap waits for the JavaFX thread
+				if(isStopped)
+					throw new CancellationException("Duct update stopped");
+				replaceDucts(affectedDucts, previousDucts.keySet(), result, graph, ductCells, ductIds);
+			});
+			return null;
+		});
+		logger.info("Updated {} ducts after {} cell edits", affectedDucts.size(), editPoints.size());
+	}
+
+	private Coordinate addCell(PathObject cell) {
+		var nucleus = PathObjectTools.getROI(cell, true);
+		var centroid = new Coordinate(nucleus.getCentroidX(), nucleus.getCentroidY());
+		cellCentroids.put(cell, centroid);
+		cellsIndex.insert(new Envelope(centroid), cell);
+		maxRadius = Math.max(maxRadius, PartitionedDelaunay.getNucleusRadius(cell, centroid.x, centroid.y));
+		bounds[0] = Math.min(bounds[0], centroid.x);
+		bounds[1] = Math.min(bounds[1], centroid.y);
+		bounds[2] = Math.max(bounds[2], centroid.x);
+		bounds[3] = Math.max(bounds[3], centroid.y);
+		return centroid;
+	}
+
+	// Indexed cells with a centroid in the square of half size around the point
+	private List<PathObject> query(Coordinate point, double halfSize) {
+		var envelope = new Envelope(point);
+		envelope.expandBy(halfSize);
+		return query(envelope);
+	}
+
+	private List<PathObject> query(Envelope envelope) {
+		var cells = new ArrayList<PathObject>();
+		for(var candidate : cellsIndex.query(envelope)) {
+			var cell = (PathObject)candidate;
+			if(envelope.contains(cellCentroids.get(cell)))
+				cells.add(cell);
+		}
+		return cells;
+	}
+
+	/**
+	 * Delaunay neighbors of the region cells, in the triangulation of all the indexed cells, for the edges up to maxLength.
+	 * The cells around the region are triangulated and the edges are certified as in the partitioned Delaunay,
+	 * the margin is doubled until all the edges are certified.
+	 */
+	private Map<PathObject, List<PathObject>> triangulate(List<PathObject> cells, double maxLength) {
+		var neighbors = new HashMap<PathObject, List<PathObject>>(cells.size() * 2);
+		for(var cell : cells)
+			neighbors.put(cell, new ArrayList<>());
+		if(cells.size() < 2)
+			return neighbors;
+		var regionEnvelope = new Envelope();
+		for(var cell : cells)
+			regionEnvelope.expandToInclude(cellCentroids.get(cell));
+		var margin = maxLength;
+		while(true) {
+			var window = new Envelope(regionEnvelope);
+			window.expandBy(margin);
+			var region = new double[] {window.getMinX(), window.getMinY(), window.getMaxX(), window.getMaxY()};
+			var coversAll = region[0] <= bounds[0] && region[1] <= bounds[1] && region[2] >= bounds[2] && region[3] >= bounds[3];
+			var windowCells = query(window);
+			var windowGraph = new DuctGraph(windowCells);
+			var localNeighbors = PartitionedDelaunay.triangulate(windowGraph, windowCells);
+
+			var isCertain = true;
+			for(var cell : cells) {
+				var p = windowGraph.getId(cell);
+				for(var q : localNeighbors.getOrDefault(p, new int[0])) {
+					var neighbor = windowGraph.getCell(q);
+					if(q <= p || !neighbors.containsKey(neighbor))
+						continue;
+					var dx = windowGraph.getX(q) - windowGraph.getX(p);
+					var dy = windowGraph.getY(q) - windowGraph.getY(p);
+					if(dx * dx + dy * dy > maxLength * maxLength)
+						continue;
+					if(!coversAll && !PartitionedDelaunay.hasEmptyCircleInRegion(windowGraph, localNeighbors, p, q, region, bounds)) {
+						isCertain = false;
+						break;
+					}
+					neighbors.get(cell).add(neighbor);
+					neighbors.get(neighbor).add(cell);
+				}
+				if(!isCertain)
+					break;
+			}
+			if(isCertain)
+				return neighbors;
+			for(var cellNeighbors : neighbors.values())
+				cellNeighbors.clear();
+			margin *= 2;
+		}
+	}
+
+	/**
+	 * Each new duct takes the id of the previous duct it shares most cells with, by decreasing number of shared cells.
+	 * Other ducts get new ids.
+	 */
+	private int[] getDuctIds(DuctGraph graph, List<int[]> ductCells, Map<PathObject, Integer> previousDucts) {
+		var overlaps = new ArrayList<int[]>(); // Shared cells, new duct, previous duct
+		for(var i = 0; i < ductCells.size(); ++i) {
+			var counts = new HashMap<Integer, Integer>();
+			for(var cell : ductCells.get(i)) {
+				var previous = previousDucts.get(graph.getCell(cell));
+				if(previous != null)
+					counts.merge(previous, 1, Integer::sum);
+			}
+			for(var entry : counts.entrySet())
+				overlaps.add(new int[] {entry.getValue(), i, entry.getKey()});
+		}
+		overlaps.sort((a, b) -> Integer.compare(b[0], a[0]));
+
+		var ductIds = new int[ductCells.size()];
+		Arrays.fill(ductIds, -1);
+		var usedIds = new HashSet<Integer>();
+		for(var overlap : overlaps) {
+			if(ductIds[overlap[1]] == -1 && usedIds.add(overlap[2]))
+				ductIds[overlap[1]] = overlap[2];
+		}
+		for(var i = 0; i < ductIds.length; ++i) {
+			if(ductIds[i] == -1)
+				ductIds[i] = nextDuctId++;
+		}
+		return ductIds;
+	}
+
+	// Run on the JavaFX thread and wait for it to complete, or on the current thread without JavaFX (scripts)
+	private void runOnApplicationThread(Runnable runnable) throws Exception {
+		if(Platform.isFxApplicationThread()) {
+			runnable.run();
+			return;
+		}
+		var task = new FutureTask<Void>(runnable, null);
+		try {
+			Platform.runLater(task);
+		} catch(IllegalStateException e) {
+			// JavaFX is not started
+			runnable.run();
+			return;
+		}
+		try {
+			task.get();
+		} catch(InterruptedException e) {
+			// Interrupted by stop()
+			throw new CancellationException("Duct update stopped");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+
+	private void replaceDucts(Set<Integer> affectedDucts, Set<PathObject> previousDuctCells, DuctStructureResult result, DuctGraph graph, List<int[]> ductCells, int[] ductIds) {
+		var hierarchy = image.getHierarchy();
+		// Events of these edits are ignored on this thread, and find no edit to apply otherwise
+		replacingThread = Thread.currentThread();
+		try {
+			replaceDucts(hierarchy, affectedDucts, previousDuctCells, result, graph, ductCells, ductIds);
+		} finally {
+			replacingThread = null;
+		}
+	}
+
+	private void replaceDucts(PathObjectHierarchy hierarchy, Set<Integer> affectedDucts, Set<PathObject> previousDuctCells, DuctStructureResult result, DuctGraph graph, List<int[]> ductCells, int[] ductIds) {
+		// Cells are moved to the new ducts first, the holes and perimeters of the previous ducts are removed with them.
+		// Cells removed by the user since the computation are left out, their pending edit updates their duct again.
+		result.addCellsToDucts(this::isInHierarchy);
+		var previousDucts = new ArrayList<PathObject>();
+		var previousBoundaries = new ArrayList<PathObject>();
+		for(var duct : affectedDucts) {
+			var annotation = ducts.remove(duct);
+			previousDucts.add(annotation);
+			for(var child : annotation.getChildObjects()) {
+				if(!child.isCell())
+					previousBoundaries.add(child);
+			}
+		}
+		hierarchy.removeObjects(previousBoundaries, false);
+		hierarchy.removeObjects(previousDucts, true);
+
+		for(var cell : previousDuctCells)
+			cellDucts.remove(cell);
+		for(var i = 0; i < ductCells.size(); ++i) {
+			ducts.put(ductIds[i], result.getDuct(i));
+			for(var cell : ductCells.get(i))
+				cellDucts.put(graph.getCell(cell), ductIds[i]);
+		}
+		// Cells out of the new ducts lose their duct measurements
+		for(var cell : previousDuctCells) {
+			if(!cellDucts.containsKey(cell))
+				cell.getMeasurementList().removeMeasurements("parent id", DuctStructureComputer.DISTANCE_TO_BOUNDARIES, DuctStructureComputer.IS_IN_MONOLAYER);
+		}
+
+		hierarchy.addPathObjects(result.getDucts());
+		if(showHoles)
+			hierarchy.addPathObjects(result.getAllHoles());
+		if(showPerimeters)
+			hierarchy.addPathObjects(result.getAllPerimeters());
+		result.addParentRelations();
+	}
+}
@@ -0,0 +1,123 @@
+package qupath.ext.ductales;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.locationtech.jts.geom.Geometry;
+
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.ext.ductales.utils.UnionFind;
+import qupath.lib.objects.PathObjectTools;
+
+/**
+ * Single-linkage clusters of the cells whose nuclei are within a max boundary distance, without a triangulation.
+ * <p>
+ * Nucleus centroids are hashed in a uniform grid with buckets of the max distance plus two nucleus radii,
+ * so the candidate pairs of a cell are in the 3x3 buckets around it. The exact boundary distance is only computed
+ * for candidates not already in the same cluster. All close pairs are linked, not only the Delaunay neighbors,
+ * so clusters can merge cells that the Delaunay graph keeps apart (when a third cell is between their nuclei).
+ */
+public class GridHashClusters {
+	// Buckets per cell above which the bucket size is doubled
+	private static final int MAX_BUCKETS_PER_CELL = 16;
+	private static final int CANCEL_CHECK_INTERVAL = 4096;
+
+	private GridHashClusters() {
+	}
+
+	/**
+	 * Union-find of the cells of the graph (by id), linked when their nuclei are within maxDistance.
+	 */
+	public static UnionFind compute(TaskExecutor taskExecutor, DuctGraph graph, double maxDistance, AtomicBoolean cancelled, TaskExecutor.ProgressListener progressListener) {
+		var n = graph.size();
+		var unionFind = new UnionFind(n);
+		if(n == 0)
+			return unionFind;
+
+		var geometries = new Geometry[n];
+		var radii = new double[n];
+		taskExecutor.forEach("Nucleus geometries", n, i -> {
+			geometries[i] = PathObjectTools.getROI(graph.getCell(i), true).getGeometry();
+			radii[i] = PartitionedDelaunay.getNucleusRadius(graph.getCell(i), graph.getX(i), graph.getY(i));
+		}, cancelled, progressListener);
+
+		var maxRadius = 0.0;
+		var minX = Double.POSITIVE_INFINITY;
+		var minY = Double.POSITIVE_INFINITY;
+		var maxX = Double.NEGATIVE_INFINITY;
+		var maxY = Double.NEGATIVE_INFINITY;
+		for(var i = 0; i < n; ++i) {
+			maxRadius = Math.max(maxRadius, radii[i]);
+			minX = Math.min(minX, graph.getX(i));
+			minY = Math.min(minY, graph.getY(i));
+			maxX = Math.max(maxX, graph.getX(i));
+			maxY = Math.max(maxY, graph.getY(i));
+		}
+		var maxLength = maxDistance + 2 * maxRadius;
+		var bucketSize = Math.max(maxLength, 1e-6);
+		long nx, ny;
+		while(true) {
+			nx = (long)((maxX - minX) / bucketSize) + 1;
+			ny = (long)((maxY - minY) / bucketSize) + 1;
+			if(nx * ny <= (long)MAX_BUCKETS_PER_CELL * n + 1024)
+				break;
+			bucketSize *= 2;
+		}
+		var nBucketsX = (int)nx;
+		var nBucketsY = (int)ny;
+
+		// Cells by bucket, in CSR layout
+		var buckets = new int[n];
+		var bucketOffsets = new int[nBucketsX * nBucketsY + 1];
+		for(var i = 0; i < n; ++i) {
+			buckets[i] = (int)((graph.getY(i) - minY) / bucketSize) * nBucketsX + (int)((graph.getX(i) - minX) / bucketSize);
+			bucketOffsets[buckets[i]+1]++;
+		}
+		for(var b = 0; b < nBucketsX * nBucketsY; ++b)
+			bucketOffsets[b+1] += bucketOffsets[b];
+		var bucketCells = new int[n];
+		var positions = new int[nBucketsX * nBucketsY];
+		System.arraycopy(bucketOffsets, 0, positions, 0, positions.length);
+		for(var i = 0; i < n; ++i)
+			bucketCells[positions[buckets[i]]++] = i;
+
+		var maxLengthSquared = maxLength * maxLength;
+		for(var i = 0; i < n; ++i) {
+			if(i % CANCEL_CHECK_INTERVAL == 0) {
+				if(cancelled != null && cancelled.get())
+					throw new CancellationException("Grid hash clusters cancelled");
+				if(progressListener != null)
+					progressListener.onProgress("Grid hash clusters", i, n);
+			}
+			var bx = buckets[i] % nBucketsX;
+			var by = buckets[i] / nBucketsX;
+			var x = graph.getX(i);
+			var y = graph.getY(i);
+			for(var nby = Math.max(by - 1, 0); nby <= Math.min(by + 1, nBucketsY - 1); ++nby) {
+				for(var nbx = Math.max(bx - 1, 0); nbx <= Math.min(bx + 1, nBucketsX - 1); ++nbx) {
+					var bucket = nby * nBucketsX + nbx;
+					for(var k = bucketOffsets[bucket]; k < bucketOffsets[bucket+1]; ++k) {
+						var j = bucketCells[k];
+						if(j <= i)
+							continue;
+						var dx = graph.getX(j) - x;
+						var dy = graph.getY(j) - y;
+						var reach = maxDistance + radii[i] + radii[j];
+						if(dx * dx + dy * dy > Math.min(reach * reach, maxLengthSquared))
+							continue;
+						// Exact distances only between different clusters
+						if(unionFind.find(i) == unionFind.find(j))
+							continue;
+						if(geometries[i].getEnvelopeInternal().distance(geometries[j].getEnvelopeInternal()) > maxDistance)
+							continue;
+						if(geometries[i].distance(geometries[j]) <= maxDistance)
+							unionFind.union(i, j);
+					}
+				}
+			}
+		}
+		if(progressListener != null)
+			progressListener.onProgress("Grid hash clusters", n, n);
+		return unionFind;
+	}
+}
@@ -0,0 +1,261 @@
+package qupath.ext.ductales;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.lib.analysis.DelaunayTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+
+/**
+ * Delaunay neighbors of the cells of a graph, triangulated by tiles of a square grid in parallel.
+ * <p>
+ * Each tile triangulates the cells whose nucleus centroid is in the tile extended by a margin, and keeps the edges
+ * whose middle is in the tile, so each edge is found by a single tile. Only edges short enough to have a boundary distance
+ * up to the max distance are kept: their length is at most the max distance plus two nucleus radii, and the margin is at least that length.
+ * <p>
+ * An edge of a tile triangulation is also an edge of the full triangulation if one of its empty circles is inside the
+ * extended tile, as no cell outside the tile can be in it. Edges without such a circle are rare (near the border of large empty areas),
+ * the tile is then triangulated again with twice the margin. The edges are the same as the full triangulation
+ * filtered by boundary distance. Each thread triangulates a single tile at a time, and the edges of all the tiles
+ * are only kept as packed ids, for the CSR edges of the graph.
+ */
+public class PartitionedDelaunay {
+	private final DuctGraph graph;
+	private final double tileSize;
+	private final double maxLength;
+	private final double minX, minY, maxX, maxY;
+	private final int nTilesX, nTilesY;
+	// Cells by tile, in CSR layout
+	private final int[] tileOffsets;
+	private final int[] tileCells;
+
+	public PartitionedDelaunay(DuctGraph graph, double tileSize, double maxDistance) {
+		this.graph = graph;
+		var n = graph.size();
+		var maxRadius = 0.0;
+		var minX = Double.POSITIVE_INFINITY;
+		var minY = Double.POSITIVE_INFINITY;
+		var maxX = Double.NEGATIVE_INFINITY;
+		var maxY = Double.NEGATIVE_INFINITY;
+		for(var i = 0; i < n; ++i) {
+			var x = graph.getX(i);
+			var y = graph.getY(i);
+			maxRadius = Math.max(maxRadius, getNucleusRadius(graph.getCell(i), x, y));
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+		this.maxLength = maxDistance + 2 * maxRadius;
+		// Tiles smaller than the margin would mostly triangulate their neighbors
+		this.tileSize = Math.max(tileSize, maxLength);
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		nTilesX = n == 0 ? 0 : (int)Math.floor((maxX - minX) / this.tileSize) + 1;
+		nTilesY = n == 0 ? 0 : (int)Math.floor((maxY - minY) / this.tileSize) + 1;
+
+		tileOffsets = new int[nTilesX * nTilesY + 1];
+		var cellTiles = new int[n];
+		for(var i = 0; i < n; ++i) {
+			cellTiles[i] = getTile(graph.getX(i), graph.getY(i));
+			tileOffsets[cellTiles[i]+1]++;
+		}
+		for(var t = 0; t < nTilesX * nTilesY; ++t)
+			tileOffsets[t+1] += tileOffsets[t];
+		tileCells = new int[n];
+		var positions = Arrays.copyOf(tileOffsets, tileOffsets.length - 1);
+		for(var i = 0; i < n; ++i)
+			tileCells[positions[cellTiles[i]]++] = i;
+	}
+
+	public int nTiles() {
+		return nTilesX * nTilesY;
+	}
+
+	// Length of the longest kept edge, also the initial margin of the tiles
+	public double getMaxLength() {
+		return maxLength;
+	}
+
+	// Distance from the nucleus centroid to the farthest corner of the nucleus bounds
+	static double getNucleusRadius(PathObject cell, double x, double y) {
+		var nucleus = PathObjectTools.getROI(cell, true);
+		var dx = Math.max(x - nucleus.getBoundsX(), nucleus.getBoundsX() + nucleus.getBoundsWidth() - x);
+		var dy = Math.max(y - nucleus.getBoundsY(), nucleus.getBoundsY() + nucleus.getBoundsHeight() - y);
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private int getTile(double x, double y) {
+		var tx = Math.min((int)((x - minX) / tileSize), nTilesX - 1);
+		var ty = Math.min((int)((y - minY) / tileSize), nTilesY - 1);
+		return ty * nTilesX + tx;
+	}
+
+	/**
+	 * Delaunay edges without the edges longer than the max length, packed by {@link DuctGraph#packEdge(int, int)}
+	 * with the smallest id as source, for {@link DuctGraph#computeEdges(TaskExecutor, long[], double, AtomicBoolean, TaskExecutor.ProgressListener)}.
+	 */
+	public long[] computeEdges(TaskExecutor taskExecutor, AtomicBoolean cancelled, TaskExecutor.ProgressListener progressListener) {
+		var tileEdges = new long[nTiles()][];
+		taskExecutor.forEach("Partitioned Delaunay", nTiles(), t -> {
+			tileEdges[t] = triangulateTile(t);
+		}, cancelled, progressListener);
+
+		var nEdges = 0;
+		for(var edges : tileEdges)
+			nEdges += edges.length;
+		var allEdges = new long[nEdges];
+		var k = 0;
+		for(var t = 0; t < tileEdges.length; ++t) {
+			System.arraycopy(tileEdges[t], 0, allEdges, k, tileEdges[t].length);
+			k += tileEdges[t].length;
+			// Each tile is released once copied
+			tileEdges[t] = null;
+		}
+		return allEdges;
+	}
+
+	/**
+	 * Edges of the tile, as source and target ids packed in a long (source < target).
+	 */
+	private long[] triangulateTile(int tile) {
+		// Tiles without cells are still triangulated, they can contain the middle of edges between their neighbors
+		var tileMinX = minX + (tile % nTilesX) * tileSize;
+		var tileMinY = minY + (tile / nTilesX) * tileSize;
+		var margin = maxLength;
+		while(true) {
+			var regionMinX = tileMinX - margin;
+			var regionMinY = tileMinY - margin;
+			var regionMaxX = tileMinX + tileSize + margin;
+			var regionMaxY = tileMinY + tileSize + margin;
+			var coversAll = regionMinX <= minX && regionMinY <= minY && regionMaxX >= maxX && regionMaxY >= maxY;
+
+			var regionCells = new ArrayList<PathObject>();
+			for(var ty = getTileY(regionMinY); ty <= getTileY(regionMaxY); ++ty) {
+				for(var tx = getTileX(regionMinX); tx <= getTileX(regionMaxX); ++tx) {
+					var t = ty * nTilesX + tx;
+					for(var k = tileOffsets[t]; k < tileOffsets[t+1]; ++k) {
+						var id = tileCells[k];
+						var x = graph.getX(id);
+						var y = graph.getY(id);
+						if(x >= regionMinX && x <= regionMaxX && y >= regionMinY && y <= regionMaxY)
+							regionCells.add(graph.getCell(id));
+					}
+				}
+			}
+			if(regionCells.size() < 2)
+				return new long[0];
+			var localNeighbors = triangulate(graph, regionCells);
+			var region = new double[] {regionMinX, regionMinY, regionMaxX, regionMaxY};
+			var bounds = new double[] {minX, minY, maxX, maxY};
+
+			var edges = new long[16];
+			var nEdges = 0;
+			var isCertain = true;
+			for(var entry : localNeighbors.entrySet()) {
+				int p = entry.getKey();
+				for(var q : entry.getValue()) {
+					if(q <= p)
+						continue;
+					var dx = graph.getX(q) - graph.getX(p);
+					var dy = graph.getY(q) - graph.getY(p);
+					if(dx * dx + dy * dy > maxLength * maxLength)
+						continue;
+					var midX = (graph.getX(p) + graph.getX(q)) / 2;
+					var midY = (graph.getY(p) + graph.getY(q)) / 2;
+					if(getTile(midX, midY) != tile)
+						continue;
+					if(!coversAll && !hasEmptyCircleInRegion(graph, localNeighbors, p, q, region, bounds)) {
+						isCertain = false;
+						break;
+					}
+					if(nEdges == edges.length)
+						edges = Arrays.copyOf(edges, 2 * nEdges);
+					edges[nEdges++] = DuctGraph.packEdge(p, q);
+				}
+				if(!isCertain)
+					break;
+			}
+			if(isCertain)
+				return Arrays.copyOf(edges, nEdges);
+			margin *= 2;
+		}
+	}
+
+	// Delaunay neighbors of cells of the graph, by graph id
+	static Map<Integer, int[]> triangulate(DuctGraph graph, List<PathObject> cells) {
+		var allNeighbors = DelaunayTools.createFromCentroids(cells, true).getAllNeighbors();
+		var localNeighbors = new HashMap<Integer, int[]>(allNeighbors.size() * 2);
+		for(var entry : allNeighbors.entrySet())
+			localNeighbors.put(graph.getId(entry.getKey()), graph.getIds(entry.getValue()));
+		return localNeighbors;
+	}
+
+	/**
+	 * Whether an edge pq of the triangulation of the cells in a region is an edge of the triangulation of all the cells,
+	 * region and bounds of all the cells given as min x, min y, max x, max y.
+	 * <p>
+	 * Centers of the circles through p and q are m + t * n, with m the middle of pq and n its left normal.
+	 * A cell s on the left is in the circle when t is above t(s), on the right when t is below t(s).
+	 * The triangles of pq (common neighbors) bound the empty circles, the smallest one is tested against the region.
+	 */
+	static boolean hasEmptyCircleInRegion(DuctGraph graph, Map<Integer, int[]> localNeighbors, int p, int q, double[] region, double[] bounds) {
+		var px = graph.getX(p);
+		var py = graph.getY(p);
+		var midX = (px + graph.getX(q)) / 2;
+		var midY = (py + graph.getY(q)) / 2;
+		var nx = -(graph.getY(q) - py);
+		var ny = graph.getX(q) - px;
+		var halfLengthSquared = (midX - px) * (midX - px) + (midY - py) * (midY - py);
+
+		var minLeft = Double.POSITIVE_INFINITY;
+		var maxRight = Double.NEGATIVE_INFINITY;
+		var qNeighbors = localNeighbors.get(q);
+		for(var s : localNeighbors.get(p)) {
+			if(s == q || !contains(qNeighbors, s))
+				continue;
+			var sx = graph.getX(s) - midX;
+			var sy = graph.getY(s) - midY;
+			var side = nx * sx + ny * sy;
+			if(side == 0)
+				continue;
+			var t = (sx * sx + sy * sy - halfLengthSquared) / (2 * side);
+			if(side > 0)
+				minLeft = Math.min(minLeft, t);
+			else
+				maxRight = Math.max(maxRight, t);
+		}
+		// Smallest circle of the empty range
+		var t = Math.max(maxRight, Math.min(minLeft, 0));
+		var centerX = midX + t * nx;
+		var centerY = midY + t * ny;
+		var radius = Math.sqrt(halfLengthSquared + t * t * (nx * nx + ny * ny));
+		// There is no cell past the bounds of all the cells
+		return (region[0] <= bounds[0] || centerX - radius >= region[0]) && (region[2] >= bounds[2] || centerX + radius <= region[2])
+				&& (region[1] <= bounds[1] || centerY - radius >= region[1]) && (region[3] >= bounds[3] || centerY + radius <= region[3]);
+	}
+
+	private static boolean contains(int[] values, int value) {
+		for(var v : values) {
+			if(v == value)
+				return true;
+		}
+		return false;
+	}
+
+	private int getTileX(double x) {
+		return Math.max(0, Math.min((int)Math.floor((x - minX) / tileSize), nTilesX - 1));
+	}
+
+	private int getTileY(double y) {
+		return Math.max(0, Math.min((int)Math.floor((y - minY) / tileSize), nTilesY - 1));
+	}
+}
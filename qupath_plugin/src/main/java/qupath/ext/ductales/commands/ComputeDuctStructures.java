@@ -1,21 +1,36 @@
 package qupath.ext.ductales.commands;
 
+import java.awt.Color;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
 import javafx.scene.Scene;
 import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
+import qupath.ext.ductales.DuctClusterSweep;
 import qupath.ext.ductales.DuctStructureComputer;
+import qupath.ext.ductales.DuctStructureUpdater;
 import qupath.ext.ductales.utils.DuctalesConstants;
 import qupath.ext.ductales.utils.ParameterPane;
+import qupath.ext.ductales.utils.TaskProgressDialog;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.common.ColorTools;
 import qupath.lib.objects.PathCellObject;
+import qupath.lib.objects.PathObject;
 
 public class ComputeDuctStructures implements Runnable {
 	private QuPathGUI qupath;
 	private Stage configDialog;
 	private ParameterPane parameterPane;
+	// Dendrogram of the duct clusters for the live preview, and the cells colors to restore
+	private DuctClusterSweep sweep;
+	private Map<PathObject, Integer> previewOriginalColors = new HashMap<>();
+	// Listens to the cell edits of the last computed image
+	private DuctStructureUpdater updater;
 
 	public ComputeDuctStructures(QuPathGUI qupath) {
 		this.qupath = qupath;
@@ -27,7 +42,10 @@ public class ComputeDuctStructures implements Runnable {
 			configDialog = new Stage();
 			configDialog.setResizable(false);
 			configDialog.setTitle("Compute duct structures...");
-			configDialog.setOnCloseRequest(e -> configDialog = null);
+			configDialog.setOnCloseRequest(e -> {
+				clearPreview();
+				configDialog = null;
+			});
 			configDialog.initOwner(qupath.getStage());
 
 			parameterPane = new ParameterPane();
@@ -35,18 +53,37 @@ public class ComputeDuctStructures implements Runnable {
 			parameterPane.addStringListCreator("excludedClasses", "Excluded classes (no duct)", DuctalesConstants.DEFAULT_NO_DUCT_CLASSES);
 			parameterPane.addDoubleTextField("ductMaxDistance", "Duct max distance (um)", DuctalesConstants.DEFAULT_DUCT_STRUCTURE_MAX_DISTANCE);
 			parameterPane.addIntegerTextField("ductMinCellSize", "Duct min cell size", DuctalesConstants.DEFAULT_DUCT_STRUCTURE_MIN_CELL_SIZE);
+			parameterPane.addSelectionComboBox("outlineMode", "Duct outline", DuctalesConstants.DEFAULT_DUCT_OUTLINE_MODE_INDEX, getOutlineModes());
+			parameterPane.addDoubleTextField("geometryPrecision", "Duct geometry precision (px, 0 = exact)", DuctalesConstants.DEFAULT_DUCT_GEOMETRY_PRECISION);
 
 			parameterPane.addSeparator("Measure parameters");
 			parameterPane.addStringListCreator("ductClasses", "Duct classes", DuctalesConstants.DEFAULT_DUCT_CLASSES);
 			parameterPane.addDoubleListCreator("holesMinDistances", "Holes min distances (um)", DuctalesConstants.DEFAULT_DUCT_HOLES_MIN_DISTANCES);
 			parameterPane.addIntegerTextField("holesMinCellSize", "Hole min cell size", DuctalesConstants.DEFAULT_DUCT_HOLES_MIN_CELL_SIZE);
 			parameterPane.addCheckbox("refineBoundaries", "Refine boundaries", DuctalesConstants.DEFAULT_REFINE_BOUNDARIES);
+			parameterPane.addCheckbox("mergeAdjacentHoles", "Merge adjacent holes", DuctalesConstants.DEFAULT_MERGE_ADJACENT_HOLES);
+			parameterPane.addCheckbox("measureNeighborhoods", "Measure cell neighborhoods", DuctalesConstants.DEFAULT_MEASURE_CELL_NEIGHBORHOODS);
+			parameterPane.addStringListCreator("aggregatedFeatures", "Aggregated cell features", DuctalesConstants.DEFAULT_DUCT_AGGREGATED_FEATURES);
+			parameterPane.addDoubleListCreator("aggregatedQuantiles", "Aggregated quantiles", DuctalesConstants.DEFAULT_DUCT_AGGREGATED_QUANTILES);
+			parameterPane.addCheckbox("measureSpatialStatistics", "Measure duct spatial statistics", DuctalesConstants.DEFAULT_MEASURE_DUCT_SPATIAL_STATISTICS);
+			parameterPane.addDoubleListCreator("spatialRadii", "Spatial statistics radii (um)", DuctalesConstants.DEFAULT_DUCT_SPATIAL_RADII);
 			parameterPane.addDoubleTextField("triangleToRefineMinAngle", "Triangle to refine min angle (deg)", DuctalesConstants.DEFAULT_TRIANGLE_TO_REFINE_MIN_ANGLE);
 
 			parameterPane.addSeparator("Other");
 			parameterPane.addCheckbox("showHoles", "Show holes", DuctalesConstants.DEFAULT_SHOW_HOLES);
 			parameterPane.addCheckbox("showPerimeters", "Show perimeters", DuctalesConstants.DEFAULT_SHOW_PERIMETERS);
 			parameterPane.addCheckbox("showDelaunay", "Show delaunay graph", DuctalesConstants.DEFAULT_SHOW_DELAUNAY);
+			parameterPane.addCheckbox("updateOnEdits", "Update ducts on cell edits", DuctalesConstants.DEFAULT_UPDATE_DUCTS_ON_EDITS);
+			parameterPane.addIntegerTextField("parallelism", "Number of threads", DuctalesConstants.DEFAULT_PARALLELISM);
+			parameterPane.addDoubleTextField("partitionSize", "Delaunay partition size (px, 0 = whole image)", DuctalesConstants.DEFAULT_DUCT_PARTITION_SIZE);
+			parameterPane.addSelectionComboBox("neighborBackend", "Duct clustering", DuctalesConstants.DEFAULT_DUCT_NEIGHBOR_BACKEND_INDEX, getNeighborBackends());
+
+			parameterPane.addSeparator("Preview");
+			parameterPane.addButton("Build preview", e -> onBuildPreviewButtonClicked(e));
+			parameterPane.addSlider("previewDuctMaxDistance", "Preview duct max distance (um)", 0, DuctalesConstants.DEFAULT_DUCT_SWEEP_MAX_DISTANCE,
+					DuctalesConstants.DEFAULT_DUCT_STRUCTURE_MAX_DISTANCE, value -> updatePreview(value));
+			parameterPane.addButton("Show sweep table", e -> onShowSweepTableButtonClicked(e));
+			parameterPane.addButton("Clear preview", e -> clearPreview());
 
 			parameterPane.addButton("Compute", e -> onComputeButtonClicked(e), true);
 
@@ -58,8 +95,46 @@ public class ComputeDuctStructures implements Runnable {
 		configDialog.show();
 	}
 
+	private String[] getOutlineModes() {
+		var modes = DuctStructureComputer.OutlineMode.values();
+		var names = new String[modes.length];
+		for(var i = 0; i < modes.length; ++i) {
+			switch(modes[i]) {
+			case CELL_HULLS:
+				names[i] = "Cells";
+				break;
+			case DELAUNAY_TRIANGLES:
+				names[i] = "Delaunay triangles";
+				break;
+			default:
+				names[i] = "Delaunay triangles and cells";
+			}
+		}
+		return names;
+	}
+
+	private String[] getNeighborBackends() {
+		var backends = DuctStructureComputer.NeighborBackend.values();
+		var names = new String[backends.length];
+		for(var i = 0; i < backends.length; ++i) {
+			switch(backends[i]) {
+			case GRID_HASH:
+				names[i] = "Grid hash";
+				break;
+			default:
+				names[i] = "Delaunay";
+			}
+		}
+		return names;
+	}
+
 	private void onComputeButtonClicked(MouseEvent event){
 		parameterPane.saveParametersInCache();
+		clearPreview();
+		if(updater != null) {
+			updater.stop();
+			updater = null;
+		}
 
 		var curImage = qupath.getImageData();
 		var cells = (Collection<PathCellObject>)(Object)curImage.getHierarchy().getCellObjects();
@@ -77,27 +152,124 @@ public class ComputeDuctStructures implements Runnable {
 				.excludeClasses((String[])parameterPane.getParameters().get("excludedClasses"))
 				.ductMaxDistance(ductMaxDistance)
 				.ductMinCellSize((int)parameterPane.getParameters().get("ductMinCellSize"))
+				.outlineMode(DuctStructureComputer.OutlineMode.values()[(int)parameterPane.getParameters().get("outlineMode")])
+				.geometryPrecision((double)parameterPane.getParameters().get("geometryPrecision"))
 				.measure(true)
 				.ductClasses((String[])parameterPane.getParameters().get("ductClasses"))
 				.holesMinDistances(holesMinDistances)
 				.holesMinCellSize((int)parameterPane.getParameters().get("holesMinCellSize"))
 				.refineBoundaries((boolean)parameterPane.getParameters().get("refineBoundaries"))
-				.triangleToRefineMinAngle((double)parameterPane.getParameters().get("triangleToRefineMinAngle"));
-		var ducts = ductComputer.compute(curImage, cells);
+				.mergeAdjacentHoles((boolean)parameterPane.getParameters().get("mergeAdjacentHoles"))
+				.measureNeighborhoods((boolean)parameterPane.getParameters().get("measureNeighborhoods"))
+				.aggregatedFeatures((String[])parameterPane.getParameters().get("aggregatedFeatures"))
+				.aggregatedQuantiles((double[])parameterPane.getParameters().get("aggregatedQuantiles"))
+				.measureSpatialStatistics((boolean)parameterPane.getParameters().get("measureSpatialStatistics"))
+				.spatialRadii((double[])parameterPane.getParameters().get("spatialRadii"))
+				.triangleToRefineMinAngle((double)parameterPane.getParameters().get("triangleToRefineMinAngle"))
+				.parallelism((int)parameterPane.getParameters().get("parallelism"))
+				.partitionSize((double)parameterPane.getParameters().get("partitionSize"))
+				.neighborBackend(DuctStructureComputer.NeighborBackend.values()[(int)parameterPane.getParameters().get("neighborBackend")]);
+		var showHoles = (boolean)parameterPane.getParameters().get("showHoles");
+		var showPerimeters = (boolean)parameterPane.getParameters().get("showPerimeters");
+		var showDelaunay = (boolean)parameterPane.getParameters().get("showDelaunay");
+		var updateOnEdits = (boolean)parameterPane.getParameters().get("updateOnEdits");
+
+		// Computed in the background, the dialog shows the progress and can cancel the computation
+		var progressDialog = new TaskProgressDialog(configDialog, "Compute duct structures", ductComputer::cancel);
+		ductComputer.progressListener(progressDialog);
+		progressDialog.run(() -> ductComputer.compute(curImage, cells), result -> {
+			// Cells are only moved to their duct here, on the JavaFX thread, so a cancelled computation leaves them untouched
+			result.addCellsToDucts();
+			curImage.getHierarchy().addPathObjects(result.getDucts());
 
-		curImage.getHierarchy().addPathObjects(ducts);
+			if(showHoles) {
+				curImage.getHierarchy().addPathObjects(result.getAllHoles());
+			}
+			if(showPerimeters) {
+				curImage.getHierarchy().addPathObjects(result.getAllPerimeters());
+			}
+			result.addParentRelations();
+			if(showDelaunay) {
+				result.showDelaunay(curImage);
+			}
+			if(updateOnEdits) {
+				// Updates are small, they do not report to the closed dialog
+				ductComputer.progressListener(null);
+				updater = new DuctStructureUpdater(ductComputer, curImage, result)
+						.showHoles(showHoles)
+						.showPerimeters(showPerimeters);
+				updater.start();
+			}
+		});
+	}
+
+	private void onBuildPreviewButtonClicked(MouseEvent event){
+		clearPreview();
+		var curImage = qupath.getImageData();
+		var cells = curImage.getHierarchy().getCellObjects();
 
-		if((boolean)parameterPane.getParameters().get("showHoles")) {
-			var holes = ductComputer.getHolesPathObjects(curImage);
-			curImage.getHierarchy().addPathObjects(holes);
+		// Triangulate once, the slider then only replays the dendrogram
+		sweep = new DuctStructureComputer()
+				.excludeClasses((String[])parameterPane.getParameters().get("excludedClasses"))
+				.parallelism((int)parameterPane.getParameters().get("parallelism"))
+				.partitionSize((double)parameterPane.getParameters().get("partitionSize"))
+				.computeSweep(cells, DuctalesConstants.DEFAULT_DUCT_SWEEP_MAX_DISTANCE);
+		for(var i = 0; i < sweep.nCells(); ++i) {
+			var cell = sweep.getCell(i);
+			previewOriginalColors.put(cell, cell.getColorRGB());
 		}
-		if((boolean)parameterPane.getParameters().get("showPerimeters")) {
-			var perimeters = ductComputer.getPerimetersPathObjects(curImage);
-			curImage.getHierarchy().addPathObjects(perimeters);
+		var status = updatePreview((double)parameterPane.getParameters().get("previewDuctMaxDistance"));
+		Dialogs.showInfoNotification("Compute duct structures", "Preview: " + status);
+	}
+
+	private String updatePreview(double ductMaxDistance) {
+		if(sweep == null)
+			return "";
+		var labels = sweep.labelsAt(ductMaxDistance, (int)parameterPane.getParameters().get("ductMinCellSize"));
+		var nDucts = 0;
+		var otherColor = ColorTools.packRGB(128, 128, 128);
+		for(var i = 0; i < labels.length; ++i) {
+			if(labels[i] < 0) {
+				sweep.getCell(i).setColorRGB(otherColor);
+				continue;
+			}
+			nDucts = Math.max(nDucts, labels[i] + 1);
+			sweep.getCell(i).setColorRGB(getPreviewColor(labels[i]));
 		}
-		ductComputer.addParentRelations(ducts);
-		if((boolean)parameterPane.getParameters().get("showDelaunay")) {
-			ductComputer.showDelaunay(curImage);
+		repaintViewer();
+		return nDucts + " ducts";
+	}
+
+	// Well separated hues for consecutive labels
+	private static int getPreviewColor(int label) {
+		var hue = (float)((label * 0.618033988749895) % 1.0);
+		return Color.HSBtoRGB(hue, 0.8f, 0.9f) & 0xffffff;
+	}
+
+	private void onShowSweepTableButtonClicked(MouseEvent event){
+		if(sweep == null) {
+			Dialogs.showErrorMessage("Error", "Build the preview first.");
+			return;
 		}
+		var distances = IntStream.rangeClosed(1, 20).mapToDouble(i -> i * DuctalesConstants.DEFAULT_DUCT_SWEEP_MAX_DISTANCE / 20).toArray();
+		var minCellSize = (int)parameterPane.getParameters().get("ductMinCellSize");
+		var minCellSizes = new int[] {1, Math.max(1, minCellSize / 2), minCellSize, 2 * minCellSize, 5 * minCellSize};
+		var table = sweep.sweep(distances, minCellSizes);
+		Dialogs.showPlainMessage("Duct sweep (ducts / cells in ducts)", table.toString());
+	}
+
+	private void clearPreview() {
+		if(sweep == null)
+			return;
+		previewOriginalColors.forEach((cell, color) -> cell.setColorRGB(color));
+		previewOriginalColors.clear();
+		sweep = null;
+		repaintViewer();
+	}
+
+	private void repaintViewer() {
+		var viewer = qupath.getViewer();
+		if(viewer != null)
+			viewer.repaintEntireImage();
 	}
 }
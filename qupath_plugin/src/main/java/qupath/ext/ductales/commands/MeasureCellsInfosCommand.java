@@ -4,16 +4,21 @@ import java.util.Collection;
 import javafx.scene.Scene;
 import javafx.scene.input.MouseEvent;
 import javafx.stage.Stage;
+import qupath.ext.ductales.CellFingerprints;
 import qupath.ext.ductales.CellsInfoExtractor;
 import qupath.ext.ductales.utils.DuctalesConstants;
 import qupath.ext.ductales.utils.ParameterPane;
+import qupath.ext.ductales.utils.TaskProgressDialog;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.objects.PathCellObject;
 
 public class MeasureCellsInfosCommand implements Runnable {
 	private QuPathGUI qupath;
 	private Stage configDialog;
 	private ParameterPane parameterPane;
+	// Kept between runs to only measure new or modified cells
+	private CellFingerprints fingerprints = new CellFingerprints();
 
 	public MeasureCellsInfosCommand(QuPathGUI qupath) {
 		this.qupath = qupath;
@@ -33,6 +38,15 @@ public class MeasureCellsInfosCommand implements Runnable {
 			parameterPane.addCheckbox("measureShape", "Measure shape", DuctalesConstants.DEFAULT_CELL_MEASURE_SHAPE);
 			parameterPane.addCheckbox("measureIntensity", "Measure intensity", DuctalesConstants.DEFAULT_CELL_MEASURE_INTENSITY);
 			parameterPane.addCheckbox("measureTexture", "Measure texture", DuctalesConstants.DEFAULT_CELL_MEASURE_TEXTURE);
+			parameterPane.addCheckbox("incremental", "Skip unchanged cells", DuctalesConstants.DEFAULT_CELL_MEASURE_INCREMENTAL);
+
+			parameterPane.addSeparator("Exploratory measurements");
+			parameterPane.addDoubleTextField("downsample", "Downsample", DuctalesConstants.DEFAULT_CELL_MEASURE_DOWNSAMPLE);
+			parameterPane.addDoubleTextField("sampleFraction", "Sampled fraction of cells", DuctalesConstants.DEFAULT_CELL_SAMPLE_FRACTION);
+			parameterPane.addSelectionComboBox("sampleStrata", "Sample per", DuctalesConstants.DEFAULT_CELL_SAMPLE_STRATA_INDEX, getSampleStrata());
+
+			parameterPane.addSeparator("Other");
+			parameterPane.addIntegerTextField("parallelism", "Number of threads", DuctalesConstants.DEFAULT_PARALLELISM);
 
 			parameterPane.addButton("Measure", e -> onMeasureButtonClicked(e), true);
 
@@ -44,16 +58,47 @@ public class MeasureCellsInfosCommand implements Runnable {
 		configDialog.show();
 	}
 
+	private String[] getSampleStrata() {
+		var strata = CellsInfoExtractor.SampleStrata.values();
+		var names = new String[strata.length];
+		for(var i = 0; i < strata.length; ++i)
+			names[i] = strata[i] == CellsInfoExtractor.SampleStrata.PARENT ? "Duct" : "Class";
+		return names;
+	}
+
 	private void onMeasureButtonClicked(MouseEvent event){
 		parameterPane.saveParametersInCache();
 
 		var curImage = qupath.getImageData();
 		var cells = (Collection<PathCellObject>)(Object)curImage.getHierarchy().getCellObjects();
 
-		new CellsInfoExtractor()
+		var downsample = (double)parameterPane.getParameters().get("downsample");
+		if(!Double.isFinite(downsample) || downsample < 1) {
+			Dialogs.showErrorMessage("Error", "Downsample must be at least 1.");
+			return;
+		}
+		var sampleFraction = (double)parameterPane.getParameters().get("sampleFraction");
+		if(sampleFraction <= 0 || sampleFraction > 1) {
+			Dialogs.showErrorMessage("Error", "Sampled fraction of cells must be in ]0, 1].");
+			return;
+		}
+
+		var extractor = new CellsInfoExtractor()
 		.measureShape((boolean)parameterPane.getParameters().get("measureShape"))
 		.measureIntensity((boolean)parameterPane.getParameters().get("measureIntensity"))
 		.measureTexture((boolean)parameterPane.getParameters().get("measureTexture"))
-		.extract(curImage, cells);
+		.incremental((boolean)parameterPane.getParameters().get("incremental"))
+		.fingerprints(fingerprints)
+		.downsample(downsample)
+		.sampleFraction(sampleFraction)
+		.sampleStrata(CellsInfoExtractor.SampleStrata.values()[(int)parameterPane.getParameters().get("sampleStrata")])
+		.parallelism((int)parameterPane.getParameters().get("parallelism"));
+
+		// Measured in the background, the dialog shows the progress and can cancel the extraction
+		var progressDialog = new TaskProgressDialog(configDialog, "Measure cells infos", extractor::cancel);
+		extractor.progressListener(progressDialog);
+		progressDialog.run(() -> extractor.extract(curImage, cells), report -> {
+			Dialogs.showInfoNotification("Measure cells infos", report.toString());
+		});
 	}
 }
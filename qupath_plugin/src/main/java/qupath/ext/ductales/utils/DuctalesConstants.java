@@ -8,6 +8,9 @@ public class DuctalesConstants {
 
 	public static String[] PIXEL_UNITS = {"px", "um"};
 
+	// Leave one core to the GUI
+	public static int DEFAULT_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
 	public static double DEFAULT_FIND_TISSUE_DOWNSAMPLE = 8;
 	public static int DEFAULT_FIND_TISSUE_CLOSE_SIZE = 30;
 	public static int DEFAULT_FIND_TISSUE_OPEN_SIZE = 15;
@@ -22,6 +25,11 @@ public class DuctalesConstants {
 	public static boolean DEFAULT_CELL_MEASURE_SHAPE = true;
 	public static boolean DEFAULT_CELL_MEASURE_INTENSITY = true;
 	public static boolean DEFAULT_CELL_MEASURE_TEXTURE = true;
+	public static boolean DEFAULT_CELL_MEASURE_INCREMENTAL = true;
+	public static double DEFAULT_CELL_MEASURE_DOWNSAMPLE = 1;
+	public static double DEFAULT_CELL_SAMPLE_FRACTION = 1;
+	public static int DEFAULT_CELL_SAMPLE_STRATA_INDEX = 0;
+	public static long DEFAULT_CELL_SAMPLE_SEED = 42;
 
 	public static double DEFAULT_STARDIST_NORMALIZE_PERCENTILE_MIN = 1;
 	public static double DEFAULT_STARDIST_NORMALIZE_PERCENTILE_MAX = 99;
@@ -37,14 +45,27 @@ public class DuctalesConstants {
 	public static String[] DEFAULT_DUCT_CLASSES = {"Duct - Mouse", "Duct - Human"};
 	public static double DEFAULT_DUCT_STRUCTURE_MAX_DISTANCE = 50;
 	public static int DEFAULT_DUCT_STRUCTURE_MIN_CELL_SIZE = 10;
+	public static double DEFAULT_DUCT_GEOMETRY_PRECISION = 0;
+	public static int DEFAULT_DUCT_OUTLINE_MODE_INDEX = 0;
+	public static double DEFAULT_DUCT_PARTITION_SIZE = 0;
+	public static int DEFAULT_DUCT_NEIGHBOR_BACKEND_INDEX = 0;
 	public static boolean DEFAULT_DUCT_MEASURE = true;
 	public static double[] DEFAULT_DUCT_HOLES_MIN_DISTANCES = {10., 20., 30., 50.};
 	public static int DEFAULT_DUCT_HOLES_MIN_CELL_SIZE = 5;
 	public static boolean DEFAULT_REFINE_BOUNDARIES = true;
+	public static boolean DEFAULT_MERGE_ADJACENT_HOLES = false;
+	public static boolean DEFAULT_MEASURE_CELL_NEIGHBORHOODS = false;
+	public static String[] DEFAULT_DUCT_AGGREGATED_FEATURES = {};
+	public static double[] DEFAULT_DUCT_AGGREGATED_QUANTILES = {0.25, 0.5, 0.75};
+	public static double DEFAULT_DUCT_AGGREGATION_COMPRESSION = 100;
+	public static boolean DEFAULT_MEASURE_DUCT_SPATIAL_STATISTICS = false;
+	public static double[] DEFAULT_DUCT_SPATIAL_RADII = {10., 25., 50.};
 	public static double DEFAULT_TRIANGLE_TO_REFINE_MIN_ANGLE = 120;
 	public static boolean DEFAULT_SHOW_HOLES = false;
 	public static boolean DEFAULT_SHOW_PERIMETERS = false;
 	public static boolean DEFAULT_SHOW_DELAUNAY = false;
+	public static boolean DEFAULT_UPDATE_DUCTS_ON_EDITS = false;
+	public static double DEFAULT_DUCT_SWEEP_MAX_DISTANCE = 100;
 	
 	public static DefaultStains[] H_E_STAINS = {DefaultStains.HEMATOXYLIN, DefaultStains.EOSIN};
 }
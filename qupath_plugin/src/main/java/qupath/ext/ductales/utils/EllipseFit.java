@@ -0,0 +1,184 @@
+package qupath.ext.ductales.utils;
+
+/**
+ * Direct least squares ellipse fit, based on Halir R., Flusser J.: Numerically Stable Direct Least Squares Fitting of Ellipses.
+ * <p>
+ * The reduced 3x3 problem is solved in closed form on primitives: the scatter matrices are built from the moments of the points,
+ * the eigenvalues of the reduced matrix are the (real) roots of its characteristic cubic and the eigenvectors are cross products
+ * of its rows. Points are centered and scaled first, so the moments stay well conditioned for pixel coordinates.
+ */
+public class EllipseFit {
+	private EllipseFit() {
+	}
+
+	/**
+	 * Fit an ellipse to the n first points, and return its elongation (1 - minor axis / major axis).
+	 * If axes is not null, the semi-minor and semi-major axes are written in axes[0] and axes[1].
+	 * Return NaN if the points do not define an ellipse (less than 5 points, collinear points, or a hyperbola).
+	 */
+	public static double fit(double[] xs, double[] ys, int n, double[] axes) {
+		if(axes != null) {
+			axes[0] = Double.NaN;
+			axes[1] = Double.NaN;
+		}
+		if(n < 5)
+			return Double.NaN;
+
+		var meanX = 0.0;
+		var meanY = 0.0;
+		for(var i = 0; i < n; ++i) {
+			meanX += xs[i];
+			meanY += ys[i];
+		}
+		meanX /= n;
+		meanY /= n;
+		var scale = 0.0;
+		for(var i = 0; i < n; ++i)
+			scale += (xs[i] - meanX) * (xs[i] - meanX) + (ys[i] - meanY) * (ys[i] - meanY);
+		scale = Math.sqrt(scale / n);
+		if(scale == 0)
+			return Double.NaN;
+
+		// Moments sxy[i][j] = sum x^i y^j, named by powers
+		double s10 = 0, s01 = 0, s20 = 0, s11 = 0, s02 = 0;
+		double s30 = 0, s21 = 0, s12 = 0, s03 = 0;
+		double s40 = 0, s31 = 0, s22 = 0, s13 = 0, s04 = 0;
+		for(var i = 0; i < n; ++i) {
+			var x = (xs[i] - meanX) / scale;
+			var y = (ys[i] - meanY) / scale;
+			var xx = x * x;
+			var xy = x * y;
+			var yy = y * y;
+			s10 += x;
+			s01 += y;
+			s20 += xx;
+			s11 += xy;
+			s02 += yy;
+			s30 += xx * x;
+			s21 += xx * y;
+			s12 += x * yy;
+			s03 += yy * y;
+			s40 += xx * xx;
+			s31 += xx * xy;
+			s22 += xx * yy;
+			s13 += xy * yy;
+			s04 += yy * yy;
+		}
+
+		// S1 = D1'D1, S2 = D1'D2, S3 = D2'D2 with D1 = [x^2 xy y^2] and D2 = [x y 1]
+		double s1_00 = s40, s1_01 = s31, s1_02 = s22, s1_11 = s22, s1_12 = s13, s1_22 = s04;
+		double s2_00 = s30, s2_01 = s21, s2_02 = s20;
+		double s2_10 = s21, s2_11 = s12, s2_12 = s11;
+		double s2_20 = s12, s2_21 = s03, s2_22 = s02;
+		double s3_00 = s20, s3_01 = s11, s3_02 = s10, s3_11 = s02, s3_12 = s01, s3_22 = n;
+
+		// Inverse of the symmetric S3 from its cofactors
+		var c00 = s3_11 * s3_22 - s3_12 * s3_12;
+		var c01 = s3_02 * s3_12 - s3_01 * s3_22;
+		var c02 = s3_01 * s3_12 - s3_02 * s3_11;
+		var c11 = s3_00 * s3_22 - s3_02 * s3_02;
+		var c12 = s3_01 * s3_02 - s3_00 * s3_12;
+		var c22 = s3_00 * s3_11 - s3_01 * s3_01;
+		var det = s3_00 * c00 + s3_01 * c01 + s3_02 * c02;
+		if(!(Math.abs(det) > 1e-12 * n * n * n))
+			return Double.NaN;
+		double i00 = c00 / det, i01 = c01 / det, i02 = c02 / det, i11 = c11 / det, i12 = c12 / det, i22 = c22 / det;
+
+		// T = -S3^-1 S2', column j of S2' is row j of S2
+		var t00 = -(i00 * s2_00 + i01 * s2_01 + i02 * s2_02);
+		var t10 = -(i01 * s2_00 + i11 * s2_01 + i12 * s2_02);
+		var t20 = -(i02 * s2_00 + i12 * s2_01 + i22 * s2_02);
+		var t01 = -(i00 * s2_10 + i01 * s2_11 + i02 * s2_12);
+		var t11 = -(i01 * s2_10 + i11 * s2_11 + i12 * s2_12);
+		var t21 = -(i02 * s2_10 + i12 * s2_11 + i22 * s2_12);
+		var t02 = -(i00 * s2_20 + i01 * s2_21 + i02 * s2_22);
+		var t12 = -(i01 * s2_20 + i11 * s2_21 + i12 * s2_22);
+		var t22 = -(i02 * s2_20 + i12 * s2_21 + i22 * s2_22);
+
+		// Reduced scatter matrix S1 + S2 T (symmetric)
+		var r00 = s1_00 + s2_00 * t00 + s2_01 * t10 + s2_02 * t20;
+		var r01 = s1_01 + s2_00 * t01 + s2_01 * t11 + s2_02 * t21;
+		var r02 = s1_02 + s2_00 * t02 + s2_01 * t12 + s2_02 * t22;
+		var r11 = s1_11 + s2_10 * t01 + s2_11 * t11 + s2_12 * t21;
+		var r12 = s1_12 + s2_10 * t02 + s2_11 * t12 + s2_12 * t22;
+		var r22 = s1_22 + s2_20 * t02 + s2_21 * t12 + s2_22 * t22;
+
+		// M = C1^-1 (S1 + S2 T), with C1^-1 = [[0 0 1/2] [0 -1 0] [1/2 0 0]]
+		double m00 = r02 / 2, m01 = r12 / 2, m02 = r22 / 2;
+		double m10 = -r01, m11 = -r11, m12 = -r12;
+		double m20 = r00 / 2, m21 = r01 / 2, m22 = r02 / 2;
+
+		// Characteristic polynomial l^3 + a l^2 + b l + c, its roots are real as M is similar to a symmetric matrix
+		var a = -(m00 + m11 + m22);
+		var b = m00 * m11 - m01 * m10 + m00 * m22 - m02 * m20 + m11 * m22 - m12 * m21;
+		var c = -(m00 * (m11 * m22 - m12 * m21) - m01 * (m10 * m22 - m12 * m20) + m02 * (m10 * m21 - m11 * m20));
+		var p = b - a * a / 3;
+		var q = 2 * a * a * a / 27 - a * b / 3 + c;
+
+		// The ellipse is the eigenvector with 4AC - B^2 > 0
+		double bestA = 0, bestB = 0, bestC = 0, bestCondition = 0;
+		for(var k = 0; k < 3; ++k) {
+			double root;
+			if(p < 0) {
+				var amplitude = 2 * Math.sqrt(-p / 3);
+				var cosine = Math.max(-1, Math.min(1, 3 * q / (p * amplitude)));
+				root = amplitude * Math.cos(Math.acos(cosine) / 3 - 2 * Math.PI * k / 3);
+			} else {
+				if(k > 0)
+					break;
+				root = Math.cbrt(-q);
+			}
+			var lambda = root - a / 3;
+
+			// Eigenvector as the largest cross product of two rows of M - lambda I
+			double u00 = m00 - lambda, u11 = m11 - lambda, u22 = m22 - lambda;
+			double x0 = m01 * m12 - m02 * u11, y0 = m02 * m10 - u00 * m12, z0 = u00 * u11 - m01 * m10;
+			double x1 = m01 * u22 - m02 * m21, y1 = m02 * m20 - u00 * u22, z1 = u00 * m21 - m01 * m20;
+			double x2 = u11 * u22 - m12 * m21, y2 = m12 * m20 - m10 * u22, z2 = m10 * m21 - u11 * m20;
+			double n0 = x0 * x0 + y0 * y0 + z0 * z0, n1 = x1 * x1 + y1 * y1 + z1 * z1, n2 = x2 * x2 + y2 * y2 + z2 * z2;
+			double vx, vy, vz, norm;
+			if(n0 >= n1 && n0 >= n2) {
+				vx = x0; vy = y0; vz = z0; norm = n0;
+			} else if(n1 >= n2) {
+				vx = x1; vy = y1; vz = z1; norm = n1;
+			} else {
+				vx = x2; vy = y2; vz = z2; norm = n2;
+			}
+			if(norm == 0)
+				continue;
+			var condition = (4 * vx * vz - vy * vy) / norm;
+			if(condition > bestCondition) {
+				bestCondition = condition;
+				bestA = vx;
+				bestB = vy;
+				bestC = vz;
+			}
+		}
+		if(bestCondition <= 0)
+			return Double.NaN;
+
+		// Conic A x^2 + B xy + C y^2 + D x + E y + F = 0, with [D E F] = T [A B C]
+		var conicA = bestA;
+		var conicB = bestB / 2;
+		var conicC = bestC;
+		var conicD = (t00 * bestA + t01 * bestB + t02 * bestC) / 2;
+		var conicE = (t10 * bestA + t11 * bestB + t12 * bestC) / 2;
+		var conicF = t20 * bestA + t21 * bestB + t22 * bestC;
+
+		var numerator = 2 * (conicA * conicE * conicE + conicC * conicD * conicD + conicF * conicB * conicB
+				- 2 * conicB * conicD * conicE - conicA * conicC * conicF);
+		var discriminant = conicB * conicB - conicA * conicC;
+		var root = Math.sqrt((conicA - conicC) * (conicA - conicC) + 4 * conicB * conicB);
+		var axis1 = Math.sqrt(numerator / (discriminant * (root - (conicA + conicC))));
+		var axis2 = Math.sqrt(numerator / (discriminant * (-root - (conicA + conicC))));
+		var minAxis = Math.min(axis1, axis2);
+		var maxAxis = Math.max(axis1, axis2);
+		if(!(minAxis > 0) || Double.isInfinite(maxAxis))
+			return Double.NaN;
+		if(axes != null) {
+			axes[0] = minAxis * scale;
+			axes[1] = maxAxis * scale;
+		}
+		return 1 - minAxis / maxAxis;
+	}
+}
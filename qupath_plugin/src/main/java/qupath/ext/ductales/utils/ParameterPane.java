@@ -10,6 +10,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 import java.util.stream.Stream;
@@ -36,6 +37,7 @@ import javafx.scene.control.Label;
 import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
 import javafx.scene.control.Separator;
+import javafx.scene.control.Slider;
 import javafx.scene.control.TextField;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.GridPane;
@@ -151,6 +153,46 @@ public class ParameterPane extends GridPane {
 		params.put(id, currentValue);
 	}
 
+	// Slider whose value is shown next to it, with an optional status returned by onValueChanged
+	public void addSlider(String id, String labelText, double min, double max, double defaultValue, Function<Double, String> onValueChanged) {
+		var currentValue = defaultValue;
+		if(cachedParams != null && cachedParams.has(id)) {
+			currentValue = Math.min(max, Math.max(min, cachedParams.get(id).getAsDouble()));
+		}
+
+		var label = new Label(labelText);
+		this.add(label, 0, this.getRowCount());
+		var slider = new Slider(min, max, currentValue);
+		slider.setShowTickMarks(true);
+		slider.setShowTickLabels(true);
+		slider.setMajorTickUnit((max - min) / 4);
+		var valueLabel = new Label(String.format("%.1f", currentValue));
+		slider.valueProperty().addListener((obs, oldValue, newValue) -> {
+			var value = newValue.doubleValue();
+			params.put(id, value);
+			var text = String.format("%.1f", value);
+			if(onValueChanged != null) {
+				var status = onValueChanged.apply(value);
+				if(status != null && !status.isEmpty())
+					text += " (" + status + ")";
+			}
+			valueLabel.setText(text);
+		});
+		var hbox = new HBox(slider, valueLabel);
+		hbox.setSpacing(10);
+		hbox.setAlignment(Pos.CENTER_LEFT);
+		this.add(hbox, 1, this.getRowCount()-1);
+
+		resetParamsRunnables.add(new Runnable() {
+			@Override
+			public void run() {
+				slider.setValue(defaultValue);
+			}
+		});
+
+		params.put(id, currentValue);
+	}
+
 	public void addSelectionComboBox(String id, String labelText, int defaultSelectedIndex, String[] possibleValues) {
 		var currentSelection = defaultSelectedIndex;
 		if(cachedParams != null && cachedParams.has(id)) {
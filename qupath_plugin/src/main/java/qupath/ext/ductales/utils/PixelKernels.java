@@ -0,0 +1,86 @@
+package qupath.ext.ductales.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-pixel hot loops used by the cell measurements: optical density conversion, stain deconvolution
+ * (stain intensities and texture) and masked statistics (stain intensities per compartment).
+ * <p>
+ * The default implementation is scalar. On Java 17+, the multi-release jar also contains a SIMD
+ * implementation based on the incubating Vector API, used when the {@code jdk.incubator.vector}
+ * module is available (e.g. QuPath started with {@code --add-modules jdk.incubator.vector}).
+ */
+public abstract class PixelKernels {
+	private final static Logger logger = LoggerFactory.getLogger(PixelKernels.class);
+
+	private static final String VECTOR_KERNELS_CLASS = "qupath.ext.ductales.utils.VectorPixelKernels";
+	private static final PixelKernels SCALAR = new ScalarPixelKernels();
+	private static final PixelKernels INSTANCE = load();
+
+	// Indices of the values returned by maskedStatistics
+	public static final int STAT_COUNT = 0;
+	public static final int STAT_MIN = 1;
+	public static final int STAT_MAX = 2;
+	public static final int STAT_SUM = 3;
+	public static final int STAT_SUM_SQUARES = 4;
+
+	// Best available implementation
+	public static PixelKernels getInstance() {
+		return INSTANCE;
+	}
+
+	public static PixelKernels scalar() {
+		return SCALAR;
+	}
+
+	private static PixelKernels load() {
+		if(ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+			return SCALAR;
+		try {
+			// Only present in META-INF/versions/17 of the jar
+			var kernels = (PixelKernels)Class.forName(VECTOR_KERNELS_CLASS).getDeclaredConstructor().newInstance();
+			logger.info("Using {} pixel kernels", kernels.getName());
+			return kernels;
+		} catch(Throwable e) {
+			logger.debug("Vector pixel kernels not available: {}", e.getLocalizedMessage());
+			return SCALAR;
+		}
+	}
+
+	public abstract String getName();
+
+	/**
+	 * Convert packed RGB pixels to optical densities, OD = max(0, -log10(max(value, 1) / maxValue)).
+	 */
+	public abstract void opticalDensity(int[] rgb, int n, double maxRed, double maxGreen, double maxBlue, float[] odRed, float[] odGreen, float[] odBlue);
+
+	/**
+	 * Compute one stain from optical densities with the inverse of the stain matrix
+	 * (as given by ColorDeconvolutionStains.getMatrixInverse()).
+	 * @param stain index of the stain (0 to 2)
+	 */
+	public abstract void deconvolve(float[] odRed, float[] odGreen, float[] odBlue, int n, double[][] matrixInverse, int stain, float[] output);
+
+	/**
+	 * Count, min, max, sum and sum of squares of the masked values, indexed by the STAT_ constants.
+	 * Min and max are NaN if no value is masked.
+	 */
+	public abstract double[] maskedStatistics(float[] values, boolean[] mask, int n);
+
+	static float makeOD(int value, double maxValue) {
+		return (float)Math.max(0, -Math.log10(Math.max(value, 1) / maxValue));
+	}
+
+	static int getRed(int rgb) {
+		return (rgb >> 16) & 0xff;
+	}
+
+	static int getGreen(int rgb) {
+		return (rgb >> 8) & 0xff;
+	}
+
+	static int getBlue(int rgb) {
+		return rgb & 0xff;
+	}
+}
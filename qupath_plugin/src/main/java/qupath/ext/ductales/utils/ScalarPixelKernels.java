@@ -0,0 +1,55 @@
+package qupath.ext.ductales.utils;
+
+/**
+ * Scalar implementation of the pixel kernels, used on Java 11 and when the Vector API is not available.
+ */
+class ScalarPixelKernels extends PixelKernels {
+
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+
+	@Override
+	public void opticalDensity(int[] rgb, int n, double maxRed, double maxGreen, double maxBlue, float[] odRed, float[] odGreen, float[] odBlue) {
+		for(var i = 0; i < n; ++i) {
+			var pixel = rgb[i];
+			odRed[i] = makeOD(getRed(pixel), maxRed);
+			odGreen[i] = makeOD(getGreen(pixel), maxGreen);
+			odBlue[i] = makeOD(getBlue(pixel), maxBlue);
+		}
+	}
+
+	@Override
+	public void deconvolve(float[] odRed, float[] odGreen, float[] odBlue, int n, double[][] matrixInverse, int stain, float[] output) {
+		var mr = (float)matrixInverse[0][stain];
+		var mg = (float)matrixInverse[1][stain];
+		var mb = (float)matrixInverse[2][stain];
+		for(var i = 0; i < n; ++i)
+			output[i] = odRed[i] * mr + odGreen[i] * mg + odBlue[i] * mb;
+	}
+
+	@Override
+	public double[] maskedStatistics(float[] values, boolean[] mask, int n) {
+		var count = 0;
+		var min = Double.POSITIVE_INFINITY;
+		var max = Double.NEGATIVE_INFINITY;
+		var sum = 0.0;
+		var sumSquares = 0.0;
+		for(var i = 0; i < n; ++i) {
+			if(!mask[i])
+				continue;
+			double value = values[i];
+			count++;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+			sumSquares += value * value;
+		}
+		if(count == 0) {
+			min = Double.NaN;
+			max = Double.NaN;
+		}
+		return new double[] {count, min, max, sum, sumSquares};
+	}
+}
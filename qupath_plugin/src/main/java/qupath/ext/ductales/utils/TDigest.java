@@ -0,0 +1,136 @@
+package qupath.ext.ductales.utils;
+
+import java.util.Arrays;
+
+/**
+ * Merging t-digest (Dunning T., Ertl O.: Computing Extremely Accurate Quantiles Using t-Digests) for streaming quantiles.
+ * <p>
+ * Values are buffered, then merged with the sorted centroids in a single pass. Centroids are bounded by the arcsine
+ * scale function, so they are small near the tails and at most about 2 * compression are kept. Until the buffer is full
+ * (10 * compression values), quantiles are computed on the values and are exact.
+ */
+public class TDigest {
+	private final double compression;
+	private double[] means;
+	private double[] weights;
+	private int nCentroids;
+	private final double[] buffer;
+	private int bufferSize;
+	private double totalWeight;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	// Merge buffers, swapped with the centroids
+	private double[] mergedMeans;
+	private double[] mergedWeights;
+
+	public TDigest(double compression) {
+		this.compression = compression;
+		var capacity = (int)Math.ceil(2 * compression) + 10;
+		means = new double[capacity];
+		weights = new double[capacity];
+		buffer = new double[5 * capacity];
+	}
+
+	public void add(double value) {
+		if(Double.isNaN(value))
+			return;
+		if(bufferSize == buffer.length)
+			merge();
+		buffer[bufferSize++] = value;
+		totalWeight++;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	public long size() {
+		return (long)totalWeight;
+	}
+
+	/**
+	 * Quantile q (between 0 and 1), interpolated between the centers of the centroids (Hazen definition for single values).
+	 * NaN if no value was added.
+	 */
+	public double quantile(double q) {
+		if(totalWeight == 0)
+			return Double.NaN;
+		var index = q * totalWeight;
+		if(nCentroids == 0) {
+			// Values not merged yet, the quantile is exact
+			Arrays.sort(buffer, 0, bufferSize);
+			return interpolate(buffer, null, bufferSize, index);
+		}
+		if(bufferSize > 0)
+			merge();
+		return interpolate(means, weights, nCentroids, index);
+	}
+
+	// Value at a weight index, with each centroid at the middle of its weight, min at 0 and max at the total weight
+	private double interpolate(double[] means, double[] weights, int n, double index) {
+		var center = (weights == null ? 1 : weights[0]) / 2;
+		if(index <= center)
+			return min + (means[0] - min) * index / center;
+		for(var i = 0; i < n - 1; ++i) {
+			var weight = weights == null ? 1 : weights[i];
+			var nextWeight = weights == null ? 1 : weights[i+1];
+			var nextCenter = center + (weight + nextWeight) / 2;
+			if(index <= nextCenter)
+				return means[i] + (means[i+1] - means[i]) * (index - center) / (nextCenter - center);
+			center = nextCenter;
+		}
+		return means[n-1] + (max - means[n-1]) * Math.min((index - center) / (totalWeight - center), 1);
+	}
+
+	// Merge the sorted buffer and the centroids, combining neighbors while they fit in the scale function bound
+	private void merge() {
+		Arrays.sort(buffer, 0, bufferSize);
+		var capacity = nCentroids + bufferSize;
+		if(mergedMeans == null || mergedMeans.length < capacity) {
+			mergedMeans = new double[Math.max(capacity, means.length)];
+			mergedWeights = new double[mergedMeans.length];
+		}
+		var nMerged = 0;
+		var weightSoFar = 0.0;
+		var limit = totalWeight * getQuantileLimit(0);
+		var i = 0;
+		var j = 0;
+		while(i < nCentroids || j < bufferSize) {
+			double mean, weight;
+			if(j == bufferSize || (i < nCentroids && means[i] <= buffer[j])) {
+				mean = means[i];
+				weight = weights[i++];
+			} else {
+				mean = buffer[j++];
+				weight = 1;
+			}
+			if(nMerged > 0 && weightSoFar + weight <= limit) {
+				var merged = mergedWeights[nMerged-1] + weight;
+				mergedMeans[nMerged-1] += (mean - mergedMeans[nMerged-1]) * weight / merged;
+				mergedWeights[nMerged-1] = merged;
+			} else {
+				if(nMerged > 0)
+					limit = totalWeight * getQuantileLimit(weightSoFar / totalWeight);
+				mergedMeans[nMerged] = mean;
+				mergedWeights[nMerged] = weight;
+				nMerged++;
+			}
+			weightSoFar += weight;
+		}
+		bufferSize = 0;
+
+		var swap = means;
+		means = mergedMeans;
+		mergedMeans = swap;
+		swap = weights;
+		weights = mergedWeights;
+		mergedWeights = swap;
+		nCentroids = nMerged;
+	}
+
+	// Upper quantile of a centroid starting at q, one unit further in the scale k(q) = compression / (2 pi) * asin(2q - 1)
+	private double getQuantileLimit(double q) {
+		var k = compression / (2 * Math.PI) * Math.asin(2 * q - 1) + 1;
+		if(k >= compression / 4)
+			return 1;
+		return (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+	}
+}
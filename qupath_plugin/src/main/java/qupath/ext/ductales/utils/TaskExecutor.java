@@ -0,0 +1,154 @@
+package qupath.ext.ductales.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded, named thread pool used by the measurement and duct stages instead of the common ForkJoinPool.
+ * <p>
+ * Work is split in chunks, each chunk checks the cancellation flag before every item and reports its progress.
+ * An executor can be shared between several stages (or images) to bound the total number of worker threads.
+ * {@link #forEach} must not be called from one of the executor threads.
+ */
+public class TaskExecutor implements AutoCloseable {
+	private final static Logger logger = LoggerFactory.getLogger(TaskExecutor.class);
+
+	// Number of chunks per worker, more chunks balance better but add scheduling overhead
+	private static final int CHUNKS_PER_THREAD = 8;
+	// Maximum number of progress notifications per stage
+	private static final int PROGRESS_STEPS = 100;
+
+	@FunctionalInterface
+	public interface Task<T> {
+		void run(T item) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface IndexTask {
+		void run(int index) throws Exception;
+	}
+
+	@FunctionalInterface
+	public interface ProgressListener {
+		void onProgress(String stage, int done, int total);
+	}
+
+	private final String name;
+	private final int parallelism;
+	private final ExecutorService pool;
+
+	public TaskExecutor(String name, int parallelism) {
+		this.name = name;
+		this.parallelism = Math.max(1, parallelism);
+		var threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			var thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			// Keep the GUI responsive when all workers are busy
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		};
+		pool = Executors.newFixedThreadPool(this.parallelism, threadFactory);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public <T> void forEach(String stage, Collection<? extends T> items, Task<? super T> task) {
+		forEach(stage, items, task, null, null);
+	}
+
+	/**
+	 * Run the task on every item and wait for completion.
+	 * @param stage name of the stage, given to the progress listener
+	 * @param items items to process
+	 * @param task task to run on each item
+	 * @param cancelled cooperative cancellation flag, checked before each item (can be null)
+	 * @param progressListener progress callback, called from the worker threads (can be null)
+	 * @throws CancellationException if the cancellation flag was raised before all items were processed
+	 */
+	public <T> void forEach(String stage, Collection<? extends T> items, Task<? super T> task, AtomicBoolean cancelled, ProgressListener progressListener) {
+		List<? extends T> list = items instanceof List ? (List<? extends T>)items : new ArrayList<>(items);
+		forEach(stage, list.size(), i -> task.run(list.get(i)), cancelled, progressListener);
+	}
+
+	/**
+	 * Run the task on every index in [0, total) and wait for completion.
+	 * @see #forEach(String, Collection, Task, AtomicBoolean, ProgressListener)
+	 */
+	public void forEach(String stage, int total, IndexTask task, AtomicBoolean cancelled, ProgressListener progressListener) {
+		if(total == 0)
+			return;
+
+		var failed = new AtomicBoolean(false);
+		var done = new AtomicInteger();
+		var progressStep = Math.max(1, total / PROGRESS_STEPS);
+		var chunkSize = Math.max(1, total / (parallelism * CHUNKS_PER_THREAD));
+
+		var futures = new ArrayList<Future<?>>();
+		for(var start = 0; start < total; start += chunkSize) {
+			var chunkStart = start;
+			var chunkEnd = Math.min(total, start + chunkSize);
+			futures.add(pool.submit(() -> {
+				for(var i = chunkStart; i < chunkEnd; ++i) {
+					if(failed.get() || (cancelled != null && cancelled.get()))
+						return null;
+					task.run(i);
+					var nbDone = done.incrementAndGet();
+					if(progressListener != null && (nbDone % progressStep == 0 || nbDone == total))
+						progressListener.onProgress(stage, nbDone, total);
+				}
+				return null;
+			}));
+		}
+
+		Throwable error = null;
+		for(var future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// Stop the other chunks but wait for them before reporting the error
+				failed.set(true);
+				if(error == null)
+					error = e.getCause();
+			} catch (InterruptedException e) {
+				failed.set(true);
+				Thread.currentThread().interrupt();
+				if(error == null)
+					error = e;
+			}
+		}
+
+		if(error != null) {
+			if(error instanceof RuntimeException)
+				throw (RuntimeException)error;
+			throw new RuntimeException(error);
+		}
+		if(cancelled != null && cancelled.get()) {
+			logger.info("{}: {} cancelled after {}/{} items", name, stage, done.get(), total);
+			throw new CancellationException(stage + " cancelled");
+		}
+	}
+
+	@Override
+	public void close() {
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,111 @@
+package qupath.ext.ductales.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javafx.application.Platform;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.VBox;
+import javafx.stage.Modality;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import qupath.lib.gui.dialogs.Dialogs;
+
+/**
+ * Progress window of a long command, with a cancel button.
+ * <p>
+ * It is the {@link TaskExecutor.ProgressListener} of the computation, which runs on a background thread so the GUI stays responsive.
+ * Progress notifications come from the worker threads, they are coalesced to a single pending update of the FX thread.
+ */
+public class TaskProgressDialog implements TaskExecutor.ProgressListener {
+	private final static Logger logger = LoggerFactory.getLogger(TaskProgressDialog.class);
+	private final String title;
+	private final Stage stage;
+	private final Label stageLabel = new Label("Starting...");
+	private final ProgressBar progressBar = new ProgressBar(ProgressBar.INDETERMINATE_PROGRESS);
+	private final Button cancelButton = new Button("Cancel");
+	// Last progress not shown yet, null if an update is already shown
+	private final AtomicReference<Object[]> pendingProgress = new AtomicReference<>();
+
+	/**
+	 * @param owner window of the command
+	 * @param title title of the window and of the notifications
+	 * @param onCancel called from the FX thread when the user cancels, typically the cancel() of the computer
+	 */
+	public TaskProgressDialog(Window owner, String title, Runnable onCancel) {
+		this.title = title;
+		stage = new Stage();
+		stage.setTitle(title);
+		stage.setResizable(false);
+		stage.initOwner(owner);
+		stage.initModality(Modality.WINDOW_MODAL);
+
+		progressBar.setPrefWidth(300);
+		cancelButton.setOnAction(e -> {
+			cancelButton.setDisable(true);
+			stageLabel.setText("Cancelling...");
+			onCancel.run();
+		});
+		stage.setOnCloseRequest(e -> {
+			e.consume();
+			cancelButton.fire();
+		});
+		var pane = new VBox(10, stageLabel, progressBar, cancelButton);
+		pane.setPadding(new Insets(10));
+		pane.setAlignment(Pos.CENTER);
+		stage.setScene(new Scene(pane));
+	}
+
+	@Override
+	public void onProgress(String stageName, int done, int total) {
+		if(pendingProgress.getAndSet(new Object[] {stageName, done, total}) != null)
+			return;
+		Platform.runLater(() -> {
+			var progress = pendingProgress.getAndSet(null);
+			if(progress == null || cancelButton.isDisabled())
+				return;
+			stageLabel.setText(String.format("%s (%d/%d)", progress[0], (int)progress[1], (int)progress[2]));
+			progressBar.setProgress((int)progress[1] / (double)(int)progress[2]);
+		});
+	}
+
+	/**
+	 * Show the dialog and run the computation on a background thread. Must be called from the FX thread.
+	 * onSuccess is called from the FX thread with the result, cancellation and errors are notified to the user.
+	 */
+	public <T> void run(Callable<T> computation, Consumer<T> onSuccess) {
+		stage.show();
+		var thread = new Thread(() -> {
+			try {
+				var result = computation.call();
+				Platform.runLater(() -> {
+					stage.hide();
+					onSuccess.accept(result);
+				});
+			} catch(CancellationException e) {
+				Platform.runLater(() -> {
+					stage.hide();
+					Dialogs.showInfoNotification(title, "Cancelled");
+				});
+			} catch(Exception e) {
+				logger.error(e.getLocalizedMessage(), e);
+				Platform.runLater(() -> {
+					stage.hide();
+					Dialogs.showErrorMessage(title, e.getLocalizedMessage());
+				});
+			}
+		}, "ductales-command");
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
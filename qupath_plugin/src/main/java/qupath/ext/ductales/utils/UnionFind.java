@@ -0,0 +1,87 @@
+package qupath.ext.ductales.utils;
+
+import java.util.Arrays;
+
+/**
+ * Disjoint sets over int elements, with path compression and union by rank.
+ */
+public class UnionFind {
+	private final int[] parents;
+	private final byte[] ranks;
+	private final int[] sizes;
+
+	public UnionFind(int n) {
+		parents = new int[n];
+		ranks = new byte[n];
+		sizes = new int[n];
+		for(var i = 0; i < n; ++i) {
+			parents[i] = i;
+			sizes[i] = 1;
+		}
+	}
+
+	public int size() {
+		return parents.length;
+	}
+
+	public int find(int i) {
+		var root = i;
+		while(parents[root] != root)
+			root = parents[root];
+		// Path compression
+		while(parents[i] != root) {
+			var parent = parents[i];
+			parents[i] = root;
+			i = parent;
+		}
+		return root;
+	}
+
+	/**
+	 * Merge the sets of two elements.
+	 * @return the root of the merged set, -1 if both elements were already in the same set
+	 */
+	public int union(int i, int j) {
+		var rootI = find(i);
+		var rootJ = find(j);
+		if(rootI == rootJ)
+			return -1;
+		if(ranks[rootI] < ranks[rootJ]) {
+			var swap = rootI;
+			rootI = rootJ;
+			rootJ = swap;
+		}
+		parents[rootJ] = rootI;
+		sizes[rootI] += sizes[rootJ];
+		if(ranks[rootI] == ranks[rootJ])
+			ranks[rootI]++;
+		return rootI;
+	}
+
+	// Number of elements in the set of an element
+	public int getSetSize(int i) {
+		return sizes[find(i)];
+	}
+
+	/**
+	 * Label of the set of each element, numbered from 0 in element order.
+	 * Elements of sets smaller than minSetSize get -1.
+	 */
+	public int[] getLabels(int minSetSize) {
+		var rootLabels = new int[parents.length];
+		Arrays.fill(rootLabels, -1);
+		var labels = new int[parents.length];
+		var nLabels = 0;
+		for(var i = 0; i < labels.length; ++i) {
+			var root = find(i);
+			if(sizes[root] < minSetSize) {
+				labels[i] = -1;
+				continue;
+			}
+			if(rootLabels[root] < 0)
+				rootLabels[root] = nLabels++;
+			labels[i] = rootLabels[root];
+		}
+		return labels;
+	}
+}
@@ -0,0 +1,123 @@
+package qupath.ext.ductales.utils;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of the pixel kernels with the incubating Vector API (Java 17+).
+ * Loaded by {@link PixelKernels#getInstance()} from META-INF/versions/17 of the multi-release jar.
+ */
+public class VectorPixelKernels extends PixelKernels {
+	private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+	// Same shape as the float species, so int to float conversions keep the lane count
+	private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	// Number of vector iterations before float partial sums are flushed to doubles
+	private static final int FLUSH_ITERATIONS = 64;
+
+	@Override
+	public String getName() {
+		return "vector (" + FLOAT_SPECIES.length() + " lanes)";
+	}
+
+	@Override
+	public void opticalDensity(int[] rgb, int n, double maxRed, double maxGreen, double maxBlue, float[] odRed, float[] odGreen, float[] odBlue) {
+		// -log10(value / max) = log10(max) - log10(value)
+		var logMaxRed = (float)Math.log10(maxRed);
+		var logMaxGreen = (float)Math.log10(maxGreen);
+		var logMaxBlue = (float)Math.log10(maxBlue);
+		var upperBound = INT_SPECIES.loopBound(n);
+		var i = 0;
+		for(; i < upperBound; i += INT_SPECIES.length()) {
+			var pixels = IntVector.fromArray(INT_SPECIES, rgb, i);
+			toOpticalDensity(pixels.lanewise(VectorOperators.LSHR, 16), logMaxRed).intoArray(odRed, i);
+			toOpticalDensity(pixels.lanewise(VectorOperators.LSHR, 8), logMaxGreen).intoArray(odGreen, i);
+			toOpticalDensity(pixels, logMaxBlue).intoArray(odBlue, i);
+		}
+		for(; i < n; ++i) {
+			var pixel = rgb[i];
+			odRed[i] = makeOD(getRed(pixel), maxRed);
+			odGreen[i] = makeOD(getGreen(pixel), maxGreen);
+			odBlue[i] = makeOD(getBlue(pixel), maxBlue);
+		}
+	}
+
+	private static FloatVector toOpticalDensity(IntVector shiftedPixels, float logMax) {
+		var values = (FloatVector)shiftedPixels.and(0xff).max(1).convert(VectorOperators.I2F, 0);
+		return values.lanewise(VectorOperators.LOG10).neg().add(logMax).max(0f);
+	}
+
+	@Override
+	public void deconvolve(float[] odRed, float[] odGreen, float[] odBlue, int n, double[][] matrixInverse, int stain, float[] output) {
+		var mr = (float)matrixInverse[0][stain];
+		var mg = (float)matrixInverse[1][stain];
+		var mb = (float)matrixInverse[2][stain];
+		var upperBound = FLOAT_SPECIES.loopBound(n);
+		var i = 0;
+		for(; i < upperBound; i += FLOAT_SPECIES.length()) {
+			var red = FloatVector.fromArray(FLOAT_SPECIES, odRed, i);
+			var green = FloatVector.fromArray(FLOAT_SPECIES, odGreen, i);
+			var blue = FloatVector.fromArray(FLOAT_SPECIES, odBlue, i);
+			// Same operation order as the scalar kernel
+			red.mul(mr).add(green.mul(mg)).add(blue.mul(mb)).intoArray(output, i);
+		}
+		for(; i < n; ++i)
+			output[i] = odRed[i] * mr + odGreen[i] * mg + odBlue[i] * mb;
+	}
+
+	@Override
+	public double[] maskedStatistics(float[] values, boolean[] mask, int n) {
+		var minVector = FloatVector.broadcast(FLOAT_SPECIES, Float.POSITIVE_INFINITY);
+		var maxVector = FloatVector.broadcast(FLOAT_SPECIES, Float.NEGATIVE_INFINITY);
+		var sumVector = FloatVector.zero(FLOAT_SPECIES);
+		var sumSquaresVector = FloatVector.zero(FLOAT_SPECIES);
+		var zero = FloatVector.zero(FLOAT_SPECIES);
+		var count = 0;
+		var sum = 0.0;
+		var sumSquares = 0.0;
+
+		var upperBound = FLOAT_SPECIES.loopBound(n);
+		var i = 0;
+		var iterations = 0;
+		for(; i < upperBound; i += FLOAT_SPECIES.length()) {
+			var vector = FloatVector.fromArray(FLOAT_SPECIES, values, i);
+			var vectorMask = VectorMask.fromArray(FLOAT_SPECIES, mask, i);
+			minVector = minVector.lanewise(VectorOperators.MIN, vector, vectorMask);
+			maxVector = maxVector.lanewise(VectorOperators.MAX, vector, vectorMask);
+			var masked = zero.blend(vector, vectorMask);
+			sumVector = sumVector.add(masked);
+			sumSquaresVector = sumSquaresVector.add(masked.mul(masked));
+			count += vectorMask.trueCount();
+			if(++iterations == FLUSH_ITERATIONS) {
+				// Limit the float accumulation error
+				sum += sumVector.reduceLanes(VectorOperators.ADD);
+				sumSquares += sumSquaresVector.reduceLanes(VectorOperators.ADD);
+				sumVector = zero;
+				sumSquaresVector = zero;
+				iterations = 0;
+			}
+		}
+		sum += sumVector.reduceLanes(VectorOperators.ADD);
+		sumSquares += sumSquaresVector.reduceLanes(VectorOperators.ADD);
+		double min = minVector.reduceLanes(VectorOperators.MIN);
+		double max = maxVector.reduceLanes(VectorOperators.MAX);
+
+		for(; i < n; ++i) {
+			if(!mask[i])
+				continue;
+			double value = values[i];
+			count++;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+			sum += value;
+			sumSquares += value * value;
+		}
+		if(count == 0) {
+			min = Double.NaN;
+			max = Double.NaN;
+		}
+		return new double[] {count, min, max, sum, sumSquares};
+	}
+}
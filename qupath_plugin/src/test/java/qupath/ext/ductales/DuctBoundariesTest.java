@@ -0,0 +1,308 @@
+package qupath.ext.ductales;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.ductales.utils.TaskExecutor;
+import qupath.lib.analysis.DelaunayTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Holes and perimeters of the boundary walk against cell sequences recorded with the baseline commit aec9c07 (the right most
+ * neighbor walk over the Delaunay neighbor maps) on the same cells, as fixture indexes from the smallest rotation.
+ * The baseline did not merge adjacent holes: with merged holes, and on random graphs, the half-edge walk is compared
+ * with a port of the baseline walk, which tested every neighbor of a cell with orientation tests.
+ */
+public class DuctBoundariesTest {
+	private static final double NUCLEUS_RADIUS = 3;
+	private static final double DUCT_MAX_DISTANCE = 50;
+	private static final double[] HOLES_MIN_DISTANCES = {10., 20., 30., 50.};
+
+	// Baseline walk: the right most neighbor of the edge target among all its neighbors in the duct, back on the edge for dead ends
+	static final DuctStructureComputer.FaceWalk BASELINE_WALK = (graph, adjacency, duct, edge) -> {
+		var edgeEnd = adjacency.target(edge);
+		var edgeStart = adjacency.target(adjacency.twin(edge));
+		var rightMostEdge = -1;
+		var isCurrentBestOnRightSide = false;
+		for(var e = adjacency.start(edgeEnd); e < adjacency.end(edgeEnd); ++e) {
+			var neighbor = adjacency.target(e);
+			if(!adjacency.isActive(e) || !graph.isInDuct(neighbor, duct))
+				continue;
+			if(neighbor == edgeStart)
+				continue;
+			var isRightMost = rightMostEdge == -1;
+			var isRightToEdge = isRight(graph, edgeStart, edgeEnd, neighbor);
+			if(rightMostEdge != -1) {
+				var isRightToCurrentBest = isRight(graph, edgeEnd, adjacency.target(rightMostEdge), neighbor);
+				if(isCurrentBestOnRightSide)
+					isRightMost = isRightToEdge && isRightToCurrentBest;
+				else
+					isRightMost = isRightToEdge || isRightToCurrentBest;
+			}
+			if(isRightMost) {
+				rightMostEdge = e;
+				isCurrentBestOnRightSide = isRightToEdge;
+			}
+		}
+		if(rightMostEdge == -1)
+			rightMostEdge = adjacency.twin(edge);
+		return rightMostEdge;
+	};
+
+	private static boolean isRight(DuctGraph graph, int a, int b, int c) {
+		return ((graph.getX(b) - graph.getX(a)) * (graph.getY(c) - graph.getY(a))
+				- (graph.getY(b) - graph.getY(a)) * (graph.getX(c) - graph.getX(a))) < 0;
+	}
+
+	@Test
+	public void ringWithOneHole() {
+		var cells = new ArrayList<PathObject>();
+		addRing(cells, 0, 0, 60, 24);
+		var holes = List.of("0,23,22,21,20,19,18,17,16,15,14,13,12,11,10,9,8,7,6,5,4,3,2,1");
+		var perimeter = "0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23";
+		assertBoundaries(cells, false, holes, perimeter);
+		assertBoundaries(cells, true, holes, perimeter);
+		assertSameMergedBoundaries(cells);
+	}
+
+	@Test
+	public void adjacentHoles() {
+		// Grid with two 3x3 gaps separated by a column of cells
+		var cells = new ArrayList<PathObject>();
+		var random = new Random(1);
+		for(var i = 0; i < 9; ++i) {
+			for(var j = 0; j < 5; ++j) {
+				if(j >= 1 && j <= 3 && ((i >= 1 && i <= 3) || (i >= 5 && i <= 7)))
+					continue;
+				cells.add(createCell(12 * i + random.nextDouble() - 0.5, 12 * j + random.nextDouble() - 0.5));
+			}
+		}
+		var holes = List.of(
+				"0,1,2,3,4,6,8,10,15,14,13,12,11,9,7,5",
+				"11,12,13,14,15,17,19,21,26,25,24,23,22,20,18,16");
+		assertBoundaries(cells, false, holes, "0,5,9,16,18,20,22,24,26,19,17,10,4,1");
+		// Refined, the perimeter follows the cells of the grid border
+		assertBoundaries(cells, true, holes, "0,5,7,9,11,16,18,20,22,23,24,25,26,21,19,17,15,10,8,6,4,3,2,1");
+		assertSameMergedBoundaries(cells);
+	}
+
+	@Test
+	public void nestedRings() {
+		// Inner ring inside an outer ring, joined by two spokes
+		var cells = new ArrayList<PathObject>();
+		addRing(cells, 0, 0, 90, 36);
+		addRing(cells, 0, 0, 45, 18);
+		for(var radius : new double[] {60, 75}) {
+			cells.add(createCell(radius, 0.3));
+			cells.add(createCell(-radius, -0.3));
+		}
+		// Both halves of the space between the rings, and the inside of the inner ring
+		var holes = List.of(
+				"0,35,34,33,32,31,30,29,28,27,26,25,24,23,22,21,20,19,18,57,55,45,46,47,48,49,50,51,52,53,36,54,56",
+				"0,56,54,36,37,38,39,40,41,42,43,44,45,55,57,18,17,16,15,14,13,12,11,10,9,8,7,6,5,4,3,2,1",
+				"36,53,52,51,50,49,48,47,46,45,44,43,42,41,40,39,38,37");
+		var perimeter = "0,1,2,3,4,5,6,7,8,9,10,11,12,13,14,15,16,17,18,19,20,21,22,23,24,25,26,27,28,29,30,31,32,33,34,35";
+		assertBoundaries(cells, false, holes, perimeter);
+		assertBoundaries(cells, true, holes, perimeter);
+		assertSameMergedBoundaries(cells);
+	}
+
+	@Test
+	public void danglingEdges() {
+		// Ring with a tail of cells inside the hole and another one outside
+		var cells = new ArrayList<PathObject>();
+		addRing(cells, 0, 0, 60, 24);
+		for(var radius : new double[] {45, 30}) {
+			cells.add(createCell(radius, 0.4));
+			cells.add(createCell(-radius - 30, -0.4));
+		}
+		// The walk goes along the inner tail and back
+		var holes = List.of("0,23,22,21,20,19,18,17,16,15,14,13,27,12,11,10,9,8,7,6,5,4,3,2,1,0,24,26,24");
+		assertBoundaries(cells, false, holes, "0,1,2,3,4,5,6,7,8,9,10,25,14,15,16,17,18,19,20,21,22,23");
+		assertBoundaries(cells, true, holes, "0,1,2,3,4,5,6,7,8,9,10,11,25,13,14,15,16,17,18,19,20,21,22,23");
+		assertSameMergedBoundaries(cells);
+	}
+
+	@Test
+	public void singleTriangle() {
+		var cells = List.<PathObject>of(createCell(0, 0), createCell(15, 0), createCell(7.5, 13));
+		// Faces of 3 cells are never kept: no hole, no perimeter and no cell on a boundary
+		assertBoundaries(cells, false, List.of(), null, 0, 1, 2);
+		assertBoundaries(cells, true, List.of(), null, 0, 1, 2);
+		assertSameMergedBoundaries(cells);
+	}
+
+	/**
+	 * Random points, with Delaunay edges up to a random distance: both walks must find the same faces.
+	 * Neighbors are shuffled, the baseline walk does not depend on their order.
+	 */
+	@Test
+	public void randomGraphsHaveSameFaces() {
+		for(var seed = 0; seed < 200; ++seed) {
+			var random = new Random(seed);
+			var cells = new ArrayList<PathObject>();
+			for(var i = 0; i < 300; ++i)
+				cells.add(createCell(random.nextDouble() * 100, random.nextDouble() * 100, 0.5));
+			var maxDistance = 4 + random.nextDouble() * 6;
+			var neighbors = new HashMap<PathObject, List<PathObject>>();
+			for(var entry : DelaunayTools.createFromCentroids(cells, true).getAllNeighbors().entrySet()) {
+				var cellNeighbors = new ArrayList<>(entry.getValue());
+				Collections.shuffle(cellNeighbors, random);
+				neighbors.put(entry.getKey(), cellNeighbors);
+			}
+			try(var taskExecutor = new TaskExecutor("Duct boundaries test", 1)) {
+				var graph = new DuctGraph(cells);
+				graph.computeEdges(taskExecutor, neighbors, maxDistance, null, null);
+				graph.setDucts(DuctStructureComputer.getClusters(graph, maxDistance, 2));
+				var adjacency = graph.createAdjacency().withMaxDistance(maxDistance);
+				assertEquals(findFaces(graph, adjacency, BASELINE_WALK), findFaces(graph, adjacency, DuctStructureComputer.HALF_EDGE_WALK), "Seed " + seed);
+			}
+		}
+	}
+
+	// Every face of the graph as its cells from the smallest rotation
+	private static Set<String> findFaces(DuctGraph graph, DuctGraph.Adjacency adjacency, DuctStructureComputer.FaceWalk walk) {
+		var faces = new HashSet<String>();
+		var isVisited = new BitSet(adjacency.nEdges());
+		for(var i = 0; i < graph.size(); ++i) {
+			for(var startEdge = adjacency.start(i); startEdge < adjacency.end(i); ++startEdge) {
+				if(!adjacency.isActive(startEdge) || isVisited.get(startEdge))
+					continue;
+				var face = new ArrayList<Integer>();
+				var edge = startEdge;
+				do {
+					isVisited.set(edge);
+					face.add(adjacency.target(edge));
+					edge = walk.next(graph, adjacency, graph.getDuct(i), edge);
+				} while(edge != startEdge);
+				faces.add(toCanonical(face.stream().mapToInt(Integer::intValue).toArray()));
+			}
+		}
+		return faces;
+	}
+
+	private static String toCanonical(int[] cells) {
+		String canonical = null;
+		for(var start = 0; start < cells.length; ++start) {
+			var rotation = new StringJoiner(",");
+			for(var i = 0; i < cells.length; ++i)
+				rotation.add(Integer.toString(cells[(start + i) % cells.length]));
+			if(canonical == null || rotation.toString().compareTo(canonical) < 0)
+				canonical = rotation.toString();
+		}
+		return canonical;
+	}
+
+	/**
+	 * Boundaries of the single duct of the cells, without merging adjacent holes, against the recorded cell sequences.
+	 * All the cells of the duct are on a boundary, except the given ones.
+	 */
+	private static void assertBoundaries(List<PathObject> cells, boolean refine, List<String> holes, String perimeter, int... notOnBoundary) {
+		var computer = createComputer(refine, false).faceWalk(DuctStructureComputer.HALF_EDGE_WALK);
+		var boundaries = findBoundaries(computer, cells);
+		var message = "Refine " + refine;
+		assertEquals(1, boundaries.size(), message);
+		var duct = boundaries.get(0);
+		assertEquals(holes.stream().sorted().collect(Collectors.toList()), duct.holes, message);
+		assertEquals(perimeter, duct.perimeter, message);
+		var expectedOnBoundary = new boolean[duct.cells.length];
+		var excluded = IntStream.of(notOnBoundary).boxed().collect(Collectors.toSet());
+		for(var k = 0; k < duct.cells.length; ++k)
+			expectedOnBoundary[k] = !excluded.contains(duct.cells[k]);
+		assertArrayEquals(expectedOnBoundary, duct.isOnBoundary, message);
+	}
+
+	// Merged holes have no recorded sequences: both walks must give the same boundaries
+	private static void assertSameMergedBoundaries(List<PathObject> cells) {
+		for(var refine : new boolean[] {false, true}) {
+			var baseline = findBoundaries(createComputer(refine, true).faceWalk(BASELINE_WALK), cells);
+			var halfEdge = findBoundaries(createComputer(refine, true).faceWalk(DuctStructureComputer.HALF_EDGE_WALK), cells);
+			assertEquals(baseline.size(), halfEdge.size());
+			for(var d = 0; d < baseline.size(); ++d) {
+				var message = "Duct " + d + ", refine " + refine + ", merge true";
+				assertEquals(baseline.get(d).holes, halfEdge.get(d).holes, message);
+				assertEquals(baseline.get(d).perimeter, halfEdge.get(d).perimeter, message);
+				assertArrayEquals(baseline.get(d).isOnBoundary, halfEdge.get(d).isOnBoundary, message);
+			}
+		}
+	}
+
+	private static DuctStructureComputer createComputer(boolean refine, boolean merge) {
+		return new DuctStructureComputer()
+				.ductMaxDistance(DUCT_MAX_DISTANCE)
+				.ductMinCellSize(3)
+				.holesMinDistances(HOLES_MIN_DISTANCES)
+				.holesMinCellSize(5)
+				.refineBoundaries(refine)
+				.mergeAdjacentHoles(merge);
+	}
+
+	// The graph ids are the indexes of the cells in the list
+	private static List<DuctBoundaries> findBoundaries(DuctStructureComputer computer, List<PathObject> cells) {
+		try(var taskExecutor = new TaskExecutor("Duct boundaries test", 1)) {
+			var graph = computer.createGraph(taskExecutor, cells, DelaunayTools.createFromCentroids(cells, true).getAllNeighbors(), new AtomicBoolean());
+			var ductCells = DuctStructureComputer.getClusters(graph, DUCT_MAX_DISTANCE, 3);
+			graph.setDucts(ductCells);
+			var boundariesAdjacencies = computer.getBoundariesAdjacencies(graph.createAdjacency());
+			var result = new ArrayList<DuctBoundaries>();
+			for(var duct : ductCells) {
+				var isOnBoundary = new boolean[duct.length];
+				result.add(new DuctBoundaries(duct, computer.findBoundaries(graph, duct, boundariesAdjacencies, isOnBoundary), isOnBoundary));
+			}
+			return result;
+		}
+	}
+
+	// Holes and perimeter as canonical cell sequences
+	private static class DuctBoundaries {
+		final int[] cells;
+		final List<String> holes;
+		final String perimeter;
+		final boolean[] isOnBoundary;
+
+		DuctBoundaries(int[] cells, Collection<DuctStructureComputer.Boundary> boundaries, boolean[] isOnBoundary) {
+			this.cells = cells;
+			holes = boundaries.stream().filter(b -> b.isHole).map(b -> toCanonical(b.cells)).sorted().collect(Collectors.toList());
+			var perimeters = boundaries.stream().filter(b -> !b.isHole).collect(Collectors.toList());
+			perimeter = perimeters.isEmpty() ? null : toCanonical(perimeters.get(0).cells);
+			this.isOnBoundary = isOnBoundary;
+		}
+	}
+
+	private static void addRing(List<PathObject> cells, double centerX, double centerY, double radius, int size) {
+		for(var i = 0; i < size; ++i) {
+			var angle = 2 * Math.PI * i / size;
+			cells.add(createCell(centerX + radius * Math.cos(angle), centerY + radius * Math.sin(angle)));
+		}
+	}
+
+	private static PathObject createCell(double x, double y) {
+		return createCell(x, y, NUCLEUS_RADIUS);
+	}
+
+	private static PathObject createCell(double x, double y, double nucleusRadius) {
+		var plane = ImagePlane.getDefaultPlane();
+		var nucleus = ROIs.createEllipseROI(x - nucleusRadius, y - nucleusRadius, 2 * nucleusRadius, 2 * nucleusRadius, plane);
+		var cell = ROIs.createEllipseROI(x - 2 * nucleusRadius, y - 2 * nucleusRadius, 4 * nucleusRadius, 4 * nucleusRadius, plane);
+		return PathObjects.createCellObject(cell, nucleus, null, null);
+	}
+}
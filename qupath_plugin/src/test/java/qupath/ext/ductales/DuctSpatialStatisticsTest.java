@@ -0,0 +1,145 @@
+package qupath.ext.ductales;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+/**
+ * Spatial statistics of point patterns with known values: a regular lattice, a Poisson sample and random labels.
+ */
+public class DuctSpatialStatisticsTest {
+	private static final double[] RADII = {5., 10., 20.};
+
+	@Test
+	public void regularLattice() {
+		// 20x20 cells 10 px apart, each cell in the middle of a 10 px square of the window
+		var side = 20;
+		var spacing = 10.;
+		var xs = new double[side * side];
+		var ys = new double[side * side];
+		for(var i = 0; i < xs.length; ++i) {
+			xs[i] = (i % side + 0.5) * spacing;
+			ys[i] = (i / side + 0.5) * spacing;
+		}
+		var pixelSize = 0.5;
+		var pattern = new DuctSpatialStatistics.DuctPattern(xs, ys, xs.length, createSquare(side * spacing));
+
+		var distances = pattern.computeNearestNeighborDistances(pixelSize);
+		for(var distance : distances)
+			assertEquals(spacing * pixelSize, distance, 1e-9);
+		// Twice the mean distance of a Poisson process: the lattice is regular
+		var area = pattern.getArea() * pixelSize * pixelSize;
+		assertEquals(2, DuctSpatialStatistics.getClarkEvansIndex(spacing * pixelSize, area, xs.length), 1e-9);
+
+		// No pair closer than the spacing, then the 4 direct neighbors of each cell (the edge correction adds a few percent)
+		var radii = new double[] {0.9 * spacing * pixelSize, 1.2 * spacing * pixelSize};
+		var k = new double[radii.length];
+		var mixing = new double[radii.length];
+		pattern.computePairStatistics(radii, pixelSize, new int[xs.length], 1, k, mixing);
+		assertEquals(0, k[0], 0);
+		var expected = 4 * spacing * pixelSize * spacing * pixelSize;
+		assertEquals(expected, k[1], 0.05 * expected);
+	}
+
+	@Test
+	public void poissonSampleHasPoissonK() {
+		var random = new Random(42);
+		var n = 4000;
+		var size = 400.;
+		var xs = new double[n];
+		var ys = new double[n];
+		for(var i = 0; i < n; ++i) {
+			xs[i] = random.nextDouble() * size;
+			ys[i] = random.nextDouble() * size;
+		}
+		var pattern = new DuctSpatialStatistics.DuctPattern(xs, ys, n, createSquare(size));
+		var k = new double[RADII.length];
+		var mixing = new double[RADII.length];
+		pattern.computePairStatistics(RADII, 1, new int[n], 1, k, mixing);
+		for(var r = 0; r < RADII.length; ++r) {
+			var expected = Math.PI * RADII[r] * RADII[r];
+			assertEquals(expected, k[r], 0.05 * expected, "K(" + RADII[r] + ")");
+		}
+	}
+
+	@Test
+	public void shuffledLabelsAreMixed() {
+		var random = new Random(7);
+		var n = 2000;
+		var size = 300.;
+		var xs = new double[n];
+		var ys = new double[n];
+		var labels = new int[n];
+		var segregatedLabels = new int[n];
+		for(var i = 0; i < n; ++i) {
+			xs[i] = random.nextDouble() * size;
+			ys[i] = random.nextDouble() * size;
+			labels[i] = i % 3;
+			segregatedLabels[i] = xs[i] < size / 2 ? 0 : 1;
+		}
+		// Fisher-Yates shuffle of the labels
+		for(var i = n - 1; i > 0; --i) {
+			var j = random.nextInt(i + 1);
+			var label = labels[i];
+			labels[i] = labels[j];
+			labels[j] = label;
+		}
+		var pattern = new DuctSpatialStatistics.DuctPattern(xs, ys, n, createSquare(size));
+		var k = new double[RADII.length];
+		var mixing = new double[RADII.length];
+		pattern.computePairStatistics(RADII, 1, labels, 3, k, mixing);
+		for(var r = 0; r < RADII.length; ++r)
+			assertEquals(1, mixing[r], 0.05, "Mixing(" + RADII[r] + ")");
+
+		// Classes in two halves only mix along the middle line
+		pattern.computePairStatistics(RADII, 1, segregatedLabels, 2, k, mixing);
+		for(var r = 0; r < RADII.length; ++r)
+			assertTrue(mixing[r] < 0.2, "Segregated mixing(" + RADII[r] + ") " + mixing[r]);
+	}
+
+	@Test
+	public void nearestNeighborsMatchBruteForce() {
+		var random = new Random(3);
+		for(var pattern = 0; pattern < 3; ++pattern) {
+			// Uniform, clustered with far outliers, and with duplicate points
+			var n = 500;
+			var xs = new double[n];
+			var ys = new double[n];
+			for(var i = 0; i < n; ++i) {
+				if(pattern == 1 && i % 50 != 0) {
+					xs[i] = 100 + random.nextGaussian() * 3;
+					ys[i] = 100 + random.nextGaussian() * 3;
+				} else {
+					xs[i] = random.nextDouble() * 1000;
+					ys[i] = random.nextDouble() * 1000;
+				}
+				if(pattern == 2 && i % 10 == 1) {
+					xs[i] = xs[i-1];
+					ys[i] = ys[i-1];
+				}
+			}
+			var distances = new DuctSpatialStatistics.DuctPattern(xs, ys, n, createSquare(1000)).computeNearestNeighborDistances(0.25);
+			var expected = new double[n];
+			Arrays.fill(expected, Double.POSITIVE_INFINITY);
+			for(var i = 0; i < n; ++i) {
+				for(var j = 0; j < n; ++j) {
+					if(i != j)
+						expected[i] = Math.min(expected[i], Math.hypot(xs[i] - xs[j], ys[i] - ys[j]) * 0.25);
+				}
+			}
+			for(var i = 0; i < n; ++i)
+				assertEquals(expected[i], distances[i], 1e-9, "Pattern " + pattern + ", cell " + i);
+		}
+	}
+
+	private static Geometry createSquare(double size) {
+		return new GeometryFactory().toGeometry(new Envelope(0, size, 0, size));
+	}
+}
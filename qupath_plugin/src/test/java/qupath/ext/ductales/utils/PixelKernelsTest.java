@@ -0,0 +1,107 @@
+package qupath.ext.ductales.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.color.ColorDeconvolutionStains;
+import qupath.lib.color.ColorTransformer;
+import qupath.lib.color.ColorTransformer.ColorTransformMethod;
+import qupath.lib.color.StainVector;
+import qupath.lib.color.StainVector.DefaultStains;
+
+/**
+ * Pixel kernels against QuPath's color deconvolution and direct sums. The vector kernels are only tested
+ * when they are available (Java 17 with the jdk.incubator.vector module), otherwise the best kernels are the scalar ones.
+ */
+public class PixelKernelsTest {
+	// Not a multiple of any vector length, so the scalar tail of the vector kernels is tested
+	private static final int N = 4099;
+	// Float optical densities and deconvolution, against QuPath's double computation
+	private static final double STAIN_TOLERANCE = 1e-4;
+
+	@Test
+	public void stainsMatchColorTransformer() {
+		var stains = new ColorDeconvolutionStains("Color deconv",
+				StainVector.makeDefaultStainVector(DefaultStains.HEMATOXYLIN), StainVector.makeDefaultStainVector(DefaultStains.EOSIN), 255, 255, 255);
+		var random = new Random(42);
+		var rgb = new int[N];
+		for(var i = 0; i < N; ++i)
+			rgb[i] = random.nextInt(0x1000000);
+		// Black and white pixels, at the bounds of the optical densities
+		rgb[0] = 0;
+		rgb[1] = 0xffffff;
+
+		var methods = new ColorTransformMethod[] {ColorTransformMethod.Stain_1, ColorTransformMethod.Stain_2};
+		for(var stain = 0; stain < methods.length; ++stain) {
+			var expected = ColorTransformer.getTransformedPixels(rgb, methods[stain], null, stains);
+			var scalar = deconvolve(PixelKernels.scalar(), rgb, stains, stain);
+			var best = deconvolve(PixelKernels.getInstance(), rgb, stains, stain);
+			for(var i = 0; i < N; ++i) {
+				assertEquals(expected[i], scalar[i], STAIN_TOLERANCE, "Scalar stain " + stain + ", pixel " + i);
+				assertEquals(expected[i], best[i], STAIN_TOLERANCE, PixelKernels.getInstance().getName() + " stain " + stain + ", pixel " + i);
+				assertEquals(scalar[i], best[i], STAIN_TOLERANCE, "Scalar and " + PixelKernels.getInstance().getName() + " stain " + stain + ", pixel " + i);
+			}
+		}
+	}
+
+	@Test
+	public void maskedStatisticsMatchDirectSums() {
+		var random = new Random(7);
+		var values = new float[N];
+		var mask = new boolean[N];
+		for(var i = 0; i < N; ++i) {
+			values[i] = (float)(random.nextGaussian() * 0.3 + 0.5);
+			mask[i] = random.nextDouble() < 0.6;
+		}
+		// Extremes out of the mask are ignored
+		values[10] = 100;
+		mask[10] = false;
+		values[N-1] = -100;
+		mask[N-1] = false;
+
+		var count = 0;
+		var min = Double.POSITIVE_INFINITY;
+		var max = Double.NEGATIVE_INFINITY;
+		var sum = 0.0;
+		var sumSquares = 0.0;
+		for(var i = 0; i < N; ++i) {
+			if(!mask[i])
+				continue;
+			count++;
+			min = Math.min(min, values[i]);
+			max = Math.max(max, values[i]);
+			sum += values[i];
+			sumSquares += (double)values[i] * values[i];
+		}
+
+		for(var kernels : new PixelKernels[] {PixelKernels.scalar(), PixelKernels.getInstance()}) {
+			var statistics = kernels.maskedStatistics(values, mask, N);
+			var name = kernels.getName();
+			assertEquals(count, statistics[PixelKernels.STAT_COUNT], 0, name + " count");
+			assertEquals(min, statistics[PixelKernels.STAT_MIN], 0, name + " min");
+			assertEquals(max, statistics[PixelKernels.STAT_MAX], 0, name + " max");
+			// Vector lanes are summed in float before being flushed to doubles
+			assertEquals(sum, statistics[PixelKernels.STAT_SUM], 1e-6 * count, name + " sum");
+			assertEquals(sumSquares, statistics[PixelKernels.STAT_SUM_SQUARES], 1e-6 * count, name + " sum of squares");
+
+			var empty = kernels.maskedStatistics(values, new boolean[N], N);
+			assertEquals(0, empty[PixelKernels.STAT_COUNT], 0, name + " empty count");
+			assertTrue(Double.isNaN(empty[PixelKernels.STAT_MIN]) && Double.isNaN(empty[PixelKernels.STAT_MAX]), name + " empty min and max");
+		}
+	}
+
+	private static float[] deconvolve(PixelKernels kernels, int[] rgb, ColorDeconvolutionStains stains, int stain) {
+		var n = rgb.length;
+		var odRed = new float[n];
+		var odGreen = new float[n];
+		var odBlue = new float[n];
+		var output = new float[n];
+		kernels.opticalDensity(rgb, n, stains.getMaxRed(), stains.getMaxGreen(), stains.getMaxBlue(), odRed, odGreen, odBlue);
+		kernels.deconvolve(odRed, odGreen, odBlue, n, stains.getMatrixInverse(), stain, output);
+		return output;
+	}
+}
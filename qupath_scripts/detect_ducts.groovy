@@ -84,17 +84,25 @@ ductComputer = new DuctStructureComputer()
     .holesMinDistances(new double[]{10, 20, 30, 50})
     .holesMinCellSize(5)
     .refineBoundaries(true)
+    .mergeAdjacentHoles(false)
+    .measureNeighborhoods(false)
+    .aggregatedFeatures(new String[]{})
+    .aggregatedQuantiles(new double[]{0.25, 0.5, 0.75})
+    .measureSpatialStatistics(false)
+    .spatialRadii(new double[]{10, 25, 50})
     .triangleToRefineMinAngle(120)
-ducts = ductComputer.compute(image, cells)
+result = ductComputer.compute(image, cells)
+ducts = result.getDucts()
+result.addCellsToDucts()
 	
 image.getHierarchy().addPathObjects(ducts)
 
 if(showHoles) {
-    holes = ductComputer.getHolesPathObjects(image)
+    holes = result.getAllHoles()
     image.getHierarchy().addPathObjects(holes)
 }
 if(showPerimeters) {
-    perimeters = ductComputer.getPerimetersPathObjects(image)
+    perimeters = result.getAllPerimeters()
     image.getHierarchy().addPathObjects(perimeters)
 }
-ductComputer.addParentRelations(ducts)
+result.addParentRelations()